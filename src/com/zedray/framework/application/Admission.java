@@ -0,0 +1,44 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.application;
+
+/***
+ * Result of posting a message to the ServiceQueue.
+ */
+public enum Admission {
+
+    /** The message was accepted and will be processed. **/
+    ACCEPTED,
+
+    /** The message was rejected, as its Type has exceeded its rate limit. **/
+    RATE_LIMITED,
+
+    /***
+     * The message was rejected, as queued work is already waiting longer than
+     * the target queue delay.
+     */
+    OVERLOADED;
+
+    /***
+     * Returns TRUE if the message was accepted.
+     *
+     * @return TRUE if accepted.
+     */
+    public boolean isAccepted() {
+        return this == ACCEPTED;
+    }
+}
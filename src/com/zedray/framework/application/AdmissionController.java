@@ -0,0 +1,112 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.application;
+
+/***
+ * Global admission control based on queue delay, in the spirit of CoDel.
+ * The delay between a message being posted and its Task starting is reported
+ * for every message. Short bursts are absorbed, but once every reported delay
+ * has been above the target for a whole interval there is a standing queue,
+ * so new work is rejected until a delay below the target is seen again, or
+ * until every admitted request has started. The queue then drains, keeping
+ * the latency of admitted work bounded.
+ */
+public class AdmissionController {
+    /** Acceptable queue delay in milliseconds. **/
+    private final long mTarget;
+    /** Time in milliseconds the delay must stay above target. **/
+    private final long mInterval;
+    /** Uptime at which shedding starts, or 0 when below target. **/
+    private long mShedDeadline = 0;
+    /** TRUE while new work is being rejected. **/
+    private boolean mShedding = false;
+    /** Number of admitted requests that have not started. **/
+    private int mWaiting = 0;
+    /** Number of rejected requests, for diagnostics. **/
+    private long mRejected = 0;
+
+    /***
+     * Constructor.
+     *
+     * @param target Acceptable queue delay in milliseconds.
+     * @param interval Time in milliseconds the delay must stay above target
+     *            before work is rejected.
+     */
+    public AdmissionController(final long target, final long interval) {
+        mTarget = target;
+        mInterval = interval;
+    }
+
+    /***
+     * Decide whether to admit a new request.
+     *
+     * @return TRUE if the request is admitted.
+     */
+    public final synchronized boolean admit() {
+        if (mShedding) {
+            if (mWaiting > 0) {
+                mRejected++;
+                return false;
+            }
+            /** Everything admitted has started, so the queue has drained. **/
+            mShedding = false;
+            mShedDeadline = 0;
+        }
+        mWaiting++;
+        return true;
+    }
+
+    /***
+     * Report the queue delay of an admitted request that has just started,
+     * or been discarded.
+     *
+     * @param delay Time in milliseconds between posting and starting.
+     * @param now Current uptime in milliseconds.
+     */
+    public final synchronized void onStarted(final long delay,
+            final long now) {
+        if (mWaiting > 0) {
+            mWaiting--;
+        }
+        if (delay < mTarget) {
+            mShedDeadline = 0;
+            mShedding = false;
+        } else if (mShedDeadline == 0) {
+            mShedDeadline = now + mInterval;
+        } else if (now >= mShedDeadline) {
+            mShedding = true;
+        }
+    }
+
+    /***
+     * Returns TRUE while new work is being rejected.
+     *
+     * @return TRUE if shedding.
+     */
+    public final synchronized boolean isShedding() {
+        return mShedding;
+    }
+
+    /***
+     * Returns the number of requests rejected so far.
+     *
+     * @return Rejected request count.
+     */
+    public final synchronized long getRejectedCount() {
+        return mRejected;
+    }
+}
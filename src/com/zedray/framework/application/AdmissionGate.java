@@ -0,0 +1,117 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zedray.framework.application;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.zedray.framework.utils.Clock;
+import com.zedray.framework.utils.Type;
+
+/***
+ * Admission decisions of the ServiceQueue: an optional token bucket rate
+ * limit for each Type, then a global AdmissionController which rejects new
+ * work while queued work is already waiting too long. Kept free of Android
+ * classes, so the LoadGenerator can run the same decisions on a plain JVM.
+ */
+public class AdmissionGate {
+    /** Acceptable delay (in milliseconds) before a posted Task starts. **/
+    private static final long TARGET_DELAY = 100;
+    /** Time (in milliseconds) the delay must exceed target to shed work. **/
+    private static final long TARGET_INTERVAL = 1000;
+
+    /** Source of uptime for rate limits and delays. **/
+    private final Clock mClock;
+    /** Rate limit for each Type, if configured. **/
+    private final Map<Type, TokenBucket> mRateLimits =
+        new EnumMap<Type, TokenBucket>(Type.class);
+    /** Global queue delay based admission control. **/
+    private final AdmissionController mAdmission =
+        new AdmissionController(TARGET_DELAY, TARGET_INTERVAL);
+
+    /***
+     * Constructor.
+     *
+     * @param clock Source of uptime.
+     */
+    public AdmissionGate(final Clock clock) {
+        mClock = clock;
+    }
+
+    /***
+     * Limit the rate at which messages of the given Type are accepted.
+     *
+     * @param type Message Type.
+     * @param permitsPerSecond Sustained rate of accepted messages.
+     * @param burst Number of messages that can be accepted at once.
+     */
+    public final void setRateLimit(final Type type,
+            final double permitsPerSecond, final int burst) {
+        synchronized (mRateLimits) {
+            mRateLimits.put(type, new TokenBucket(permitsPerSecond, burst,
+                    mClock.uptimeMillis()));
+        }
+    }
+
+    /***
+     * Remove the rate limit for the given Type.
+     *
+     * @param type Message Type.
+     */
+    public final void removeRateLimit(final Type type) {
+        synchronized (mRateLimits) {
+            mRateLimits.remove(type);
+        }
+    }
+
+    /***
+     * Take a token from the rate limit of the given Type, if it has one.
+     *
+     * @param type Message Type.
+     * @param now Current uptime in milliseconds.
+     * @return TRUE if the message is within its rate limit.
+     */
+    public final boolean tryAcquire(final Type type, final long now) {
+        TokenBucket rateLimit;
+        synchronized (mRateLimits) {
+            rateLimit = mRateLimits.get(type);
+        }
+        return rateLimit == null || rateLimit.tryAcquire(now);
+    }
+
+    /***
+     * Decide whether to admit a message within its rate limit, given the
+     * current queue delay.
+     *
+     * @return TRUE if the message is admitted.
+     */
+    public final boolean admit() {
+        return mAdmission.admit();
+    }
+
+    /***
+     * Called when the Task of an admitted message first runs, or is
+     * discarded, to measure its queue delay.
+     *
+     * @param enqueueTime Uptime at which the message was posted.
+     */
+    public final void onStarted(final long enqueueTime) {
+        long now = mClock.uptimeMillis();
+        mAdmission.onStarted(now - enqueueTime, now);
+    }
+}
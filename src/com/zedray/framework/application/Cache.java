@@ -16,176 +16,738 @@
 
 package com.zedray.framework.application;
 
-import android.content.Context;
-import android.content.SharedPreferences;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 
 /***
- * Store application state information either permanently (in a properties
- * file), or in memory for the duration of the Application class lifecycle.
+ * Store application state information either permanently (in a CacheBackend),
+ * or in memory for the duration of the Application class lifecycle. Values
+ * are addressed by CacheKey, which resolves to a slot in a primitive array for
+ * int, long and boolean values, or an Object array otherwise. Persistent
+ * values are loaded from the CacheBackend the first time their slot is read
+ * and are written through on every set.
+ *
+ * Keys can be observed from the UI thread. A set only marks the key as
+ * changed and posts a single dispatch to the UI thread, so a burst of changes
+ * is delivered to each CacheObserver as one call carrying the latest value.
+ *
+ * Values that are not persistent can be carried across a process restart
+ * in a StateSnapshot: getTransientValues() captures them, and restore()
+ * supplies them as each slot is first loaded.
+ *
+ * Under MODERATE memory pressure, persistent String values that nobody is
+ * observing are evicted, to be loaded again from the CacheBackend when they
+ * are next read.
+ *
+ * All slots live in an immutable, versioned Snapshot behind a volatile
+ * reference. Writers hold the lock, copy the array they change and publish a
+ * new Snapshot; readers never take the lock once a slot is loaded. snapshot()
+ * returns a consistent view of many keys in one read, which writers keep
+ * running past.
  */
-public class Cache {
-    /** Preferences file name. **/
-    private static final String PREFS_FILE = "CACHE";
+public class Cache implements MemoryPressure.Trimmable {
+    /** Storage for all persistent values. **/
+    private final CacheBackend mBackend;
+    /** Latest version of all slots, replaced under the lock. **/
+    private volatile Snapshot mState = new Snapshot();
+    /** Restored values not yet loaded into a slot, by key name. **/
+    private Bundle mRestored;
+    /** Observers for each observed key. **/
+    private final Map<CacheKey<?>, List<CacheObserver<?>>> mObservers =
+        new HashMap<CacheKey<?>, List<CacheObserver<?>>>();
+    /** Observed keys that have changed since the last dispatch. **/
+    private final Set<CacheKey<?>> mChanged = new LinkedHashSet<CacheKey<?>>();
+    /** Handler for delivering changes on the UI thread. **/
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    /** Delivers all pending changes to their observers. **/
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatchChanges();
+        }
+    };
+
+    /***
+     * Immutable view of every slot of the Cache at one version. Only the
+     * keys passed to Cache.snapshot() are sure to be loaded, and reading a
+     * key that was not loaded throws IllegalStateException rather than
+     * returning its default value.
+     */
+    public static final class Snapshot {
+        /** Version, increased by every change. **/
+        private final long mVersion;
+        /** Slots for int values. **/
+        private int[] mInts;
+        /** Slots for long values. **/
+        private long[] mLongs;
+        /** Slots for boolean values. **/
+        private boolean[] mBooleans;
+        /** Slots for Object values. **/
+        private Object[] mObjects;
+        /** TRUE for each loaded slot, indexed by Kind then slot. **/
+        private boolean[][] mLoaded;
+
+        /***
+         * Constructor for the empty first version.
+         */
+        private Snapshot() {
+            mVersion = 0;
+            mInts = new int[0];
+            mLongs = new long[0];
+            mBooleans = new boolean[0];
+            mObjects = new Object[0];
+            mLoaded = new boolean[CacheKey.Kind.values().length][0];
+        }
+
+        /***
+         * Constructor for the next version, sharing all arrays with the
+         * previous one. The Cache copies any array before changing it, and
+         * only while the new version is unpublished.
+         *
+         * @param previous Previous version.
+         */
+        private Snapshot(final Snapshot previous) {
+            mVersion = previous.mVersion + 1;
+            mInts = previous.mInts;
+            mLongs = previous.mLongs;
+            mBooleans = previous.mBooleans;
+            mObjects = previous.mObjects;
+            mLoaded = previous.mLoaded.clone();
+        }
 
-    /** [Optional] Preferences ID for process X. **/
-    private static final String STATE_SHORT_TASK = "STATE_SHORT_TASK";
+        /***
+         * Returns the version of the Cache this Snapshot was taken at.
+         *
+         * @return Version, increased by every change.
+         */
+        public long getVersion() {
+            return mVersion;
+        }
 
-    /** [Optional] Preferences ID for process Y. **/
-    private static final String STATE_LONG_TASK = "STATE_LONG_TASK";
+        /***
+         * Get an int value.
+         *
+         * @param key Key declared with CacheKey.newInt().
+         * @return Value at this version.
+         */
+        public int getInt(final CacheKey<Integer> key) {
+            checkKind(key, CacheKey.Kind.INT);
+            checkLoaded(key);
+            return mInts[key.getSlot()];
+        }
 
-    /** [Optional] Preferences ID for WorkerThread Queue. **/
-    private static final String STATE_QUEUE = "STATE_QUEUE";
+        /***
+         * Get a long value.
+         *
+         * @param key Key declared with CacheKey.newLong().
+         * @return Value at this version.
+         */
+        public long getLong(final CacheKey<Long> key) {
+            checkKind(key, CacheKey.Kind.LONG);
+            checkLoaded(key);
+            return mLongs[key.getSlot()];
+        }
 
-    /** [Optional] Execution state. **/
-    private static final String STATE_PROCESS = "STATE_PROCESS";
+        /***
+         * Get a boolean value.
+         *
+         * @param key Key declared with CacheKey.newBoolean().
+         * @return Value at this version.
+         */
+        public boolean getBoolean(final CacheKey<Boolean> key) {
+            checkKind(key, CacheKey.Kind.BOOLEAN);
+            checkLoaded(key);
+            return mBooleans[key.getSlot()];
+        }
 
-    /** Cached application context. **/
-    private final Context mContext;
+        /***
+         * Get a value of any Kind. Primitive values are boxed.
+         *
+         * @param <T> Type of the value.
+         * @param key Key.
+         * @return Value at this version.
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T get(final CacheKey<T> key) {
+            checkLoaded(key);
+            int slot = key.getSlot();
+            switch (key.getKind()) {
+            case INT:
+                return (T) Integer.valueOf(mInts[slot]);
+            case LONG:
+                return (T) Long.valueOf(mLongs[slot]);
+            case BOOLEAN:
+                return (T) Boolean.valueOf(mBooleans[slot]);
+            default:
+                return (T) mObjects[slot];
+            }
+        }
+
+        /***
+         * Throw if the slot of a key was not loaded at this version.
+         *
+         * @param key Key.
+         */
+        private void checkLoaded(final CacheKey<?> key) {
+            if (!isLoaded(key)) {
+                throw new IllegalStateException("Cache.Snapshot.get() Key["
+                        + key + "] was not passed to Cache.snapshot()");
+            }
+        }
+
+        /***
+         * Returns TRUE if the slot of a key was loaded at this version.
+         *
+         * @param key Key.
+         * @return TRUE if loaded.
+         */
+        private boolean isLoaded(final CacheKey<?> key) {
+            boolean[] loaded = mLoaded[key.getKind().ordinal()];
+            return key.getSlot() < loaded.length && loaded[key.getSlot()];
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot[" + mVersion + "]";
+        }
+    }
 
     /***
-     * Constructor stores the application context.
+     * Constructor stores the backend used to persist values.
      *
-     * @param context Application context.
+     * @param backend Cache backend.
      */
-    protected Cache(final Context context) {
-        mContext = context;
+    protected Cache(final CacheBackend backend) {
+        mBackend = backend;
     }
 
     /***
-     * [Optional] Set the state of short task.
+     * Get an int value.
      *
-     * @param value State value.
+     * @param key Key declared with CacheKey.newInt().
+     * @return Current value.
      */
-    public final void setStateShortTask(final String value) {
-        setValue(mContext, STATE_SHORT_TASK, value);
+    public final int getInt(final CacheKey<Integer> key) {
+        return resolve(key, CacheKey.Kind.INT).mInts[key.getSlot()];
     }
 
     /***
-     * [Optional] Get the state of short task.
+     * Set an int value.
      *
-     * @return State value.
+     * @param key Key declared with CacheKey.newInt().
+     * @param value New value.
      */
-    public final String getStateShortTask() {
-        return getValue(mContext, STATE_SHORT_TASK, null);
+    public final synchronized void setInt(final CacheKey<Integer> key,
+            final int value) {
+        resolve(key, CacheKey.Kind.INT);
+        Snapshot next = new Snapshot(mState);
+        next.mInts = next.mInts.clone();
+        next.mInts[key.getSlot()] = value;
+        mState = next;
+        if (key.isPersistent()) {
+            mBackend.putInt(key.getName(), value);
+        }
+        changed(key);
     }
 
     /***
-     * [Optional] Set the state of long task.
+     * Get a long value.
      *
-     * @param value State value.
+     * @param key Key declared with CacheKey.newLong().
+     * @return Current value.
      */
-    public final void setStateLongTask(final String value) {
-        setValue(mContext, STATE_LONG_TASK, value);
+    public final long getLong(final CacheKey<Long> key) {
+        return resolve(key, CacheKey.Kind.LONG).mLongs[key.getSlot()];
     }
 
     /***
-     * [Optional] Get the state of long task.
+     * Set a long value.
      *
-     * @return State value.
+     * @param key Key declared with CacheKey.newLong().
+     * @param value New value.
      */
-    public final String getStateLongTask() {
-        return getValue(mContext, STATE_LONG_TASK, null);
+    public final synchronized void setLong(final CacheKey<Long> key,
+            final long value) {
+        resolve(key, CacheKey.Kind.LONG);
+        Snapshot next = new Snapshot(mState);
+        next.mLongs = next.mLongs.clone();
+        next.mLongs[key.getSlot()] = value;
+        mState = next;
+        if (key.isPersistent()) {
+            mBackend.putLong(key.getName(), value);
+        }
+        changed(key);
     }
 
     /***
-     * [Optional] Set the state of the WorkerThread Queue.
+     * Get a boolean value.
      *
-     * @param value State value.
+     * @param key Key declared with CacheKey.newBoolean().
+     * @return Current value.
      */
-    public final void setQueue(final String value) {
-        setValue(mContext, STATE_QUEUE, value);
+    public final boolean getBoolean(final CacheKey<Boolean> key) {
+        return resolve(key, CacheKey.Kind.BOOLEAN).mBooleans[key.getSlot()];
     }
 
     /***
-     * [Optional] Get the state of the WorkerThread Queue.
+     * Set a boolean value.
      *
-     * @return State value.
+     * @param key Key declared with CacheKey.newBoolean().
+     * @param value New value.
      */
-    public final String getQueue() {
-        return getValue(mContext, STATE_QUEUE, null);
+    public final synchronized void setBoolean(final CacheKey<Boolean> key,
+            final boolean value) {
+        resolve(key, CacheKey.Kind.BOOLEAN);
+        Snapshot next = new Snapshot(mState);
+        next.mBooleans = next.mBooleans.clone();
+        next.mBooleans[key.getSlot()] = value;
+        mState = next;
+        if (key.isPersistent()) {
+            mBackend.putBoolean(key.getName(), value);
+        }
+        changed(key);
     }
 
     /***
-     * [Optional] Set the execution state of a running Long task.
+     * Get a value of any Kind. Primitive values are boxed, so prefer the
+     * typed getters for int, long and boolean keys.
      *
-     * @param value Execution state.
+     * @param <T> Type of the value.
+     * @param key Key.
+     * @return Current value.
      */
-    public final void setLongProcessState(final int value) {
-        setValue(mContext, STATE_PROCESS, value);
+    public final <T> T get(final CacheKey<T> key) {
+        return resolve(key, key.getKind()).get(key);
     }
 
     /***
-     * [Optional] Get the execution state of a running Long task.
+     * Returns a consistent, immutable view of the Cache, after making sure
+     * the given keys are loaded. Once they are, this is a single read that
+     * takes no lock, and writers are never held up by the view. If onTrim()
+     * evicts one of the keys in the meantime, it is loaded again, so every
+     * key is loaded in the returned Snapshot.
      *
-     * @return Execution state.
+     * @param keys Keys to be read from the Snapshot.
+     * @return Snapshot of the latest version.
      */
-    public final int getLongProcessState() {
-        return getValue(mContext, STATE_PROCESS, -1);
+    public final Snapshot snapshot(final CacheKey<?>... keys) {
+        while (true) {
+            for (CacheKey<?> key : keys) {
+                resolve(key, key.getKind());
+            }
+            Snapshot state = mState;
+            boolean loaded = true;
+            for (CacheKey<?> key : keys) {
+                if (!state.isLoaded(key)) {
+                    loaded = false;
+                    break;
+                }
+            }
+            if (loaded) {
+                return state;
+            }
+        }
     }
 
     /***
-     * Set a value in the preferences file.
+     * Set a value of any Kind.
      *
-     * @param context Android context.
-     * @param key Preferences file parameter key.
-     * @param value Preference value.
+     * @param <T> Type of the value.
+     * @param key Key.
+     * @param value New value, which cannot be NULL for primitive keys.
      */
-    private static void setValue(final Context context,
-            final String key, final String value) {
-        SharedPreferences.Editor editor =
-            context.getSharedPreferences(PREFS_FILE, 0).edit();
-        editor.putString(key, value);
-        if (!editor.commit()) {
-            throw new NullPointerException(
-                    "MainApplication.setValue() Failed to set key[" + key
-                            + "] with value[" + value + "]");
+    @SuppressWarnings("unchecked")
+    public final synchronized <T> void set(final CacheKey<T> key,
+            final T value) {
+        switch (key.getKind()) {
+        case INT:
+            setInt((CacheKey<Integer>) key, (Integer) value);
+            break;
+        case LONG:
+            setLong((CacheKey<Long>) key, (Long) value);
+            break;
+        case BOOLEAN:
+            setBoolean((CacheKey<Boolean>) key, (Boolean) value);
+            break;
+        default:
+            resolve(key, CacheKey.Kind.OBJECT);
+            Snapshot next = new Snapshot(mState);
+            next.mObjects = next.mObjects.clone();
+            next.mObjects[key.getSlot()] = value;
+            mState = next;
+            if (key.isPersistent()) {
+                mBackend.putString(key.getName(), (String) value);
+            }
+            changed(key);
+            break;
         }
     }
 
     /***
-     * Get a value from the preferences file.
+     * Start observing a key. Must be called on the UI thread, and the
+     * observer receives the current value before this method returns.
      *
-     * @param context Android context.
-     * @param key Preferences file parameter key.
-     * @param defaultValue Preference value.
-     * @return Value as a String.
+     * @param <T> Type of the value.
+     * @param key Key to observe.
+     * @param observer Observer to notify of changes.
      */
-    private static String getValue(final Context context, final String key,
-            final String defaultValue) {
-        return context.getSharedPreferences(PREFS_FILE, 0).getString(key,
-                defaultValue);
+    public final <T> void observe(final CacheKey<T> key,
+            final CacheObserver<T> observer) {
+        if (observer == null) {
+            throw new NullPointerException("Cache.observe() Observer cannot "
+                    + "be NULL");
+        }
+        T value;
+        synchronized (this) {
+            List<CacheObserver<?>> observers = mObservers.get(key);
+            if (observers == null) {
+                observers = new ArrayList<CacheObserver<?>>();
+                mObservers.put(key, observers);
+            }
+            observers.add(observer);
+            value = get(key);
+        }
+        observer.onChanged(key, value);
     }
 
     /***
-     * Set a value in the preferences file.
+     * Stop observing a key. Must be called on the UI thread.
      *
-     * @param context Android context.
-     * @param key Preferences file parameter key.
-     * @param value Preference value.
+     * @param key Observed key.
+     * @param observer Observer to remove.
      */
-    private static void setValue(final Context context, final String key,
-            final int value) {
-        SharedPreferences.Editor editor = context.getSharedPreferences(
-                PREFS_FILE, 0).edit();
-        editor.putInt(key, value);
-        if (!editor.commit()) {
-            throw new NullPointerException(
-                    "MainApplication.setValue() Failed to set key[" + key
-                            + "] with value[" + value + "]");
+    public final synchronized void removeObserver(final CacheKey<?> key,
+            final CacheObserver<?> observer) {
+        List<CacheObserver<?>> observers = mObservers.get(key);
+        if (observers != null) {
+            observers.remove(observer);
+            if (observers.isEmpty()) {
+                mObservers.remove(key);
+            }
         }
     }
 
     /***
-     * Get a value from the preferences file.
+     * Record a change to an observed key, posting a dispatch to the UI thread
+     * unless one is already pending.
      *
-     * @param context Android context.
-     * @param key Preferences file parameter key.
-     * @param defaultValue Preference value.
-     * @return Value as a String.
+     * @param key Changed key.
+     */
+    private void changed(final CacheKey<?> key) {
+        if (mObservers.containsKey(key) && mChanged.add(key)
+                && mChanged.size() == 1) {
+            mHandler.post(mDispatch);
+        }
+    }
+
+    /***
+     * Deliver the latest value of every changed key to its observers, on the
+     * UI thread.
+     */
+    @SuppressWarnings("unchecked")
+    private void dispatchChanges() {
+        List<CacheKey<?>> keys;
+        List<Object> values = new ArrayList<Object>();
+        List<List<CacheObserver<?>>> observers =
+            new ArrayList<List<CacheObserver<?>>>();
+        synchronized (this) {
+            keys = new ArrayList<CacheKey<?>>(mChanged);
+            mChanged.clear();
+            for (CacheKey<?> key : keys) {
+                values.add(get(key));
+                List<CacheObserver<?>> keyObservers = mObservers.get(key);
+                observers.add(keyObservers == null
+                        ? new ArrayList<CacheObserver<?>>()
+                        : new ArrayList<CacheObserver<?>>(keyObservers));
+            }
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            CacheKey<Object> key = (CacheKey<Object>) keys.get(i);
+            for (CacheObserver<?> observer : observers.get(i)) {
+                ((CacheObserver<Object>) observer).onChanged(key,
+                        values.get(i));
+            }
+        }
+    }
+
+    /***
+     * Make sure the slot for the given key exists and has been loaded from the
+     * CacheBackend (or set to its default value). Only takes the lock if the
+     * slot still has to be loaded.
+     *
+     * @param key Key.
+     * @param kind Kind expected by the caller.
+     * @return Latest Snapshot, in which the slot is loaded.
+     */
+    private Snapshot resolve(final CacheKey<?> key,
+            final CacheKey.Kind kind) {
+        checkKind(key, kind);
+        Snapshot state = mState;
+        if (state.isLoaded(key)) {
+            return state;
+        }
+        synchronized (this) {
+            state = mState;
+            if (state.isLoaded(key)) {
+                return state;
+            }
+            Snapshot next = new Snapshot(state);
+            int slot = key.getSlot();
+            if (slot >= next.mLoaded[kind.ordinal()].length) {
+                grow(next, kind, CacheKey.getSlotCount(kind));
+            } else {
+                next.mLoaded[kind.ordinal()] =
+                    next.mLoaded[kind.ordinal()].clone();
+                copy(next, kind);
+            }
+            load(next, key, slot);
+            next.mLoaded[kind.ordinal()][slot] = true;
+            mState = next;
+            return next;
+        }
+    }
+
+    /***
+     * Throw if a key does not have the Kind expected by the caller.
+     *
+     * @param key Key.
+     * @param kind Expected Kind.
+     */
+    private static void checkKind(final CacheKey<?> key,
+            final CacheKey.Kind kind) {
+        if (key.getKind() != kind) {
+            throw new InvalidParameterException("Cache.resolve() Key["
+                    + key + "] has kind[" + key.getKind() + "], not["
+                    + kind + "]");
+        }
+    }
+
+    /***
+     * Give an unpublished Snapshot its own copy of the value array of a
+     * Kind.
+     *
+     * @param next Unpublished Snapshot.
+     * @param kind Storage Kind.
+     */
+    private static void copy(final Snapshot next, final CacheKey.Kind kind) {
+        switch (kind) {
+        case INT:
+            next.mInts = next.mInts.clone();
+            break;
+        case LONG:
+            next.mLongs = next.mLongs.clone();
+            break;
+        case BOOLEAN:
+            next.mBooleans = next.mBooleans.clone();
+            break;
+        default:
+            next.mObjects = next.mObjects.clone();
+            break;
+        }
+    }
+
+    /***
+     * Load the initial value of a slot into an unpublished Snapshot. Must be
+     * called while holding the lock.
+     *
+     * @param next Unpublished Snapshot.
+     * @param key Key.
+     * @param slot Slot index.
+     */
+    private void load(final Snapshot next, final CacheKey<?> key,
+            final int slot) {
+        String name = key.getName();
+        Object defaultValue = key.getDefaultValue();
+        boolean persistent = key.isPersistent();
+        if (!persistent && mRestored != null && mRestored.containsKey(name)) {
+            Object restored = mRestored.get(name);
+            mRestored.remove(name);
+            if (hasKind(restored, key.getKind())) {
+                defaultValue = restored;
+            }
+        }
+        switch (key.getKind()) {
+        case INT:
+            int intValue = (Integer) defaultValue;
+            next.mInts[slot] = persistent ? mBackend.getInt(name, intValue)
+                : intValue;
+            break;
+        case LONG:
+            long longValue = (Long) defaultValue;
+            next.mLongs[slot] = persistent ? mBackend.getLong(name, longValue)
+                : longValue;
+            break;
+        case BOOLEAN:
+            boolean booleanValue = (Boolean) defaultValue;
+            next.mBooleans[slot] = persistent ? mBackend.getBoolean(name,
+                    booleanValue) : booleanValue;
+            break;
+        default:
+            next.mObjects[slot] = persistent ? mBackend.getString(name,
+                    (String) defaultValue) : defaultValue;
+            break;
+        }
+    }
+
+    /***
+     * Returns TRUE if a restored value can be stored in a slot of the given
+     * Kind.
+     *
+     * @param value Restored value.
+     * @param kind Storage Kind.
+     * @return TRUE if the value has the right type.
+     */
+    private static boolean hasKind(final Object value,
+            final CacheKey.Kind kind) {
+        switch (kind) {
+        case INT:
+            return value instanceof Integer;
+        case LONG:
+            return value instanceof Long;
+        case BOOLEAN:
+            return value instanceof Boolean;
+        default:
+            return value instanceof String;
+        }
+    }
+
+    /***
+     * Grow the storage for a Kind in an unpublished Snapshot to hold the
+     * given number of slots. The grown arrays are new copies.
+     *
+     * @param next Unpublished Snapshot.
+     * @param kind Storage Kind.
+     * @param size Number of slots.
+     */
+    private static void grow(final Snapshot next, final CacheKey.Kind kind,
+            final int size) {
+        boolean[] loaded = new boolean[size];
+        System.arraycopy(next.mLoaded[kind.ordinal()], 0, loaded, 0,
+                next.mLoaded[kind.ordinal()].length);
+        next.mLoaded[kind.ordinal()] = loaded;
+        switch (kind) {
+        case INT:
+            int[] ints = new int[size];
+            System.arraycopy(next.mInts, 0, ints, 0, next.mInts.length);
+            next.mInts = ints;
+            break;
+        case LONG:
+            long[] longs = new long[size];
+            System.arraycopy(next.mLongs, 0, longs, 0, next.mLongs.length);
+            next.mLongs = longs;
+            break;
+        case BOOLEAN:
+            boolean[] booleans = new boolean[size];
+            System.arraycopy(next.mBooleans, 0, booleans, 0,
+                    next.mBooleans.length);
+            next.mBooleans = booleans;
+            break;
+        default:
+            Object[] objects = new Object[size];
+            System.arraycopy(next.mObjects, 0, objects, 0,
+                    next.mObjects.length);
+            next.mObjects = objects;
+            break;
+        }
+    }
+
+    /***
+     * Returns the loaded values that are not persistent, for a
+     * StateSnapshot. Object values other than Strings are left out.
+     *
+     * @return New Bundle of values by key name.
+     */
+    public final synchronized Bundle getTransientValues() {
+        Bundle values = new Bundle();
+        if (mRestored != null) {
+            values.putAll(mRestored);
+        }
+        Snapshot state = mState;
+        for (CacheKey<?> key : CacheKey.getKeys()) {
+            if (key.isPersistent() || !state.isLoaded(key)) {
+                continue;
+            }
+            String name = key.getName();
+            int slot = key.getSlot();
+            switch (key.getKind()) {
+            case INT:
+                values.putInt(name, state.mInts[slot]);
+                break;
+            case LONG:
+                values.putLong(name, state.mLongs[slot]);
+                break;
+            case BOOLEAN:
+                values.putBoolean(name, state.mBooleans[slot]);
+                break;
+            default:
+                if (state.mObjects[slot] instanceof String) {
+                    values.putString(name, (String) state.mObjects[slot]);
+                }
+                break;
+            }
+        }
+        return values;
+    }
+
+    /***
+     * Supply values captured by getTransientValues() in an earlier process.
+     * Each is used instead of the default value when its slot is first
+     * loaded, so must be called before the keys are read.
+     *
+     * @param values Values by key name.
+     */
+    public final synchronized void restore(final Bundle values) {
+        mRestored = values.isEmpty() ? null : new Bundle(values);
+    }
+
+    /***
+     * Evict the loaded persistent String values that are not observed, as
+     * they can be read back from the CacheBackend.
+     *
+     * @param level Severity of the memory pressure.
+     */
+    @Override
+    public final void onTrim(final MemoryPressure.Level level) {
+        if (level.compareTo(MemoryPressure.Level.MODERATE) < 0) {
+            return;
+        }
+        int evicted = 0;
+        synchronized (this) {
+            Snapshot next = new Snapshot(mState);
+            int kind = CacheKey.Kind.OBJECT.ordinal();
+            next.mLoaded[kind] = next.mLoaded[kind].clone();
+            next.mObjects = next.mObjects.clone();
+            for (CacheKey<?> key : CacheKey.getKeys()) {
+                if (key.getKind() == CacheKey.Kind.OBJECT
+                        && key.isPersistent() && next.isLoaded(key)
+                        && !mObservers.containsKey(key)) {
+                    next.mObjects[key.getSlot()] = null;
+                    next.mLoaded[kind][key.getSlot()] = false;
+                    evicted++;
+                }
+            }
+            if (evicted > 0) {
+                mState = next;
+            }
+        }
+        Log.i(MyApplication.LOG_TAG, "Cache.onTrim() Evicted [" + evicted
+                + "] values");
+    }
+
+    /***
+     * Release the resources held by the CacheBackend.
      */
-    private static int getValue(final Context context, final String key,
-            final int defaultValue) {
-        return context.getSharedPreferences(PREFS_FILE, 0).getInt(key,
-                defaultValue);
+    protected final void close() {
+        mBackend.close();
     }
 }
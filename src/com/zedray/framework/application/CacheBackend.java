@@ -0,0 +1,105 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.application;
+
+/***
+ * Storage used by the Cache to persist values between Application lifecycles.
+ * Implementations must be safe to call from both the UI thread and the
+ * WorkerThread.
+ */
+public interface CacheBackend {
+
+    /***
+     * Get a String value.
+     *
+     * @param key Value key.
+     * @param defaultValue Returned when the key is not stored.
+     * @return Stored value, or the default value.
+     */
+    String getString(String key, String defaultValue);
+
+    /***
+     * Store a String value.
+     *
+     * @param key Value key.
+     * @param value Value to store, NULL is allowed.
+     */
+    void putString(String key, String value);
+
+    /***
+     * Get an int value.
+     *
+     * @param key Value key.
+     * @param defaultValue Returned when the key is not stored.
+     * @return Stored value, or the default value.
+     */
+    int getInt(String key, int defaultValue);
+
+    /***
+     * Store an int value.
+     *
+     * @param key Value key.
+     * @param value Value to store.
+     */
+    void putInt(String key, int value);
+
+    /***
+     * Get a long value.
+     *
+     * @param key Value key.
+     * @param defaultValue Returned when the key is not stored.
+     * @return Stored value, or the default value.
+     */
+    long getLong(String key, long defaultValue);
+
+    /***
+     * Store a long value.
+     *
+     * @param key Value key.
+     * @param value Value to store.
+     */
+    void putLong(String key, long value);
+
+    /***
+     * Get a boolean value.
+     *
+     * @param key Value key.
+     * @param defaultValue Returned when the key is not stored.
+     * @return Stored value, or the default value.
+     */
+    boolean getBoolean(String key, boolean defaultValue);
+
+    /***
+     * Store a boolean value.
+     *
+     * @param key Value key.
+     * @param value Value to store.
+     */
+    void putBoolean(String key, boolean value);
+
+    /***
+     * Remove a value, so subsequent gets return their default value.
+     *
+     * @param key Value key.
+     */
+    void remove(String key);
+
+    /***
+     * Release any resources held by the backend.
+     */
+    void close();
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.application;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/***
+ * Typed key for a value held in the Cache. Each key is declared once (usually
+ * as a static final field) and is given a dense slot index within the storage
+ * for its Kind, so the Cache can read and write the value with a single array
+ * access. int, long and boolean values are stored unboxed.
+ *
+ * @param <T> Type of the value.
+ */
+public final class CacheKey<T> {
+
+    /***
+     * Storage used for the value of a key.
+     */
+    public enum Kind {
+        /** Unboxed int storage. **/
+        INT,
+        /** Unboxed long storage. **/
+        LONG,
+        /** Unboxed boolean storage. **/
+        BOOLEAN,
+        /** Object storage, persisted when the value is a String. **/
+        OBJECT
+    }
+
+    /** Next free slot index for each Kind. **/
+    private static final int[] NEXT_SLOT = new int[Kind.values().length];
+    /** Names of all the declared keys. **/
+    private static final Set<String> NAMES = new HashSet<String>();
+    /** All the declared keys, in declaration order. **/
+    private static final List<CacheKey<?>> KEYS = new ArrayList<CacheKey<?>>();
+
+    /** Unique key name, also used as the CacheBackend key. **/
+    private final String mName;
+    /** Storage Kind. **/
+    private final Kind mKind;
+    /** Slot index within the storage for the Kind. **/
+    private final int mSlot;
+    /** Value returned before the key has been set. **/
+    private final T mDefaultValue;
+    /** TRUE if the value should be stored in the CacheBackend. **/
+    private final boolean mPersistent;
+
+    /***
+     * Private constructor, use one of the static factory methods.
+     *
+     * @param name Unique key name.
+     * @param kind Storage Kind.
+     * @param defaultValue Value returned before the key has been set.
+     * @param persistent TRUE to store the value in the CacheBackend.
+     */
+    private CacheKey(final String name, final Kind kind,
+            final T defaultValue, final boolean persistent) {
+        if (name == null) {
+            throw new InvalidParameterException("CacheKey() Name cannot be "
+                    + "NULL");
+        }
+        synchronized (NAMES) {
+            if (!NAMES.add(name)) {
+                throw new InvalidParameterException("CacheKey() Key[" + name
+                        + "] has already been declared");
+            }
+            mSlot = NEXT_SLOT[kind.ordinal()]++;
+            KEYS.add(this);
+        }
+        mName = name;
+        mKind = kind;
+        mDefaultValue = defaultValue;
+        mPersistent = persistent;
+    }
+
+    /***
+     * Declare an int key.
+     *
+     * @param name Unique key name.
+     * @param defaultValue Value returned before the key has been set.
+     * @param persistent TRUE to store the value in the CacheBackend.
+     * @return New CacheKey.
+     */
+    public static CacheKey<Integer> newInt(final String name,
+            final int defaultValue, final boolean persistent) {
+        return new CacheKey<Integer>(name, Kind.INT, defaultValue,
+                persistent);
+    }
+
+    /***
+     * Declare a long key.
+     *
+     * @param name Unique key name.
+     * @param defaultValue Value returned before the key has been set.
+     * @param persistent TRUE to store the value in the CacheBackend.
+     * @return New CacheKey.
+     */
+    public static CacheKey<Long> newLong(final String name,
+            final long defaultValue, final boolean persistent) {
+        return new CacheKey<Long>(name, Kind.LONG, defaultValue, persistent);
+    }
+
+    /***
+     * Declare a boolean key.
+     *
+     * @param name Unique key name.
+     * @param defaultValue Value returned before the key has been set.
+     * @param persistent TRUE to store the value in the CacheBackend.
+     * @return New CacheKey.
+     */
+    public static CacheKey<Boolean> newBoolean(final String name,
+            final boolean defaultValue, final boolean persistent) {
+        return new CacheKey<Boolean>(name, Kind.BOOLEAN, defaultValue,
+                persistent);
+    }
+
+    /***
+     * Declare a String key.
+     *
+     * @param name Unique key name.
+     * @param defaultValue Value returned before the key has been set.
+     * @param persistent TRUE to store the value in the CacheBackend.
+     * @return New CacheKey.
+     */
+    public static CacheKey<String> newString(final String name,
+            final String defaultValue, final boolean persistent) {
+        return new CacheKey<String>(name, Kind.OBJECT, defaultValue,
+                persistent);
+    }
+
+    /***
+     * Declare a key for any other object. These values are only held in
+     * memory for the duration of the Application class lifecycle.
+     *
+     * @param <V> Type of the value.
+     * @param name Unique key name.
+     * @param defaultValue Value returned before the key has been set.
+     * @return New CacheKey.
+     */
+    public static <V> CacheKey<V> newObject(final String name,
+            final V defaultValue) {
+        return new CacheKey<V>(name, Kind.OBJECT, defaultValue, false);
+    }
+
+    /***
+     * Returns the number of slots declared for the given Kind.
+     *
+     * @param kind Storage Kind.
+     * @return Number of slots.
+     */
+    static int getSlotCount(final Kind kind) {
+        synchronized (NAMES) {
+            return NEXT_SLOT[kind.ordinal()];
+        }
+    }
+
+    /***
+     * Returns all the keys declared so far.
+     *
+     * @return Unmodifiable list of keys.
+     */
+    public static List<CacheKey<?>> getKeys() {
+        synchronized (NAMES) {
+            return Collections.unmodifiableList(
+                    new ArrayList<CacheKey<?>>(KEYS));
+        }
+    }
+
+    /***
+     * Returns the unique key name.
+     *
+     * @return Key name.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /***
+     * Returns the storage Kind.
+     *
+     * @return Kind.
+     */
+    public Kind getKind() {
+        return mKind;
+    }
+
+    /***
+     * Returns the slot index within the storage for the Kind.
+     *
+     * @return Slot index.
+     */
+    int getSlot() {
+        return mSlot;
+    }
+
+    /***
+     * Returns the value used before the key has been set.
+     *
+     * @return Default value.
+     */
+    public T getDefaultValue() {
+        return mDefaultValue;
+    }
+
+    /***
+     * Returns TRUE if the value is stored in the CacheBackend.
+     *
+     * @return TRUE if persistent.
+     */
+    public boolean isPersistent() {
+        return mPersistent;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.application;
+
+/***
+ * Receives changes to a Cache value on the UI thread. Changes made in quick
+ * succession are coalesced, so only the most recent value is delivered.
+ *
+ * @param <T> Type of the value.
+ */
+public interface CacheObserver<T> {
+
+    /***
+     * Called on the UI thread with the current value of the observed key.
+     *
+     * @param key Observed key.
+     * @param value Current value.
+     */
+    void onChanged(CacheKey<T> key, T value);
+}
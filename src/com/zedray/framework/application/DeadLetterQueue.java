@@ -0,0 +1,237 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zedray.framework.application;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import com.zedray.framework.utils.Type;
+
+/***
+ * Bounded store of messages whose Tasks kept failing after every retry. The
+ * oldest entry is discarded when the queue is full. Entries can be listed for
+ * inspection, and taken out to be posted again once the cause is fixed.
+ *
+ * Under MODERATE memory pressure the older half of the entries is discarded,
+ * and under CRITICAL pressure all of them.
+ */
+public class DeadLetterQueue implements MemoryPressure.Trimmable {
+
+    /***
+     * Failed message.
+     */
+    public static final class Entry {
+        /** Message Type. **/
+        private final Type mType;
+        /** Message Bundle, or NULL. **/
+        private final Bundle mBundle;
+        /** Number of attempts made. **/
+        private final int mAttempts;
+        /** Description of the last failure. **/
+        private final String mError;
+        /** Wall clock time at which the message was dead lettered. **/
+        private final long mTime;
+
+        /***
+         * Constructor.
+         *
+         * @param type Message Type.
+         * @param bundle Message Bundle, or NULL.
+         * @param attempts Number of attempts made.
+         * @param error Description of the last failure.
+         * @param time Wall clock time of the last failure.
+         */
+        private Entry(final Type type, final Bundle bundle,
+                final int attempts, final String error, final long time) {
+            mType = type;
+            mBundle = bundle;
+            mAttempts = attempts;
+            mError = error;
+            mTime = time;
+        }
+
+        /***
+         * Returns the message Type.
+         *
+         * @return Type.
+         */
+        public Type getType() {
+            return mType;
+        }
+
+        /***
+         * Returns the message Bundle.
+         *
+         * @return Bundle, or NULL.
+         */
+        public Bundle getBundle() {
+            return mBundle;
+        }
+
+        /***
+         * Returns the number of attempts made.
+         *
+         * @return Attempts.
+         */
+        public int getAttempts() {
+            return mAttempts;
+        }
+
+        /***
+         * Returns a description of the last failure.
+         *
+         * @return Error text.
+         */
+        public String getError() {
+            return mError;
+        }
+
+        /***
+         * Returns the wall clock time of the last failure.
+         *
+         * @return Milliseconds since the epoch.
+         */
+        public long getTime() {
+            return mTime;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry[" + mType + ", " + mAttempts + " attempts, "
+                + mError + "]";
+        }
+    }
+
+    /** Maximum number of entries. **/
+    private final int mCapacity;
+    /** Entries, oldest first. **/
+    private final LinkedList<Entry> mEntries = new LinkedList<Entry>();
+    /** Number of entries discarded because the queue was full. **/
+    private long mDiscarded = 0;
+
+    /***
+     * Constructor.
+     *
+     * @param capacity Maximum number of entries.
+     */
+    public DeadLetterQueue(final int capacity) {
+        if (capacity < 1) {
+            throw new InvalidParameterException("DeadLetterQueue() "
+                    + "Capacity[" + capacity + "] must be at least 1");
+        }
+        mCapacity = capacity;
+    }
+
+    /***
+     * Add a failed message, discarding the oldest entry if the queue is full.
+     *
+     * @param type Message Type.
+     * @param bundle Message Bundle, or NULL.
+     * @param attempts Number of attempts made.
+     * @param error Last failure.
+     * @return New Entry.
+     */
+    public final Entry add(final Type type, final Bundle bundle,
+            final int attempts, final Throwable error) {
+        Entry entry = new Entry(type, bundle, attempts, String.valueOf(error),
+                System.currentTimeMillis());
+        Log.w(MyApplication.LOG_TAG, "DeadLetterQueue.add() " + entry);
+        synchronized (this) {
+            if (mEntries.size() == mCapacity) {
+                mEntries.removeFirst();
+                mDiscarded++;
+            }
+            mEntries.addLast(entry);
+        }
+        return entry;
+    }
+
+    /***
+     * Returns the current entries.
+     *
+     * @return New list of entries, oldest first.
+     */
+    public final synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(mEntries);
+    }
+
+    /***
+     * Remove an entry, e.g. before posting its message again.
+     *
+     * @param entry Entry to remove.
+     * @return TRUE if the entry was in the queue.
+     */
+    public final synchronized boolean remove(final Entry entry) {
+        return mEntries.remove(entry);
+    }
+
+    /***
+     * Remove and return all entries.
+     *
+     * @return Removed entries, oldest first.
+     */
+    public final synchronized List<Entry> drain() {
+        List<Entry> entries = new ArrayList<Entry>(mEntries);
+        mEntries.clear();
+        return entries;
+    }
+
+    /***
+     * Discard older entries to release their message Bundles.
+     *
+     * @param level Severity of the memory pressure.
+     */
+    @Override
+    public final synchronized void onTrim(final MemoryPressure.Level level) {
+        int keep;
+        if (level == MemoryPressure.Level.CRITICAL) {
+            keep = 0;
+        } else if (level == MemoryPressure.Level.MODERATE) {
+            keep = mEntries.size() / 2;
+        } else {
+            return;
+        }
+        while (mEntries.size() > keep) {
+            mEntries.removeFirst();
+            mDiscarded++;
+        }
+    }
+
+    /***
+     * Returns the number of entries.
+     *
+     * @return Size.
+     */
+    public final synchronized int size() {
+        return mEntries.size();
+    }
+
+    /***
+     * Returns the number of entries discarded because the queue was full.
+     *
+     * @return Discarded entries.
+     */
+    public final synchronized long getDiscarded() {
+        return mDiscarded;
+    }
+}
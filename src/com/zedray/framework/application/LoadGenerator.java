@@ -0,0 +1,331 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.application;
+
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.InvalidParameterException;
+import java.util.EnumMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+
+import com.zedray.framework.utils.Type;
+import com.zedray.framework.utils.VirtualClock;
+
+/***
+ * Headless load generator, which replays a LoadTrace through the same
+ * AdmissionGate as the ServiceQueue on a VirtualClock. The Service is
+ * replaced by a fixed number of simulated carriers, each message taking an
+ * exponentially distributed service time for its Type, and posting a
+ * SHOW_DIALOG message to the UI when it completes. The Activity is
+ * subscribed and unsubscribed as the trace dictates; while none is
+ * subscribed the latest message is held, as the UiQueue does.
+ *
+ * No Android classes are used, so the generator runs on a plain JVM with
+ * main(). The whole run happens on the calling thread without sleeping, and
+ * the same trace, seed and settings always give the same LoadReport, so
+ * queue delay and throughput can be compared between builds.
+ */
+public class LoadGenerator {
+    /** Mean service time of a Type with no configured service time. **/
+    private static final long DEFAULT_SERVICE_TIME = 100;
+    /** [Optional] Number of carriers simulated by main(). **/
+    private static final int MAIN_CARRIERS = 2;
+    /** [Optional] Seed used by main(). **/
+    private static final long MAIN_SEED = 1;
+    /** [Optional] Length of the synthetic trace replayed by main(). **/
+    private static final long MAIN_DURATION = 60000;
+    /** [Optional] Arrivals per second of the synthetic trace. **/
+    private static final double MAIN_ARRIVAL_RATE = 15;
+    /** [Optional] Width of each window of the curves written by main(). **/
+    private static final long MAIN_WINDOW = 1000;
+
+    /** Number of simulated carriers. **/
+    private final int mCarriers;
+    /** Seed for the simulated service times. **/
+    private final long mSeed;
+    /** Mean service time in milliseconds for each Type. **/
+    private final Map<Type, Long> mServiceTimes =
+        new EnumMap<Type, Long>(Type.class);
+    /** Rate limit {permits per second, burst} for each Type. **/
+    private final Map<Type, double[]> mRateLimits =
+        new EnumMap<Type, double[]>(Type.class);
+
+    /***
+     * Replay a trace with the example app's settings and print the report.
+     * The curves are written as CSV to the given file, or to standard
+     * output, for comparing with a run of another build.
+     *
+     * Usage: LoadGenerator [TRACE_FILE|-] [CSV_FILE]
+     *
+     * @param args Optional trace file written by LoadTrace.write(), or "-"
+     *            for a synthetic trace, then an optional CSV file.
+     * @throws IOException If a file cannot be read or written.
+     */
+    public static void main(final String[] args) throws IOException {
+        LoadTrace trace;
+        if (args.length > 0 && !"-".equals(args[0])) {
+            Reader reader = new FileReader(args[0]);
+            try {
+                trace = LoadTrace.read(reader);
+            } finally {
+                reader.close();
+            }
+        } else {
+            Map<Type, Integer> mix = new EnumMap<Type, Integer>(Type.class);
+            mix.put(Type.DO_SHORT_TASK, 3);
+            mix.put(Type.DO_LONG_TASK, 1);
+            trace = LoadTrace.synthetic(MAIN_SEED, MAIN_DURATION,
+                    MAIN_ARRIVAL_RATE, mix, 5000, 2000);
+        }
+
+        LoadGenerator generator = new LoadGenerator(MAIN_CARRIERS,
+                MAIN_SEED);
+        generator.setServiceTime(Type.DO_SHORT_TASK, 50);
+        generator.setServiceTime(Type.DO_LONG_TASK, 400);
+        generator.setRateLimit(Type.DO_SHORT_TASK, 1, 5);
+        LoadReport report = generator.run(trace, MAIN_WINDOW);
+        System.err.println(report);
+
+        Writer writer = args.length > 1 ? new FileWriter(args[1])
+                : new OutputStreamWriter(System.out);
+        try {
+            report.writeCsv(writer);
+        } finally {
+            if (args.length > 1) {
+                writer.close();
+            }
+        }
+    }
+
+    /***
+     * Constructor.
+     *
+     * @param carriers Number of messages that can be serviced at once.
+     * @param seed Seed for the simulated service times.
+     */
+    public LoadGenerator(final int carriers, final long seed) {
+        if (carriers < 1) {
+            throw new InvalidParameterException("LoadGenerator() Carriers["
+                    + carriers + "] must be at least 1");
+        }
+        mCarriers = carriers;
+        mSeed = seed;
+    }
+
+    /***
+     * Set the mean service time of a Type.
+     *
+     * @param type Message Type.
+     * @param meanMillis Mean service time in milliseconds.
+     */
+    public final void setServiceTime(final Type type, final long meanMillis) {
+        mServiceTimes.put(type, meanMillis);
+    }
+
+    /***
+     * Apply a rate limit to a Type, as ServiceQueue.setRateLimit().
+     *
+     * @param type Message Type.
+     * @param permitsPerSecond Sustained rate of accepted messages.
+     * @param burst Number of messages that can be accepted at once.
+     */
+    public final void setRateLimit(final Type type,
+            final double permitsPerSecond, final int burst) {
+        mRateLimits.put(type, new double[] {permitsPerSecond, burst});
+    }
+
+    /***
+     * Replay a trace until every admitted message has completed.
+     *
+     * @param trace Trace to replay.
+     * @param window Width of each window of the report curves, in
+     *            milliseconds.
+     * @return Report of the run.
+     */
+    public final LoadReport run(final LoadTrace trace, final long window) {
+        return new Run(window).execute(trace);
+    }
+
+    /***
+     * State of a single run.
+     */
+    private final class Run {
+        /** Virtual clock driving the run. **/
+        private final VirtualClock mClock = new VirtualClock();
+        /** Results. **/
+        private final LoadReport mReport;
+        /** Source of service times. **/
+        private final Random mRandom = new Random(mSeed);
+        /** Admission decisions under test. **/
+        private final AdmissionGate mGate = new AdmissionGate(mClock);
+        /** Messages waiting for a carrier. **/
+        private final LinkedList<Request> mWaiting = new LinkedList<Request>();
+        /** Number of busy carriers. **/
+        private int mBusy = 0;
+        /** TRUE while an Activity is subscribed. **/
+        private boolean mSubscribed = false;
+        /** TRUE while a UI message is held for the next Activity. **/
+        private boolean mUiPending = false;
+
+        /***
+         * Constructor.
+         *
+         * @param window Width of each window of the report curves.
+         */
+        private Run(final long window) {
+            mReport = new LoadReport(window);
+            for (Map.Entry<Type, double[]> entry : mRateLimits.entrySet()) {
+                mGate.setRateLimit(entry.getKey(), entry.getValue()[0],
+                        (int) entry.getValue()[1]);
+            }
+        }
+
+        /***
+         * Schedule every trace event and run the clock until idle.
+         *
+         * @param trace Trace to replay.
+         * @return Report of the run.
+         */
+        private LoadReport execute(final LoadTrace trace) {
+            for (final LoadTrace.Event event : trace.getEvents()) {
+                mClock.scheduleAt(event.getTime(), new Runnable() {
+                    @Override
+                    public void run() {
+                        replay(event);
+                    }
+                });
+            }
+            mClock.runAll();
+            mReport.onFinished(mClock.uptimeMillis());
+            return mReport;
+        }
+
+        /***
+         * Apply a single trace event.
+         *
+         * @param event Trace event.
+         */
+        private void replay(final LoadTrace.Event event) {
+            switch (event.getKind()) {
+            case ARRIVAL:
+                mReport.onAdmission(event.getType(), post(event.getType()));
+                break;
+            case SUBSCRIBE:
+                mSubscribed = true;
+                if (mUiPending) {
+                    mUiPending = false;
+                    mReport.onUiDelivered();
+                }
+                break;
+            case UNSUBSCRIBE:
+                mSubscribed = false;
+                break;
+            default:
+                break;
+            }
+        }
+
+        /***
+         * Post a message, as ServiceQueue.postToService() does.
+         *
+         * @param type Message Type.
+         * @return ACCEPTED, or the reason the message was rejected.
+         */
+        private Admission post(final Type type) {
+            long now = mClock.uptimeMillis();
+            if (!mGate.tryAcquire(type, now)) {
+                return Admission.RATE_LIMITED;
+            }
+            if (!mGate.admit()) {
+                return Admission.OVERLOADED;
+            }
+            Request request = new Request(type, now);
+            if (mBusy < mCarriers) {
+                start(request);
+            } else {
+                mWaiting.add(request);
+            }
+            return Admission.ACCEPTED;
+        }
+
+        /***
+         * Start servicing a message on a free carrier.
+         *
+         * @param request Admitted message.
+         */
+        private void start(final Request request) {
+            mBusy++;
+            long now = mClock.uptimeMillis();
+            mGate.onStarted(request.mEnqueueTime);
+            mReport.onStarted(now, now - request.mEnqueueTime);
+
+            Long mean = mServiceTimes.get(request.mType);
+            mClock.schedule(Math.round(LoadTrace.exponential(mRandom,
+                    mean == null ? DEFAULT_SERVICE_TIME : mean)),
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            complete();
+                        }
+                    });
+        }
+
+        /***
+         * Free a carrier, notify the UI and start the next waiting message.
+         */
+        private void complete() {
+            mBusy--;
+            mReport.onCompleted(mClock.uptimeMillis());
+            mReport.onUiPosted();
+            if (mSubscribed) {
+                mReport.onUiDelivered();
+            } else {
+                mUiPending = true;
+            }
+            if (!mWaiting.isEmpty()) {
+                start(mWaiting.removeFirst());
+            }
+        }
+    }
+
+    /***
+     * Admitted message waiting for, or held by, a simulated carrier.
+     */
+    private static final class Request {
+        /** Message Type. **/
+        private final Type mType;
+        /** Virtual uptime at which the message was posted. **/
+        private final long mEnqueueTime;
+
+        /***
+         * Constructor.
+         *
+         * @param type Message Type.
+         * @param enqueueTime Virtual uptime at which it was posted.
+         */
+        private Request(final Type type, final long enqueueTime) {
+            mType = type;
+            mEnqueueTime = enqueueTime;
+        }
+    }
+}
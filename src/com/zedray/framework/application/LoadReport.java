@@ -0,0 +1,289 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.application;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.zedray.framework.utils.Type;
+
+/***
+ * Results of a LoadGenerator run: admission decisions per Type, the queue
+ * delay of every started message, throughput, and UI delivery. The queue
+ * delay and throughput curves over time are written with writeCsv(), so runs
+ * of different builds can be compared window by window.
+ */
+public class LoadReport {
+    /** Width of each window of the curves, in milliseconds. **/
+    private final long mWindow;
+    /** Admission counts for each Type, indexed by Admission ordinal. **/
+    private final Map<Type, long[]> mAdmissions =
+        new EnumMap<Type, long[]>(Type.class);
+    /** Virtual uptime at which each message started. **/
+    private final LongList mStartTimes = new LongList();
+    /** Queue delay of each started message. **/
+    private final LongList mDelays = new LongList();
+    /** Virtual uptime at which each message completed. **/
+    private final LongList mCompleteTimes = new LongList();
+    /** Number of messages posted to the UiQueue. **/
+    private long mUiPosted = 0;
+    /** Number of messages delivered to a subscribed Activity. **/
+    private long mUiDelivered = 0;
+    /** Virtual uptime at which the run ended. **/
+    private long mEndTime = 0;
+
+    /***
+     * Constructor.
+     *
+     * @param window Width of each window of the curves, in milliseconds.
+     */
+    LoadReport(final long window) {
+        mWindow = Math.max(1, window);
+    }
+
+    /***
+     * Record the admission decision for a posted message.
+     *
+     * @param type Message Type.
+     * @param admission Decision.
+     */
+    final void onAdmission(final Type type, final Admission admission) {
+        long[] counts = mAdmissions.get(type);
+        if (counts == null) {
+            counts = new long[Admission.values().length];
+            mAdmissions.put(type, counts);
+        }
+        counts[admission.ordinal()]++;
+    }
+
+    /***
+     * Record a message starting.
+     *
+     * @param time Virtual uptime.
+     * @param delay Time the message spent queued.
+     */
+    final void onStarted(final long time, final long delay) {
+        mStartTimes.add(time);
+        mDelays.add(delay);
+    }
+
+    /***
+     * Record a message completing.
+     *
+     * @param time Virtual uptime.
+     */
+    final void onCompleted(final long time) {
+        mCompleteTimes.add(time);
+    }
+
+    /***
+     * Record a message posted to the UiQueue.
+     */
+    final void onUiPosted() {
+        mUiPosted++;
+    }
+
+    /***
+     * Record a message delivered to a subscribed Activity.
+     */
+    final void onUiDelivered() {
+        mUiDelivered++;
+    }
+
+    /***
+     * Record the end of the run.
+     *
+     * @param time Virtual uptime.
+     */
+    final void onFinished(final long time) {
+        mEndTime = time;
+    }
+
+    /***
+     * Returns the number of posted messages of a Type with a given admission
+     * decision.
+     *
+     * @param type Message Type.
+     * @param admission Decision.
+     * @return Message count.
+     */
+    public final long getCount(final Type type, final Admission admission) {
+        long[] counts = mAdmissions.get(type);
+        return counts == null ? 0 : counts[admission.ordinal()];
+    }
+
+    /***
+     * Returns the number of completed messages.
+     *
+     * @return Completed count.
+     */
+    public final int getCompletedCount() {
+        return mCompleteTimes.size();
+    }
+
+    /***
+     * Returns the mean throughput over the whole run.
+     *
+     * @return Completed messages per second.
+     */
+    public final double getThroughput() {
+        return mEndTime == 0 ? 0 : mCompleteTimes.size() * 1000.0 / mEndTime;
+    }
+
+    /***
+     * Returns a percentile of the queue delay over the whole run.
+     *
+     * @param percentile Percentile, from 0 to 100.
+     * @return Queue delay in milliseconds, or 0 if nothing started.
+     */
+    public final long getDelayPercentile(final double percentile) {
+        return percentile(mDelays.toArray(), percentile);
+    }
+
+    /***
+     * Returns the number of messages delivered to a subscribed Activity.
+     *
+     * @return Delivered count.
+     */
+    public final long getUiDelivered() {
+        return mUiDelivered;
+    }
+
+    /***
+     * Write the queue delay and throughput curves, one line per window.
+     *
+     * @param writer Destination, which is not closed.
+     * @throws IOException If the destination cannot be written.
+     */
+    public final void writeCsv(final Writer writer) throws IOException {
+        int windows = (int) (mEndTime / mWindow) + 1;
+        long[] completed = new long[windows];
+        for (int i = 0; i < mCompleteTimes.size(); i++) {
+            completed[(int) (mCompleteTimes.get(i) / mWindow)]++;
+        }
+        LongList[] delays = new LongList[windows];
+        for (int i = 0; i < mStartTimes.size(); i++) {
+            int window = (int) (mStartTimes.get(i) / mWindow);
+            if (delays[window] == null) {
+                delays[window] = new LongList();
+            }
+            delays[window].add(mDelays.get(i));
+        }
+
+        writer.write("time,completed,throughput,started,p50_delay,p99_delay,"
+                + "max_delay\n");
+        for (int window = 0; window < windows; window++) {
+            long[] sorted = delays[window] == null ? new long[0]
+                    : delays[window].toArray();
+            writer.write(window * mWindow + "," + completed[window] + ","
+                    + completed[window] * 1000.0 / mWindow + ","
+                    + sorted.length + "," + percentile(sorted, 50) + ","
+                    + percentile(sorted, 99) + "," + percentile(sorted, 100)
+                    + "\n");
+        }
+        writer.flush();
+    }
+
+    @Override
+    public final String toString() {
+        StringBuilder builder = new StringBuilder("LoadReport[");
+        for (Map.Entry<Type, long[]> entry : mAdmissions.entrySet()) {
+            builder.append(entry.getKey()).append(Arrays.toString(
+                    entry.getValue())).append(", ");
+        }
+        return builder.append("completed[").append(getCompletedCount())
+                .append("] throughput[").append(getThroughput())
+                .append("/s] delay p50[").append(getDelayPercentile(50))
+                .append("ms] p99[").append(getDelayPercentile(99))
+                .append("ms] ui[").append(mUiDelivered).append("/")
+                .append(mUiPosted).append("]]").toString();
+    }
+
+    /***
+     * Returns a percentile of a set of values, using the nearest rank.
+     *
+     * @param values Values, which are sorted in place.
+     * @param percentile Percentile, from 0 to 100.
+     * @return Value at the percentile, or 0 if there are no values.
+     */
+    private static long percentile(final long[] values,
+            final double percentile) {
+        if (values.length == 0) {
+            return 0;
+        }
+        Arrays.sort(values);
+        int rank = (int) Math.ceil(percentile / 100 * values.length);
+        return values[Math.max(0, Math.min(values.length, rank) - 1)];
+    }
+
+    /***
+     * Growable list of primitive longs, to avoid boxing every sample.
+     */
+    private static final class LongList {
+        /** Values. **/
+        private long[] mValues = new long[64];
+        /** Number of values. **/
+        private int mSize = 0;
+
+        /***
+         * Append a value.
+         *
+         * @param value Value.
+         */
+        private void add(final long value) {
+            if (mSize == mValues.length) {
+                long[] values = new long[mSize * 2];
+                System.arraycopy(mValues, 0, values, 0, mSize);
+                mValues = values;
+            }
+            mValues[mSize++] = value;
+        }
+
+        /***
+         * Returns a value.
+         *
+         * @param index Index.
+         * @return Value.
+         */
+        private long get(final int index) {
+            return mValues[index];
+        }
+
+        /***
+         * Returns the number of values.
+         *
+         * @return Size.
+         */
+        private int size() {
+            return mSize;
+        }
+
+        /***
+         * Returns a copy of the values.
+         *
+         * @return New array.
+         */
+        private long[] toArray() {
+            long[] values = new long[mSize];
+            System.arraycopy(mValues, 0, values, 0, mSize);
+            return values;
+        }
+    }
+}
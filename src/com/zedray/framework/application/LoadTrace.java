@@ -0,0 +1,291 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.application;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import android.os.SystemClock;
+
+import com.zedray.framework.utils.Type;
+
+/***
+ * Time ordered list of load events for the LoadGenerator: messages posted to
+ * the ServiceQueue, and Activities subscribing to and unsubscribing from the
+ * UiQueue. A trace is either generated with synthetic(), read from a file
+ * written by write(), or recorded from a running application by setting it
+ * as the trace recorder of the ServiceQueue and UiQueue.
+ *
+ * The text form has one event per line: "time KIND [TYPE]", with the time in
+ * milliseconds from the start of the trace.
+ */
+public class LoadTrace {
+
+    /***
+     * Kinds of load event.
+     */
+    public enum Kind {
+        /** A message of the event Type is posted to the ServiceQueue. **/
+        ARRIVAL,
+        /** An Activity subscribes to the UiQueue. **/
+        SUBSCRIBE,
+        /** The subscribed Activity unsubscribes from the UiQueue. **/
+        UNSUBSCRIBE
+    }
+
+    /***
+     * Immutable load event.
+     */
+    public static final class Event {
+        /** Milliseconds from the start of the trace. **/
+        private final long mTime;
+        /** Kind of event. **/
+        private final Kind mKind;
+        /** Message Type for ARRIVAL events, NULL otherwise. **/
+        private final Type mType;
+
+        /***
+         * Constructor.
+         *
+         * @param time Milliseconds from the start of the trace.
+         * @param kind Kind of event.
+         * @param type Message Type for ARRIVAL events, NULL otherwise.
+         */
+        private Event(final long time, final Kind kind, final Type type) {
+            mTime = time;
+            mKind = kind;
+            mType = type;
+        }
+
+        /***
+         * Returns the time of the event.
+         *
+         * @return Milliseconds from the start of the trace.
+         */
+        public long getTime() {
+            return mTime;
+        }
+
+        /***
+         * Returns the kind of event.
+         *
+         * @return Kind.
+         */
+        public Kind getKind() {
+            return mKind;
+        }
+
+        /***
+         * Returns the message Type of an ARRIVAL event.
+         *
+         * @return Type, or NULL for other kinds of event.
+         */
+        public Type getType() {
+            return mType;
+        }
+
+        @Override
+        public String toString() {
+            return mTime + " " + mKind + (mType == null ? "" : " " + mType);
+        }
+    }
+
+    /** Events, in the order they were added. **/
+    private final List<Event> mEvents = new ArrayList<Event>();
+    /** Uptime of the first recorded event, or -1 before recording. **/
+    private long mRecordStart = -1;
+
+    /***
+     * Add an event.
+     *
+     * @param time Milliseconds from the start of the trace.
+     * @param kind Kind of event.
+     * @param type Message Type, required for ARRIVAL events only.
+     */
+    public final synchronized void add(final long time, final Kind kind,
+            final Type type) {
+        if (time < 0 || kind == null
+                || (kind == Kind.ARRIVAL && type == null)) {
+            throw new InvalidParameterException("LoadTrace.add() Invalid "
+                    + "event time[" + time + "] kind[" + kind + "] type["
+                    + type + "]");
+        }
+        mEvents.add(new Event(time, kind, kind == Kind.ARRIVAL ? type
+                : null));
+    }
+
+    /***
+     * Add an event happening now. Called by the ServiceQueue and UiQueue
+     * while recording; the trace starts at the first recorded event.
+     *
+     * @param kind Kind of event.
+     * @param type Message Type, required for ARRIVAL events only.
+     */
+    public final synchronized void record(final Kind kind, final Type type) {
+        long now = SystemClock.uptimeMillis();
+        if (mRecordStart < 0) {
+            mRecordStart = now;
+        }
+        add(now - mRecordStart, kind, type);
+    }
+
+    /***
+     * Returns the events in time order. Events at the same time keep the
+     * order in which they were added.
+     *
+     * @return New sorted list of events.
+     */
+    public final synchronized List<Event> getEvents() {
+        List<Event> events = new ArrayList<Event>(mEvents);
+        Collections.sort(events, new Comparator<Event>() {
+            @Override
+            public int compare(final Event a, final Event b) {
+                return a.mTime < b.mTime ? -1 : (a.mTime > b.mTime ? 1 : 0);
+            }
+        });
+        return events;
+    }
+
+    /***
+     * Write the trace in its text form.
+     *
+     * @param writer Destination, which is not closed.
+     * @throws IOException If the destination cannot be written.
+     */
+    public final void write(final Writer writer) throws IOException {
+        for (Event event : getEvents()) {
+            writer.write(event.toString());
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /***
+     * Read a trace from its text form. Blank lines and lines starting with
+     * '#' are ignored.
+     *
+     * @param reader Source, which is not closed.
+     * @return New LoadTrace.
+     * @throws IOException If the source cannot be read or is malformed.
+     */
+    public static LoadTrace read(final Reader reader) throws IOException {
+        LoadTrace trace = new LoadTrace();
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            try {
+                Kind kind = Kind.valueOf(fields[1]);
+                trace.add(Long.parseLong(fields[0]), kind,
+                        fields.length > 2 ? Type.valueOf(fields[2]) : null);
+            } catch (RuntimeException e) {
+                throw new IOException("LoadTrace.read() Malformed line["
+                        + lineNumber + "] " + line);
+            }
+        }
+        return trace;
+    }
+
+    /***
+     * Generate a synthetic trace. Messages arrive as a Poisson process and
+     * each picks its Type at random with the given weights. An Activity is
+     * subscribed at the start and then alternates between being hidden and
+     * visible, for exponentially distributed periods.
+     *
+     * @param seed Random seed, so the same arguments give the same trace.
+     * @param duration Length of the trace in milliseconds.
+     * @param arrivalsPerSecond Mean message arrival rate.
+     * @param mix Relative weight of each message Type.
+     * @param meanVisible Mean time an Activity stays subscribed, or 0 to
+     *            stay subscribed for the whole trace.
+     * @param meanHidden Mean time no Activity is subscribed.
+     * @return New LoadTrace.
+     */
+    public static LoadTrace synthetic(final long seed, final long duration,
+            final double arrivalsPerSecond, final Map<Type, Integer> mix,
+            final long meanVisible, final long meanHidden) {
+        if (arrivalsPerSecond <= 0 || mix == null || mix.isEmpty()) {
+            throw new InvalidParameterException("LoadTrace.synthetic() "
+                    + "Arrival rate and Type mix are required");
+        }
+        Random random = new Random(seed);
+        LoadTrace trace = new LoadTrace();
+
+        int totalWeight = 0;
+        for (int weight : mix.values()) {
+            totalWeight += weight;
+        }
+        double time = 0;
+        while (true) {
+            time += exponential(random, 1000 / arrivalsPerSecond);
+            if (time >= duration) {
+                break;
+            }
+            int pick = random.nextInt(totalWeight);
+            for (Map.Entry<Type, Integer> entry : mix.entrySet()) {
+                pick -= entry.getValue();
+                if (pick < 0) {
+                    trace.add((long) time, Kind.ARRIVAL, entry.getKey());
+                    break;
+                }
+            }
+        }
+
+        trace.add(0, Kind.SUBSCRIBE, null);
+        if (meanVisible > 0) {
+            time = 0;
+            boolean visible = true;
+            while (true) {
+                time += exponential(random, visible ? meanVisible
+                        : meanHidden);
+                if (time >= duration) {
+                    break;
+                }
+                visible = !visible;
+                trace.add((long) time, visible ? Kind.SUBSCRIBE
+                        : Kind.UNSUBSCRIBE, null);
+            }
+        }
+        return trace;
+    }
+
+    /***
+     * Returns an exponentially distributed random value.
+     *
+     * @param random Source of randomness.
+     * @param mean Mean value.
+     * @return Random value.
+     */
+    static double exponential(final Random random, final double mean) {
+        return -mean * Math.log(1 - random.nextDouble());
+    }
+}
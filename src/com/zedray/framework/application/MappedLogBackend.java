@@ -0,0 +1,566 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.application;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidParameterException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/***
+ * CacheBackend which stores values in a memory mapped, append only log file.
+ * Every put appends a single checksummed record, so the cost of a write does
+ * not depend on the number of stored keys. Loading maps the file and indexes
+ * each key to the offset of its most recent record; values are only decoded
+ * when they are read.
+ *
+ * Record layout: [int crc][int length][byte type][short key length][key]
+ * [value], where the CRC32 covers the length bytes following the header. A
+ * torn write at the end of the log fails its checksum and is discarded on the
+ * next load. Superseded records are removed by a background compaction, which
+ * rewrites the live records to a new file and renames it over the old one.
+ */
+public class MappedLogBackend implements CacheBackend {
+    /** File signature "ZKV1". **/
+    private static final int MAGIC = 0x5A4B5631;
+    /** Size of the file header: magic. **/
+    private static final int HEADER_SIZE = 4;
+    /** Size of each record header: crc + length. **/
+    private static final int RECORD_HEADER_SIZE = 8;
+    /** Offset of the value within a record body: type + key length. **/
+    private static final int BODY_HEADER_SIZE = 3;
+    /** Initial size of the mapped region. **/
+    private static final int INITIAL_SIZE = 16 * 1024;
+    /** Minimum amount of superseded data before a compaction is started. **/
+    private static final int COMPACT_THRESHOLD = 16 * 1024;
+
+    /** Record type for a String value. **/
+    private static final byte TYPE_STRING = 1;
+    /** Record type for a NULL String value. **/
+    private static final byte TYPE_NULL = 2;
+    /** Record type for an int value. **/
+    private static final byte TYPE_INT = 3;
+    /** Record type for a long value. **/
+    private static final byte TYPE_LONG = 4;
+    /** Record type for a boolean value. **/
+    private static final byte TYPE_BOOLEAN = 5;
+    /** Record type for a removed key. **/
+    private static final byte TYPE_REMOVED = 6;
+
+    /** Log file. **/
+    private final File mFile;
+    /** Open log file. **/
+    private RandomAccessFile mRandomAccessFile;
+    /** Mapped region of the log file. **/
+    private MappedByteBuffer mBuffer;
+    /** Offset at which the next record will be appended. **/
+    private int mWritePos;
+    /** Number of bytes used by records that are still current. **/
+    private int mLiveBytes;
+    /** Offset of the most recent record for each key. **/
+    private Map<String, Integer> mIndex = new HashMap<String, Integer>();
+    /** TRUE while a background compaction is running. **/
+    private boolean mCompacting = false;
+    /** Reused checksum calculator, guarded by this. **/
+    private final CRC32 mCrc = new CRC32();
+
+    /***
+     * Constructor opens (or creates) the given log file, maps it into memory
+     * and indexes the stored records.
+     *
+     * @param file Log file.
+     * @throws IOException If the file cannot be opened or mapped.
+     */
+    public MappedLogBackend(final File file) throws IOException {
+        mFile = file;
+        open();
+    }
+
+    @Override
+    public final synchronized String getString(final String key,
+            final String defaultValue) {
+        Integer offset = mIndex.get(key);
+        if (offset == null) {
+            return defaultValue;
+        }
+        byte type = checkType(offset, key, TYPE_STRING, TYPE_NULL);
+        if (type == TYPE_NULL) {
+            return null;
+        }
+        int valueOffset = valueOffset(offset);
+        int valueLength = offset + RECORD_HEADER_SIZE
+            + mBuffer.getInt(offset + 4) - valueOffset;
+        return fromUtf8(read(mBuffer, valueOffset, valueLength));
+    }
+
+    @Override
+    public final synchronized void putString(final String key,
+            final String value) {
+        if (value == null) {
+            append(key, TYPE_NULL, new byte[0]);
+        } else {
+            append(key, TYPE_STRING, toUtf8(value));
+        }
+    }
+
+    @Override
+    public final synchronized int getInt(final String key,
+            final int defaultValue) {
+        Integer offset = mIndex.get(key);
+        if (offset == null) {
+            return defaultValue;
+        }
+        checkType(offset, key, TYPE_INT, TYPE_INT);
+        return mBuffer.getInt(valueOffset(offset));
+    }
+
+    @Override
+    public final synchronized void putInt(final String key, final int value) {
+        append(key, TYPE_INT, ByteBuffer.allocate(4).putInt(value).array());
+    }
+
+    @Override
+    public final synchronized long getLong(final String key,
+            final long defaultValue) {
+        Integer offset = mIndex.get(key);
+        if (offset == null) {
+            return defaultValue;
+        }
+        checkType(offset, key, TYPE_LONG, TYPE_LONG);
+        return mBuffer.getLong(valueOffset(offset));
+    }
+
+    @Override
+    public final synchronized void putLong(final String key,
+            final long value) {
+        append(key, TYPE_LONG, ByteBuffer.allocate(8).putLong(value).array());
+    }
+
+    @Override
+    public final synchronized boolean getBoolean(final String key,
+            final boolean defaultValue) {
+        Integer offset = mIndex.get(key);
+        if (offset == null) {
+            return defaultValue;
+        }
+        checkType(offset, key, TYPE_BOOLEAN, TYPE_BOOLEAN);
+        return mBuffer.get(valueOffset(offset)) != 0;
+    }
+
+    @Override
+    public final synchronized void putBoolean(final String key,
+            final boolean value) {
+        append(key, TYPE_BOOLEAN, new byte[] {(byte) (value ? 1 : 0)});
+    }
+
+    @Override
+    public final synchronized void remove(final String key) {
+        if (mIndex.containsKey(key)) {
+            append(key, TYPE_REMOVED, new byte[0]);
+        }
+    }
+
+    @Override
+    public final synchronized void close() {
+        if (mBuffer != null) {
+            mBuffer.force();
+            mBuffer = null;
+        }
+        closeFile();
+    }
+
+    /***
+     * Open and map the log file, then rebuild the index from its records.
+     * Records are scanned until the first empty or corrupt record, after
+     * which the rest of the mapped region is cleared so that the next append
+     * cannot be followed by stale data.
+     *
+     * @throws IOException If the file cannot be opened or mapped.
+     */
+    private void open() throws IOException {
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        long length = mRandomAccessFile.length();
+        mBuffer = map(mRandomAccessFile, (int) Math.max(length, INITIAL_SIZE));
+        mIndex = new HashMap<String, Integer>();
+        mLiveBytes = 0;
+
+        if (length < HEADER_SIZE || mBuffer.getInt(0) != MAGIC) {
+            if (length > 0) {
+                Log.w(MyApplication.LOG_TAG, "MappedLogBackend.open() "
+                        + "Discarding unrecognised file[" + mFile + "]");
+            }
+            clear(0, mBuffer.capacity());
+            mBuffer.putInt(0, MAGIC);
+            mWritePos = HEADER_SIZE;
+            return;
+        }
+
+        int pos = HEADER_SIZE;
+        int capacity = mBuffer.capacity();
+        while (pos + RECORD_HEADER_SIZE <= capacity) {
+            int crc = mBuffer.getInt(pos);
+            int bodyLength = mBuffer.getInt(pos + 4);
+            if (bodyLength <= 0) {
+                /** End of the log. **/
+                break;
+            }
+            if (bodyLength < BODY_HEADER_SIZE
+                    || pos + RECORD_HEADER_SIZE + bodyLength > capacity
+                    || checksum(read(mBuffer, pos + RECORD_HEADER_SIZE,
+                            bodyLength)) != crc) {
+                Log.w(MyApplication.LOG_TAG, "MappedLogBackend.open() "
+                        + "Discarding corrupt record at offset[" + pos + "]");
+                clear(pos, capacity);
+                break;
+            }
+            index(readKey(pos), pos);
+            pos += RECORD_HEADER_SIZE + bodyLength;
+        }
+        mWritePos = pos;
+    }
+
+    /***
+     * Append a record to the log and point the key index at it. The body is
+     * written before the header, so a crash part way through leaves either an
+     * empty length field or a checksum mismatch.
+     *
+     * @param key Value key.
+     * @param type Record type.
+     * @param value Encoded value.
+     * @throws InvalidParameterException If the encoded key is longer than
+     *             Short.MAX_VALUE bytes.
+     */
+    private void append(final String key, final byte type,
+            final byte[] value) {
+        byte[] keyBytes = toUtf8(key);
+        if (keyBytes.length > Short.MAX_VALUE) {
+            throw new InvalidParameterException("MappedLogBackend.append() "
+                    + "Key length[" + keyBytes.length + "] is longer than ["
+                    + Short.MAX_VALUE + "] bytes");
+        }
+        int bodyLength = BODY_HEADER_SIZE + keyBytes.length + value.length;
+        ByteBuffer body = ByteBuffer.allocate(bodyLength);
+        body.put(type);
+        body.putShort((short) keyBytes.length);
+        body.put(keyBytes);
+        body.put(value);
+
+        ensureCapacity(RECORD_HEADER_SIZE + bodyLength);
+        int pos = mWritePos;
+        mBuffer.position(pos + RECORD_HEADER_SIZE);
+        mBuffer.put(body.array());
+        mBuffer.putInt(pos, checksum(body.array()));
+        mBuffer.putInt(pos + 4, bodyLength);
+        mWritePos = pos + RECORD_HEADER_SIZE + bodyLength;
+
+        index(key, pos);
+        maybeCompact();
+    }
+
+    /***
+     * Point the index for a key at the given record, updating the live byte
+     * count.
+     *
+     * @param key Value key.
+     * @param offset Record offset.
+     */
+    private void index(final String key, final int offset) {
+        Integer previous = mIndex.remove(key);
+        if (previous != null) {
+            mLiveBytes -= recordSize(mBuffer, previous);
+        }
+        if (mBuffer.get(offset + RECORD_HEADER_SIZE) != TYPE_REMOVED) {
+            mIndex.put(key, offset);
+            mLiveBytes += recordSize(mBuffer, offset);
+        }
+    }
+
+    /***
+     * Start a background compaction once superseded records take up more
+     * space than the live ones.
+     */
+    private void maybeCompact() {
+        int garbage = mWritePos - HEADER_SIZE - mLiveBytes;
+        if (!mCompacting && garbage > COMPACT_THRESHOLD
+                && garbage > mLiveBytes) {
+            mCompacting = true;
+            new Thread("MappedLogBackend") {
+                @Override
+                public void run() {
+                    compact();
+                }
+            } .start();
+        }
+    }
+
+    /***
+     * Rewrite all live records into a new file. The bulk of the copy happens
+     * without holding the lock, as records are never modified once written.
+     * Records appended while the copy was running are then copied under the
+     * lock before the new file replaces the old one. The new file is mapped
+     * before it is renamed over the old one, so if anything fails the
+     * backend keeps using the old file and mapping.
+     */
+    private void compact() {
+        File compactFile = new File(mFile.getPath() + ".compact");
+        RandomAccessFile out = null;
+        try {
+            Map<String, Integer> index;
+            ByteBuffer source;
+            synchronized (this) {
+                index = new HashMap<String, Integer>(mIndex);
+                source = mBuffer.duplicate();
+            }
+
+            out = new RandomAccessFile(compactFile, "rw");
+            out.setLength(0);
+            out.writeInt(MAGIC);
+            Map<Integer, Integer> moved = new HashMap<Integer, Integer>();
+            for (Integer offset : index.values()) {
+                moved.put(offset, (int) out.getFilePointer());
+                out.write(read(source, offset, recordSize(source, offset)));
+            }
+
+            synchronized (this) {
+                Map<String, Integer> newIndex =
+                    new HashMap<String, Integer>();
+                for (Map.Entry<String, Integer> entry : mIndex.entrySet()) {
+                    Integer newOffset = moved.get(entry.getValue());
+                    if (newOffset == null) {
+                        /** Written during the copy. **/
+                        newOffset = (int) out.getFilePointer();
+                        out.write(read(mBuffer, entry.getValue(),
+                                recordSize(mBuffer, entry.getValue())));
+                    }
+                    newIndex.put(entry.getKey(), newOffset);
+                }
+                int length = (int) out.getFilePointer();
+                out.getFD().sync();
+                MappedByteBuffer buffer = map(out,
+                        Math.max(length * 2, INITIAL_SIZE));
+
+                if (!compactFile.renameTo(mFile)) {
+                    throw new IOException("Unable to rename["
+                            + compactFile + "]");
+                }
+                closeFile();
+                mRandomAccessFile = out;
+                out = null;
+                mBuffer = buffer;
+                mIndex = newIndex;
+                mWritePos = length;
+                mLiveBytes = length - HEADER_SIZE;
+                mCompacting = false;
+            }
+
+        } catch (IOException e) {
+            Log.e(MyApplication.LOG_TAG, "MappedLogBackend.compact() "
+                    + "Failed to compact[" + mFile + "]", e);
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                    // Do nothing.
+                }
+            }
+            compactFile.delete();
+            synchronized (this) {
+                mCompacting = false;
+            }
+        }
+    }
+
+    /***
+     * Grow the mapped region so that the given number of bytes can be
+     * appended.
+     *
+     * @param size Number of bytes to append.
+     */
+    private void ensureCapacity(final int size) {
+        int capacity = mBuffer.capacity();
+        if (mWritePos + size <= capacity) {
+            return;
+        }
+        try {
+            mBuffer = map(mRandomAccessFile,
+                    Math.max(capacity * 2, mWritePos + size));
+        } catch (IOException e) {
+            throw new IllegalStateException("MappedLogBackend."
+                    + "ensureCapacity() Unable to grow[" + mFile + "]", e);
+        }
+    }
+
+    /***
+     * Map the first size bytes of an open file, growing the file if
+     * necessary.
+     *
+     * @param file Open file.
+     * @param size Size of the mapped region.
+     * @return Mapped region.
+     * @throws IOException If the region cannot be mapped.
+     */
+    private static MappedByteBuffer map(final RandomAccessFile file,
+            final int size) throws IOException {
+        return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /***
+     * Close the open file, keeping any mapped buffer usable.
+     */
+    private void closeFile() {
+        if (mRandomAccessFile != null) {
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException e) {
+                Log.w(MyApplication.LOG_TAG, "MappedLogBackend.closeFile() "
+                        + "Failed to close[" + mFile + "]");
+            }
+            mRandomAccessFile = null;
+        }
+    }
+
+    /***
+     * Zero the given region of the mapped buffer.
+     *
+     * @param from First offset to clear.
+     * @param to Offset after the last byte to clear.
+     */
+    private void clear(final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            mBuffer.put(i, (byte) 0);
+        }
+    }
+
+    /***
+     * Check the type of the record at the given offset.
+     *
+     * @param offset Record offset.
+     * @param key Value key, used for error reporting.
+     * @param expected Expected record type.
+     * @param alternative Alternative record type.
+     * @return Record type.
+     */
+    private byte checkType(final int offset, final String key,
+            final byte expected, final byte alternative) {
+        byte type = mBuffer.get(offset + RECORD_HEADER_SIZE);
+        if (type != expected && type != alternative) {
+            throw new ClassCastException("MappedLogBackend.checkType() "
+                    + "Key[" + key + "] has type[" + type + "]");
+        }
+        return type;
+    }
+
+    /***
+     * Returns the offset of the value in the record at the given offset.
+     *
+     * @param offset Record offset.
+     * @return Value offset.
+     */
+    private int valueOffset(final int offset) {
+        return offset + RECORD_HEADER_SIZE + BODY_HEADER_SIZE
+            + mBuffer.getShort(offset + RECORD_HEADER_SIZE + 1);
+    }
+
+    /***
+     * Decode the key of the record at the given offset.
+     *
+     * @param offset Record offset.
+     * @return Key.
+     */
+    private String readKey(final int offset) {
+        int keyOffset = offset + RECORD_HEADER_SIZE + BODY_HEADER_SIZE;
+        return fromUtf8(read(mBuffer, keyOffset,
+                mBuffer.getShort(keyOffset - 2)));
+    }
+
+    /***
+     * Returns the total size of the record at the given offset.
+     *
+     * @param buffer Buffer containing the record.
+     * @param offset Record offset.
+     * @return Record size in bytes.
+     */
+    private static int recordSize(final ByteBuffer buffer, final int offset) {
+        return RECORD_HEADER_SIZE + buffer.getInt(offset + 4);
+    }
+
+    /***
+     * Copy bytes out of a buffer without changing its position.
+     *
+     * @param buffer Source buffer.
+     * @param offset First byte to copy.
+     * @param length Number of bytes to copy.
+     * @return Copied bytes.
+     */
+    private static byte[] read(final ByteBuffer buffer, final int offset,
+            final int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return bytes;
+    }
+
+    /***
+     * Calculate the checksum of a record body.
+     *
+     * @param body Record body.
+     * @return CRC32 value.
+     */
+    private int checksum(final byte[] body) {
+        mCrc.reset();
+        mCrc.update(body, 0, body.length);
+        return (int) mCrc.getValue();
+    }
+
+    /***
+     * Encode a String as UTF-8.
+     *
+     * @param value String to encode.
+     * @return Encoded bytes.
+     */
+    private static byte[] toUtf8(final String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /***
+     * Decode a UTF-8 String.
+     *
+     * @param bytes Encoded bytes.
+     * @return Decoded String.
+     */
+    private static String fromUtf8(final byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zedray.framework.application;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.util.Log;
+
+/***
+ * Central coordinator for memory pressure. Components that hold memory they
+ * can give back register as a Trimmable, and are told to shrink whenever the
+ * platform reports pressure through onLowMemory() or onTrimMemory(), or when
+ * trim() is called directly. Each Level includes the work of the levels below
+ * it, so a component compares the Level it is given against the lowest Level
+ * at which each of its reductions applies.
+ *
+ * The TRIM_MEMORY_* values passed to onTrimMemory() from API 14 onwards are
+ * defined here, as this project builds against an older platform. This class
+ * has no Android dependencies beyond logging, which is skipped off the device,
+ * so it can be driven from plain JVM tests through trim().
+ */
+public class MemoryPressure {
+
+    /***
+     * Graded memory pressure, in increasing order of severity.
+     */
+    public enum Level {
+        /** Memory is getting low: drop anything that is cheap to recreate. **/
+        LOW,
+        /** Memory is low: also evict caches and shrink retained results. **/
+        MODERATE,
+        /** The process is about to be killed: spill and release everything. **/
+        CRITICAL
+    }
+
+    /***
+     * Component that can release memory when asked.
+     */
+    public interface Trimmable {
+
+        /***
+         * Release memory according to the given Level. Called on the thread
+         * that reported the pressure, usually the UI thread, so must not
+         * block for long.
+         *
+         * @param level Severity of the pressure.
+         */
+        void onTrim(Level level);
+    }
+
+    /** ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE. **/
+    public static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+    /** ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW. **/
+    public static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    /** ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL. **/
+    public static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+    /** ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN. **/
+    public static final int TRIM_MEMORY_UI_HIDDEN = 20;
+    /** ComponentCallbacks2.TRIM_MEMORY_BACKGROUND. **/
+    public static final int TRIM_MEMORY_BACKGROUND = 40;
+    /** ComponentCallbacks2.TRIM_MEMORY_MODERATE. **/
+    public static final int TRIM_MEMORY_MODERATE = 60;
+    /** ComponentCallbacks2.TRIM_MEMORY_COMPLETE. **/
+    public static final int TRIM_MEMORY_COMPLETE = 80;
+
+    /** FALSE on a plain JVM, where android.util.Log is only a stub. **/
+    private static final boolean LOGGING =
+        "Dalvik".equals(System.getProperty("java.vm.name"));
+
+    /** Registered components. **/
+    private final List<Trimmable> mTrimmables =
+        new CopyOnWriteArrayList<Trimmable>();
+    /** Most recent Level, or NULL if there has been no pressure. **/
+    private volatile Level mLastLevel;
+
+    /***
+     * Register a component to be trimmed.
+     *
+     * @param trimmable Component.
+     */
+    public final void register(final Trimmable trimmable) {
+        if (trimmable == null) {
+            throw new NullPointerException("MemoryPressure.register() "
+                    + "Trimmable cannot be NULL");
+        }
+        mTrimmables.add(trimmable);
+    }
+
+    /***
+     * Stop trimming a component.
+     *
+     * @param trimmable Component.
+     */
+    public final void unregister(final Trimmable trimmable) {
+        mTrimmables.remove(trimmable);
+    }
+
+    /***
+     * Tell every registered component to shrink. A component that fails is
+     * logged and skipped, so it cannot stop the others from trimming.
+     *
+     * @param level Severity of the pressure.
+     */
+    public final void trim(final Level level) {
+        mLastLevel = level;
+        if (LOGGING) {
+            Log.w(MyApplication.LOG_TAG, "MemoryPressure.trim() Level["
+                    + level + "] trimming [" + mTrimmables.size()
+                    + "] components");
+        }
+        for (Trimmable trimmable : mTrimmables) {
+            try {
+                trimmable.onTrim(level);
+            } catch (RuntimeException e) {
+                if (LOGGING) {
+                    Log.e(MyApplication.LOG_TAG, "MemoryPressure.trim() "
+                            + "Trimmable[" + trimmable + "] failed", e);
+                }
+            }
+        }
+    }
+
+    /***
+     * Called from Application.onLowMemory(), which means the whole system is
+     * low on memory and background processes are being killed.
+     */
+    public final void onLowMemory() {
+        trim(Level.CRITICAL);
+    }
+
+    /***
+     * Called from Application.onTrimMemory(), mapping the platform value to
+     * a Level.
+     *
+     * @param platformLevel One of the TRIM_MEMORY_* values.
+     */
+    public final void onTrimMemory(final int platformLevel) {
+        Level level = getLevel(platformLevel);
+        if (level != null) {
+            trim(level);
+        }
+    }
+
+    /***
+     * Returns the most recent Level.
+     *
+     * @return Level, or NULL if there has been no pressure.
+     */
+    public final Level getLastLevel() {
+        return mLastLevel;
+    }
+
+    /***
+     * Map a platform trim value to a Level. A hidden UI or a process at the
+     * top of the background list only needs a light trim; a process running
+     * low, or in the middle of the background list, a moderate one; and a
+     * process about to be killed a critical one.
+     *
+     * @param platformLevel One of the TRIM_MEMORY_* values.
+     * @return Level, or NULL if there is no pressure.
+     */
+    static Level getLevel(final int platformLevel) {
+        if (platformLevel >= TRIM_MEMORY_COMPLETE) {
+            return Level.CRITICAL;
+        } else if (platformLevel >= TRIM_MEMORY_MODERATE) {
+            return Level.MODERATE;
+        } else if (platformLevel >= TRIM_MEMORY_UI_HIDDEN) {
+            return Level.LOW;
+        } else if (platformLevel >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            return Level.CRITICAL;
+        } else if (platformLevel >= TRIM_MEMORY_RUNNING_LOW) {
+            return Level.MODERATE;
+        } else if (platformLevel >= TRIM_MEMORY_RUNNING_MODERATE) {
+            return Level.LOW;
+        }
+        return null;
+    }
+}
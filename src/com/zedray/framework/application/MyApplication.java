@@ -16,22 +16,88 @@
 
 package com.zedray.framework.application;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.security.InvalidParameterException;
+
 import android.app.Application;
+import android.os.Process;
+import android.util.Log;
+
+import com.zedray.framework.service.ExecutionPolicy;
+import com.zedray.framework.service.LongTask;
+import com.zedray.framework.service.ShortTask;
+import com.zedray.framework.service.TaskHandler;
+import com.zedray.framework.service.TaskRegistry;
+import com.zedray.framework.utils.Keys;
+import com.zedray.framework.utils.Type;
 
 /***
  * Application class persists for the duration of the JRE, and is used to store
  * all the persistence classes (database + cache) and for storing the message
- * handling framework (ServiceQueue + UiQueue).
+ * handling framework (ServiceQueue + UiQueue). State that would be lost when
+ * the process is killed is saved to a StateSnapshot, and restored when the
+ * Application is next created.
  */
 public class MyApplication extends Application {
     /** [Optional] Tag for all application logs. **/
     public static final String LOG_TAG = "MyApplication";
+    /** Name of the Cache log file, stored in the application files folder. **/
+    private static final String CACHE_FILE = "cache.log";
+    /** Preferences file name, used if the Cache log cannot be opened. **/
+    private static final String PREFS_FILE = "CACHE";
+    /***
+     * [Optional] Set to TRUE to record posted messages and Activity churn,
+     * for replaying with the LoadGenerator.
+     */
+    private static final boolean RECORD_TRACE = false;
+    /** Name of the recorded trace file. **/
+    private static final String TRACE_FILE = "load.trace";
+    /** [Optional] Longest acceptable UI thread lag, in milliseconds. **/
+    private static final long UI_LAG_SLO = 500;
+    /** [Optional] Sustained rate of accepted short task requests. **/
+    private static final double SHORT_TASK_RATE = 1;
+    /** [Optional] Number of short task requests accepted in a burst. **/
+    private static final int SHORT_TASK_BURST = 5;
+    /** Number of failed messages kept in the DeadLetterQueue. **/
+    private static final int DEAD_LETTER_CAPACITY = 50;
+    /***
+     * [Optional] Number of routing key shards in each ExecutionClass, which
+     * is the most Tasks of a class with routing keys that can run at once.
+     */
+    private static final int ROUTING_SHARDS = 4;
     /** Lazy loaded ServiceQueue. **/
     private ServiceQueue mServiceQueue;
     /** Lazy loaded UiQueue. **/
     private UiQueue mUiQueue;
     /** Lazy loaded Cache. **/
     private Cache mCache;
+    /** Lazy loaded TaskHistory. **/
+    private TaskHistory mTaskHistory;
+    /** Lazy loaded TaskEventLog. **/
+    private TaskEventLog mTaskEvents;
+    /** Lazy loaded Watchdog. **/
+    private Watchdog mWatchdog;
+    /** Lazy loaded StateSnapshot. **/
+    private StateSnapshot mStateSnapshot;
+    /** Guards mSnapshotDirty and mSnapshotThread. **/
+    private final Object mSnapshotLock = new Object();
+    /** TRUE when a save has been requested since the last one started. **/
+    private boolean mSnapshotDirty = false;
+    /** Background thread writing the StateSnapshot, started on demand. **/
+    private Thread mSnapshotThread;
+    /** Lazy loaded MemoryPressure coordinator. **/
+    private MemoryPressure mMemoryPressure;
+    /** Lazy loaded DeadLetterQueue. **/
+    private DeadLetterQueue mDeadLetterQueue;
+    /** Handlers creating the Task for each message code. **/
+    private final TaskRegistry mTaskRegistry = new TaskRegistry();
+    /** Recorded load, when RECORD_TRACE is set. **/
+    private LoadTrace mTrace;
+    /** Number of routing key shards used by the next WorkerThread. **/
+    private int mRoutingShards = ROUTING_SHARDS;
     /** TODO: Add a lazy loaded database helper. **/
     // private DatabaseHelper mDb;
 
@@ -43,10 +109,58 @@ public class MyApplication extends Application {
     public final synchronized ServiceQueue getServiceQueue() {
         if (mServiceQueue == null) {
             mServiceQueue = new ServiceQueue(this);
+            mServiceQueue.setRateLimit(Type.DO_SHORT_TASK, SHORT_TASK_RATE,
+                    SHORT_TASK_BURST);
+            for (Type type : Type.values()) {
+                TaskHandler handler = mTaskRegistry.get(type);
+                if (handler != null) {
+                    applyPolicy(type, handler.getPolicy());
+                }
+            }
+            mServiceQueue.setTraceRecorder(getTrace());
         }
         return mServiceQueue;
     }
 
+    /***
+     * Returns the lazy loaded LoadTrace being recorded.
+     *
+     * @return LoadTrace, or NULL if RECORD_TRACE is not set.
+     */
+    private synchronized LoadTrace getTrace() {
+        if (RECORD_TRACE && mTrace == null) {
+            mTrace = new LoadTrace();
+        }
+        return mTrace;
+    }
+
+    /***
+     * Write the recorded LoadTrace so far to TRACE_FILE, if RECORD_TRACE is
+     * set. Called by the Service whenever it stops.
+     */
+    public final void saveTrace() {
+        LoadTrace trace = getTrace();
+        if (trace == null) {
+            return;
+        }
+        Writer writer = null;
+        try {
+            writer = new FileWriter(new File(getFilesDir(), TRACE_FILE));
+            trace.write(writer);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "MyApplication.saveTrace() Unable to write "
+                    + "trace", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // Do nothing.
+                }
+            }
+        }
+    }
+
     /***
      * Returns the lazy loaded UiQueue.
      *
@@ -55,6 +169,7 @@ public class MyApplication extends Application {
     public final synchronized UiQueue getUiQueue() {
         if (mUiQueue == null) {
             mUiQueue = new UiQueue();
+            mUiQueue.setTraceRecorder(getTrace());
         }
         return mUiQueue;
     }
@@ -66,11 +181,282 @@ public class MyApplication extends Application {
      */
     public final synchronized Cache getCache() {
         if (mCache == null) {
-            mCache = new Cache(this);
+            mCache = new Cache(createCacheBackend());
+            getMemoryPressure().register(mCache);
         }
         return mCache;
     }
 
+    /***
+     * Create the backend used to persist the Cache, falling back to a
+     * preferences file if the memory mapped log cannot be opened.
+     *
+     * @return CacheBackend
+     */
+    private CacheBackend createCacheBackend() {
+        File file = new File(getFilesDir(), CACHE_FILE);
+        try {
+            return new MappedLogBackend(file);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "MyApplication.createCacheBackend() Unable to "
+                    + "open[" + file + "], using preferences instead", e);
+            return new SharedPreferencesBackend(this, PREFS_FILE);
+        }
+    }
+
+    /***
+     * Returns the lazy loaded and started Watchdog, which writes diagnostic
+     * dumps to the application files folder.
+     *
+     * @return Watchdog
+     */
+    public final synchronized Watchdog getWatchdog() {
+        if (mWatchdog == null) {
+            mWatchdog = new Watchdog(getFilesDir(), UI_LAG_SLO);
+            mWatchdog.addDiagnostic("Queue", new Watchdog.Diagnostic() {
+                @Override
+                public String describe() {
+                    return getCache().get(Keys.STATE_QUEUE);
+                }
+            });
+            mWatchdog.start();
+        }
+        return mWatchdog;
+    }
+
+    /***
+     * Returns the lazy loaded TaskHistory, stored in the application files
+     * folder.
+     *
+     * @return TaskHistory
+     */
+    public final synchronized TaskHistory getTaskHistory() {
+        if (mTaskHistory == null) {
+            mTaskHistory = new TaskHistory(getFilesDir());
+        }
+        return mTaskHistory;
+    }
+
+    /***
+     * Returns the lazy loaded TaskEventLog, stored in the application files
+     * folder. Opening it replays the log of earlier processes.
+     *
+     * @return TaskEventLog
+     */
+    public final synchronized TaskEventLog getTaskEvents() {
+        if (mTaskEvents == null) {
+            mTaskEvents = new TaskEventLog(getFilesDir());
+        }
+        return mTaskEvents;
+    }
+
+    /***
+     * Returns the lazy loaded StateSnapshot, stored in the application files
+     * folder.
+     *
+     * @return StateSnapshot
+     */
+    private synchronized StateSnapshot getStateSnapshot() {
+        if (mStateSnapshot == null) {
+            mStateSnapshot = new StateSnapshot(getFilesDir());
+        }
+        return mStateSnapshot;
+    }
+
+    /***
+     * Ask for the in-memory Cache values and all unfinished messages to be
+     * written to the StateSnapshot. Called when an Activity leaves the
+     * screen, when the Service stops and under memory pressure, so the state
+     * is collected and written on a background thread. Requests made while a
+     * save is running are merged into one more save.
+     */
+    public final void saveSnapshot() {
+        synchronized (mSnapshotLock) {
+            mSnapshotDirty = true;
+            if (mSnapshotThread == null) {
+                mSnapshotThread = new Thread("StateSnapshot") {
+                    @Override
+                    public void run() {
+                        runSnapshotWriter();
+                    }
+                };
+                mSnapshotThread.setDaemon(true);
+                mSnapshotThread.start();
+            } else {
+                mSnapshotLock.notifyAll();
+            }
+        }
+    }
+
+    /***
+     * Background thread loop, saving the StateSnapshot each time
+     * saveSnapshot() has been called.
+     */
+    private void runSnapshotWriter() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            synchronized (mSnapshotLock) {
+                while (!mSnapshotDirty) {
+                    try {
+                        mSnapshotLock.wait();
+                    } catch (InterruptedException e) {
+                        // Do nothing.
+                    }
+                }
+                mSnapshotDirty = false;
+            }
+            getStateSnapshot().save(getCache().getTransientValues(),
+                    getServiceQueue().getPendingMessages(),
+                    getUiQueue().getPendingMessage());
+        }
+    }
+
+    /***
+     * Restore the state saved by the previous process, if any, and delete
+     * the StateSnapshot so it is only restored once.
+     */
+    private void restoreSnapshot() {
+        StateSnapshot snapshot = getStateSnapshot();
+        StateSnapshot.Image image = snapshot.load();
+        if (image == null) {
+            return;
+        }
+        snapshot.delete();
+        getCache().restore(image.getCacheValues());
+        getUiQueue().restore(image.getUiMessage());
+        getServiceQueue().restore(image.getServiceMessages());
+    }
+
+    /***
+     * Returns the lazy loaded MemoryPressure coordinator, with which
+     * components register to be trimmed when memory is low.
+     *
+     * @return MemoryPressure
+     */
+    public final synchronized MemoryPressure getMemoryPressure() {
+        if (mMemoryPressure == null) {
+            mMemoryPressure = new MemoryPressure();
+            mMemoryPressure.register(new MemoryPressure.Trimmable() {
+                @Override
+                public void onTrim(final MemoryPressure.Level level) {
+                    /** Spilled Bundles are read back by the save. **/
+                    saveSnapshot();
+                }
+            });
+        }
+        return mMemoryPressure;
+    }
+
+    /***
+     * Trim every registered component when the system is low on memory.
+     */
+    @Override
+    public final void onLowMemory() {
+        getMemoryPressure().onLowMemory();
+        super.onLowMemory();
+    }
+
+    /***
+     * Trim every registered component according to the platform level. Not
+     * annotated with Override, as it only exists from API 14, where the
+     * platform calls it.
+     *
+     * @param level One of the MemoryPressure.TRIM_MEMORY_* values.
+     */
+    public final void onTrimMemory(final int level) {
+        getMemoryPressure().onTrimMemory(level);
+    }
+
+    /***
+     * Returns the lazy loaded DeadLetterQueue, holding messages whose Tasks
+     * failed on every attempt.
+     *
+     * @return DeadLetterQueue
+     */
+    public final synchronized DeadLetterQueue getDeadLetterQueue() {
+        if (mDeadLetterQueue == null) {
+            mDeadLetterQueue = new DeadLetterQueue(DEAD_LETTER_CAPACITY);
+            getMemoryPressure().register(mDeadLetterQueue);
+        }
+        return mDeadLetterQueue;
+    }
+
+    /***
+     * Returns the registry of TaskHandlers.
+     *
+     * @return TaskRegistry
+     */
+    public final TaskRegistry getTaskRegistry() {
+        return mTaskRegistry;
+    }
+
+    /***
+     * Returns the number of routing key shards.
+     *
+     * @return Number of shards.
+     */
+    public final synchronized int getRoutingShards() {
+        return mRoutingShards;
+    }
+
+    /***
+     * Set the number of routing key shards in each ExecutionClass, which is
+     * the most Tasks of a class with routing keys that can run at once.
+     * Fewer shards make unrelated keys more likely to wait for each other;
+     * more shards let more keyed Tasks compete for the carriers. Takes
+     * effect when the Service next starts a WorkerThread.
+     *
+     * @param shards Number of shards, at least 1.
+     */
+    public final synchronized void setRoutingShards(final int shards) {
+        if (shards < 1) {
+            throw new InvalidParameterException("MyApplication."
+                    + "setRoutingShards() Shards[" + shards
+                    + "] must be at least 1");
+        }
+        mRoutingShards = shards;
+    }
+
+    /***
+     * Register the TaskHandler for a Type of message, and apply its
+     * ExecutionPolicy to the ServiceQueue.
+     *
+     * @param type Message Type.
+     * @param handler TaskHandler.
+     */
+    public final synchronized void registerTaskHandler(final Type type,
+            final TaskHandler handler) {
+        mTaskRegistry.register(type, handler);
+        if (mServiceQueue != null) {
+            applyPolicy(type, handler.getPolicy());
+        }
+    }
+
+    /***
+     * Apply the queueing part of an ExecutionPolicy to the ServiceQueue.
+     * Must be called while holding the lock.
+     *
+     * @param type Message Type.
+     * @param policy ExecutionPolicy.
+     */
+    private void applyPolicy(final Type type, final ExecutionPolicy policy) {
+        mServiceQueue.setTimeouts(type, policy.getTimeout(),
+                policy.getMaxRunTime());
+        mServiceQueue.setInlineThreshold(type, policy.getInlineThreshold());
+    }
+
+    /***
+     * Start watching the UI thread as soon as the Application is created.
+     */
+    @Override
+    public final void onCreate() {
+        super.onCreate();
+        registerTaskHandler(Type.DO_SHORT_TASK, new ShortTask.Handler());
+        registerTaskHandler(Type.DO_LONG_TASK, new LongTask.Handler());
+        restoreSnapshot();
+        getWatchdog();
+    }
+
     /***
      * Returns the lazy loaded DatabaseHelper.
      *
@@ -88,7 +474,22 @@ public class MyApplication extends Application {
     public final void onTerminate() {
         mServiceQueue = null;
         mUiQueue = null;
-        mCache = null;
+        if (mTaskHistory != null) {
+            mTaskHistory.close();
+            mTaskHistory = null;
+        }
+        if (mTaskEvents != null) {
+            mTaskEvents.close();
+            mTaskEvents = null;
+        }
+        if (mWatchdog != null) {
+            mWatchdog.shutdown();
+            mWatchdog = null;
+        }
+        if (mCache != null) {
+            mCache.close();
+            mCache = null;
+        }
         //mDb = null;
         super.onTerminate();
     }
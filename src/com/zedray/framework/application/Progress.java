@@ -0,0 +1,66 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.application;
+
+/***
+ * Immutable progress value published by a running task.
+ */
+public final class Progress {
+    /** Percentage used when no task is running. **/
+    public static final int IDLE = -1;
+    /** Progress value used when no task is running. **/
+    public static final Progress NONE = new Progress(IDLE, "");
+
+    /** Percent complete, or IDLE. **/
+    private final int mPercent;
+    /** Status or partial result text. **/
+    private final String mText;
+
+    /***
+     * Constructor.
+     *
+     * @param percent Percent complete, or IDLE.
+     * @param text Status or partial result text.
+     */
+    public Progress(final int percent, final String text) {
+        mPercent = percent;
+        mText = text;
+    }
+
+    /***
+     * Returns the percent complete.
+     *
+     * @return Percent complete, or IDLE when no task is running.
+     */
+    public int getPercent() {
+        return mPercent;
+    }
+
+    /***
+     * Returns the status or partial result text.
+     *
+     * @return Text.
+     */
+    public String getText() {
+        return mText;
+    }
+
+    @Override
+    public String toString() {
+        return "Progress[" + mPercent + "%, " + mText + "]";
+    }
+}
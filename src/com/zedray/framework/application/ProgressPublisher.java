@@ -0,0 +1,242 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.application;
+
+import java.security.InvalidParameterException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/***
+ * Stream of progress values from a running task, modelled on a reactive
+ * Publisher with demand signalling. Each Subscriber receives values on its
+ * own Handler, and only after it has requested them. Instead of buffering,
+ * each Subscription keeps just the latest undelivered value, so a slow or
+ * backgrounded Subscriber sees the most recent progress when it next has
+ * demand and publish() never blocks. A Subscription can also be sampled, in
+ * which case values are delivered at most once per sample interval.
+ *
+ * @param <T> Type of the published values.
+ */
+public class ProgressPublisher<T> {
+
+    /***
+     * Receives values from a ProgressPublisher.
+     *
+     * @param <T> Type of the published values.
+     */
+    public interface Subscriber<T> {
+
+        /***
+         * Called on the subscribing thread, before any values are delivered.
+         * Nothing is delivered until Subscription.request() is called.
+         *
+         * @param subscription Subscription used to signal demand.
+         */
+        void onSubscribe(Subscription subscription);
+
+        /***
+         * Called on the Subscriber's Handler with the latest value.
+         *
+         * @param value Latest published value.
+         */
+        void onNext(T value);
+    }
+
+    /***
+     * Link between a ProgressPublisher and one of its Subscribers.
+     */
+    public interface Subscription {
+
+        /***
+         * Allow up to n more values to be delivered.
+         *
+         * @param n Number of values, greater than zero.
+         */
+        void request(long n);
+
+        /***
+         * Stop delivering values and release the Subscription.
+         */
+        void cancel();
+    }
+
+    /** Active subscriptions. **/
+    private final List<SubscriptionImpl> mSubscriptions =
+        new CopyOnWriteArrayList<SubscriptionImpl>();
+    /** Most recently published value, replayed to new Subscribers. **/
+    private volatile T mLatest;
+
+    /***
+     * Publish a value to all Subscribers. Never blocks.
+     *
+     * @param value New value.
+     */
+    public final void publish(final T value) {
+        mLatest = value;
+        for (SubscriptionImpl subscription : mSubscriptions) {
+            subscription.offer(value);
+        }
+    }
+
+    /***
+     * Returns the most recently published value.
+     *
+     * @return Latest value, or NULL if nothing has been published.
+     */
+    public final T getLatest() {
+        return mLatest;
+    }
+
+    /***
+     * Subscribe to the stream. The Subscriber is offered the latest value
+     * straight away, which it receives once it has requested it.
+     *
+     * @param subscriber Subscriber.
+     * @param handler Handler on which values are delivered.
+     * @param sampleInterval Minimum time in milliseconds between deliveries,
+     *            or 0 to deliver as soon as there is demand.
+     * @return New Subscription, which is also passed to onSubscribe().
+     */
+    public final Subscription subscribe(final Subscriber<T> subscriber,
+            final Handler handler, final long sampleInterval) {
+        if (subscriber == null || handler == null) {
+            throw new NullPointerException("ProgressPublisher.subscribe() "
+                    + "Subscriber and Handler cannot be NULL");
+        }
+        SubscriptionImpl subscription = new SubscriptionImpl(subscriber,
+                handler, sampleInterval);
+        mSubscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+        T latest = mLatest;
+        if (latest != null) {
+            subscription.offer(latest);
+        }
+        return subscription;
+    }
+
+    /***
+     * Subscription holding at most one undelivered value.
+     */
+    private final class SubscriptionImpl implements Subscription, Runnable {
+        /** Subscriber to deliver to. **/
+        private final Subscriber<T> mSubscriber;
+        /** Handler on which values are delivered. **/
+        private final Handler mHandler;
+        /** Minimum time between deliveries. **/
+        private final long mSampleInterval;
+        /** Latest undelivered value. **/
+        private T mPending;
+        /** TRUE if mPending holds an undelivered value. **/
+        private boolean mHasPending = false;
+        /** Number of values the Subscriber is willing to receive. **/
+        private long mDemand = 0;
+        /** TRUE while a delivery is posted to the Handler. **/
+        private boolean mScheduled = false;
+        /** TRUE once cancel() has been called. **/
+        private boolean mCancelled = false;
+        /** Uptime of the last delivery. **/
+        private long mLastDelivery = 0;
+
+        /***
+         * Constructor.
+         *
+         * @param subscriber Subscriber to deliver to.
+         * @param handler Handler on which values are delivered.
+         * @param sampleInterval Minimum time between deliveries.
+         */
+        private SubscriptionImpl(final Subscriber<T> subscriber,
+                final Handler handler, final long sampleInterval) {
+            mSubscriber = subscriber;
+            mHandler = handler;
+            mSampleInterval = sampleInterval;
+        }
+
+        @Override
+        public synchronized void request(final long n) {
+            if (n <= 0) {
+                throw new InvalidParameterException("ProgressPublisher."
+                        + "request() Demand must be positive, not[" + n
+                        + "]");
+            }
+            mDemand = mDemand + n < 0 ? Long.MAX_VALUE : mDemand + n;
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                mCancelled = true;
+                mPending = null;
+                mHasPending = false;
+            }
+            mSubscriptions.remove(this);
+            mHandler.removeCallbacks(this);
+        }
+
+        /***
+         * Replace the undelivered value.
+         *
+         * @param value New value.
+         */
+        private synchronized void offer(final T value) {
+            if (!mCancelled) {
+                mPending = value;
+                mHasPending = true;
+                schedule();
+            }
+        }
+
+        /***
+         * Post a delivery if there is a value and demand for it. Must be
+         * called while holding the lock.
+         */
+        private void schedule() {
+            if (mScheduled || mCancelled || !mHasPending || mDemand == 0) {
+                return;
+            }
+            mScheduled = true;
+            long delay = mLastDelivery + mSampleInterval
+                - SystemClock.uptimeMillis();
+            mHandler.postDelayed(this, Math.max(0, delay));
+        }
+
+        /***
+         * Deliver the latest value on the Subscriber's Handler.
+         */
+        @Override
+        public void run() {
+            T value;
+            synchronized (this) {
+                mScheduled = false;
+                if (mCancelled || !mHasPending || mDemand == 0) {
+                    return;
+                }
+                value = mPending;
+                mPending = null;
+                mHasPending = false;
+                if (mDemand != Long.MAX_VALUE) {
+                    mDemand--;
+                }
+                mLastDelivery = SystemClock.uptimeMillis();
+            }
+            mSubscriber.onNext(value);
+        }
+    }
+}
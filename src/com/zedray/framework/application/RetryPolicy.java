@@ -0,0 +1,100 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zedray.framework.application;
+
+import java.security.InvalidParameterException;
+import java.util.Random;
+
+/***
+ * Retry policy for a Type of Task. A failed Task is run again up to
+ * maxAttempts times in all, waiting an exponentially growing backoff between
+ * attempts. Half of each backoff is fixed and half is random, so Tasks that
+ * failed together do not all retry at the same moment.
+ */
+public class RetryPolicy {
+    /** Total number of attempts, including the first. **/
+    private final int mMaxAttempts;
+    /** Backoff before the second attempt, in milliseconds. **/
+    private final long mInitialBackoff;
+    /** Longest backoff, in milliseconds. **/
+    private final long mMaxBackoff;
+
+    /***
+     * Constructor.
+     *
+     * @param maxAttempts Total number of attempts, including the first.
+     * @param initialBackoff Backoff before the second attempt, in
+     *            milliseconds.
+     * @param maxBackoff Longest backoff, in milliseconds.
+     */
+    public RetryPolicy(final int maxAttempts, final long initialBackoff,
+            final long maxBackoff) {
+        if (maxAttempts < 1 || initialBackoff < 1
+                || maxBackoff < initialBackoff) {
+            throw new InvalidParameterException("RetryPolicy() Invalid "
+                    + "attempts[" + maxAttempts + "] or backoff["
+                    + initialBackoff + ", " + maxBackoff + "]");
+        }
+        mMaxAttempts = maxAttempts;
+        mInitialBackoff = initialBackoff;
+        mMaxBackoff = maxBackoff;
+    }
+
+    /***
+     * Returns the total number of attempts, including the first.
+     *
+     * @return Maximum attempts.
+     */
+    public final int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /***
+     * Returns TRUE if a Task that failed on the given attempt should be run
+     * again.
+     *
+     * @param attempt Failed attempt, starting at 1.
+     * @return TRUE to retry.
+     */
+    public final boolean shouldRetry(final int attempt) {
+        return attempt < mMaxAttempts;
+    }
+
+    /***
+     * Returns the backoff before the attempt after the given one.
+     *
+     * @param attempt Failed attempt, starting at 1.
+     * @param random Source of jitter.
+     * @return Backoff in milliseconds.
+     */
+    public final long getBackoff(final int attempt, final Random random) {
+        long backoff = mInitialBackoff;
+        for (int i = 1; i < attempt && backoff < mMaxBackoff; i++) {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff, mMaxBackoff);
+        long half = backoff / 2;
+        return backoff - half + (long) (random.nextDouble() * (half + 1));
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy[" + mMaxAttempts + " attempts, "
+            + mInitialBackoff + "-" + mMaxBackoff + "ms]";
+    }
+}
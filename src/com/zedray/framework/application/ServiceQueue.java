@@ -18,16 +18,22 @@ package com.zedray.framework.application;
 
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 
 import com.zedray.framework.service.MyService;
+import com.zedray.framework.utils.AsyncLog;
+import com.zedray.framework.utils.Clock;
 import com.zedray.framework.utils.Type;
 
 /***
@@ -35,14 +41,105 @@ import com.zedray.framework.utils.Type;
  * required to setup the binding with the service (starting the service if
  * necessary), waiting for the binding to complete, and then sending the waiting
  * message.
+ *
+ * Every message passes the AdmissionGate before it is queued: an optional
+ * token bucket rate limit for its Type, then a global AdmissionController
+ * which rejects new work while queued work is already waiting too long.
+ *
+ * A Type can be given an inline threshold. While the Service has an
+ * InlineRunner registered, an unkeyed message of that Type whose predicted
+ * service time is under the threshold skips the Service Handler and the
+ * WorkerThread queue: posted from a background thread, its Task's first
+ * step runs on that thread; posted from the UI thread, the Task goes straight
+ * to the next idle carrier.
  */
 public class ServiceQueue {
+
+    /***
+     * Takes inline eligible messages on behalf of the Service.
+     */
+    public interface InlineRunner {
+
+        /***
+         * Create the Task for a message and start it without queuing the
+         * message.
+         *
+         * @param type Message Type.
+         * @param bundle Optional Bundle, NULL otherwise.
+         * @param enqueueTime Uptime at which the message was posted.
+         * @param maxRunTime Maximum run time in milliseconds, or 0.
+         * @param onCaller TRUE to run the first step on the calling thread,
+         *            unless it is itself a carrier, FALSE to hand the Task
+         *            to the next idle carrier.
+         * @return TRUE if the Task was started, FALSE if the message must
+         *         be posted normally.
+         */
+        boolean runInline(Type type, Bundle bundle, long enqueueTime,
+                long maxRunTime, boolean onCaller);
+    }
+
+    /***
+     * Lists the work the Service has accepted but not finished.
+     */
+    public interface PendingWork {
+
+        /***
+         * Returns a message for each running Task, recreating it from its
+         * checkpoint, followed by copies of the queued messages.
+         *
+         * @return New list of messages, whose objects are Bundles or NULL.
+         */
+        List<Message> getPendingMessages();
+    }
+
+    /***
+     * Key in the Message data Bundle holding the uptime at which the message
+     * was posted.
+     */
+    public static final String ENQUEUE_TIME = "ENQUEUE_TIME";
+    /***
+     * Key in the Message data Bundle holding the uptime by which the Task
+     * must start, if it has a deadline.
+     */
+    public static final String DEADLINE = "DEADLINE";
+    /***
+     * Key in the Message data Bundle holding the maximum run time of the
+     * Task in milliseconds, if it has one.
+     */
+    public static final String MAX_RUN_TIME = "MAX_RUN_TIME";
+    /***
+     * Key in the Message data Bundle holding the routing key of the Task, if
+     * it has one. Tasks with the same routing key run one at a time, in the
+     * order they were posted.
+     */
+    public static final String ROUTING_KEY = "ROUTING_KEY";
     /** Cached application context. **/
     private final Context mContext;
+    /** Source of uptime for enqueue times. **/
+    private final Clock mClock = Clock.SYSTEM;
+    /** Records every posted message when set, otherwise NULL. **/
+    private volatile LoadTrace mTraceRecorder;
     /** Handler of the service to which we can send messages. **/
     private Handler mHandler;
     /** Queue of messages waiting to be sent to the service. **/
     private final List<Message> queue;
+    /** Default {timeout, maximum run time} for each Type, if configured. **/
+    private final Map<Type, long[]> mTimeouts =
+        new EnumMap<Type, long[]>(Type.class);
+    /** Inline threshold in milliseconds for each Type, if configured. **/
+    private final Map<Type, Long> mInlineThresholds =
+        new EnumMap<Type, Long>(Type.class);
+    /** Measured service times, used to choose the inline path. **/
+    private final ServiceTimeEstimator mServiceTimes =
+        new ServiceTimeEstimator();
+    /** Service side source of unfinished work, or NULL. **/
+    private volatile PendingWork mPendingWork;
+    /** Types of the messages restored from a StateSnapshot. **/
+    private final EnumSet<Type> mRestoredTypes = EnumSet.noneOf(Type.class);
+    /** Service side runner for inline messages, or NULL. **/
+    private volatile InlineRunner mInlineRunner;
+    /** Rate limits and queue delay based admission control. **/
+    private final AdmissionGate mGate = new AdmissionGate(mClock);
 
     /***
      * Constructor, which caches the application context and creates an empty
@@ -65,25 +162,173 @@ public class ServiceQueue {
         mContext.startService(new Intent(mContext, MyService.class));
     }
 
+    /***
+     * Limit the rate at which messages of the given Type are accepted.
+     *
+     * @param type Message Type.
+     * @param permitsPerSecond Sustained rate of accepted messages.
+     * @param burst Number of messages that can be accepted at once.
+     */
+    public final void setRateLimit(final Type type,
+            final double permitsPerSecond, final int burst) {
+        mGate.setRateLimit(type, permitsPerSecond, burst);
+    }
+
+    /***
+     * Remove the rate limit for the given Type.
+     *
+     * @param type Message Type.
+     */
+    public final void removeRateLimit(final Type type) {
+        mGate.removeRateLimit(type);
+    }
+
+    /***
+     * Give every message of the given Type a deadline and maximum run time,
+     * unless they are passed to postToService() explicitly.
+     *
+     * @param type Message Type.
+     * @param timeout Time in milliseconds from posting by which the Task
+     *            must start, or 0 for no deadline.
+     * @param maxRunTime Maximum time in milliseconds the Task may run, or 0
+     *            for no limit.
+     */
+    public final void setTimeouts(final Type type, final long timeout,
+            final long maxRunTime) {
+        synchronized (mTimeouts) {
+            mTimeouts.put(type, new long[] {timeout, maxRunTime});
+        }
+    }
+
+    /***
+     * Let messages of the given Type skip the Service queue when their Task
+     * is predicted to finish within the threshold.
+     *
+     * @param type Message Type.
+     * @param threshold Predicted service time in milliseconds below which
+     *            the Task runs inline, or 0 to always queue.
+     */
+    public final void setInlineThreshold(final Type type,
+            final long threshold) {
+        synchronized (mInlineThresholds) {
+            if (threshold > 0) {
+                mInlineThresholds.put(type, threshold);
+            } else {
+                mInlineThresholds.remove(type);
+            }
+        }
+    }
+
+    /***
+     * Returns the predicted service time of a Type of Task.
+     *
+     * @param type Message Type.
+     * @return Predicted time in milliseconds, or -1 if not yet known.
+     */
+    public final long getPredictedServiceTime(final Type type) {
+        return mServiceTimes.predict(type);
+    }
+
+    /***
+     * Post a message to the registered (i.e. running) Service, with the
+     * default deadline and maximum run time for its Type.
+     *
+     * @param type Message Type.
+     * @param bundle Optional Bundle of extra message information, NULL
+     *            otherwise.
+     * @return ACCEPTED, or the reason the message was rejected.
+     */
+    public final Admission postToService(final Type type,
+            final Bundle bundle) {
+        return postToService(type, bundle, null);
+    }
+
+    /***
+     * Post a message with a routing key to the registered (i.e. running)
+     * Service, with the default deadline and maximum run time for its Type.
+     * Tasks with the same routing key run one at a time, in the order they
+     * were posted, whatever their Type or ExecutionClass, while Tasks with
+     * different keys run concurrently.
+     *
+     * @param type Message Type.
+     * @param bundle Optional Bundle of extra message information, NULL
+     *            otherwise.
+     * @param routingKey Routing key, or NULL for no ordering.
+     * @return ACCEPTED, or the reason the message was rejected.
+     */
+    public final Admission postToService(final Type type,
+            final Bundle bundle, final String routingKey) {
+        long[] timeouts;
+        synchronized (mTimeouts) {
+            timeouts = mTimeouts.get(type);
+        }
+        if (timeouts == null) {
+            return postToService(type, bundle, routingKey, 0, 0);
+        }
+        return postToService(type, bundle, routingKey, timeouts[0],
+                timeouts[1]);
+    }
+
     /***
      * Post a message to the registered (i.e. running) Service.  If the Service
      * is not connected, then add the message to the queue and call
-     * startService().
+     * startService().  The message is rejected, and not sent, if its Type is
+     * over its rate limit or the Service is overloaded.
      *
      * @param type Message Type.
      * @param bundle Optional Bundle of extra message information, NULL
      *            otherwise.
+     * @param routingKey Routing key, or NULL for no ordering.
+     * @param timeout Time in milliseconds from now by which the Task must
+     *            start, or 0 for no deadline. The Task is dropped if it is
+     *            still queued after its deadline.
+     * @param maxRunTime Maximum time in milliseconds the Task may run before
+     *            it is timed out, or 0 for no limit.
+     * @return ACCEPTED, or the reason the message was rejected.
      */
-    public final void postToService(final Type type, final Bundle bundle) {
+    public final Admission postToService(final Type type,
+            final Bundle bundle, final String routingKey, final long timeout,
+            final long maxRunTime) {
         if (type == null) {
             throw new InvalidParameterException("ServiceQueue.postToService() "
                     + "Type cannot be NULL");
         }
 
+        LoadTrace recorder = mTraceRecorder;
+        if (recorder != null) {
+            recorder.record(LoadTrace.Kind.ARRIVAL, type);
+        }
+
+        long now = mClock.uptimeMillis();
+        if (!mGate.tryAcquire(type, now)) {
+            AsyncLog.w(MyApplication.LOG_TAG, "ServiceQueue.postToService() "
+                    + "Type[{}] is over its rate limit", type);
+            return Admission.RATE_LIMITED;
+        }
+        if (!mGate.admit()) {
+            AsyncLog.w(MyApplication.LOG_TAG, "ServiceQueue.postToService() "
+                    + "Rejecting type[{}], service is overloaded", type);
+            return Admission.OVERLOADED;
+        }
+
+        if (routingKey == null && tryInline(type, bundle, now, maxRunTime)) {
+            return Admission.ACCEPTED;
+        }
+
         /** Create a new message object. **/
         Message message = Message.obtain();
         message.what = type.ordinal();
         message.obj = bundle;
+        message.getData().putLong(ENQUEUE_TIME, now);
+        if (timeout > 0) {
+            message.getData().putLong(DEADLINE, now + timeout);
+        }
+        if (maxRunTime > 0) {
+            message.getData().putLong(MAX_RUN_TIME, maxRunTime);
+        }
+        if (routingKey != null) {
+            message.getData().putString(ROUTING_KEY, routingKey);
+        }
 
         if (mHandler != null) {
             /** Service is running, so send message now. **/
@@ -99,6 +344,159 @@ public class ServiceQueue {
             }
             startService();
         }
+        return Admission.ACCEPTED;
+    }
+
+    /***
+     * Hand a message to the InlineRunner if its Type is inline eligible and
+     * its Task is predicted to be fast enough. The Task gets its own copy of
+     * the Bundle, as the caller may go on to change it while the Task runs.
+     *
+     * @param type Message Type.
+     * @param bundle Optional Bundle, NULL otherwise.
+     * @param now Current uptime.
+     * @param maxRunTime Maximum run time in milliseconds, or 0.
+     * @return TRUE if the Task was started inline.
+     */
+    private boolean tryInline(final Type type, final Bundle bundle,
+            final long now, final long maxRunTime) {
+        InlineRunner runner = mInlineRunner;
+        if (runner == null) {
+            return false;
+        }
+        Long threshold;
+        synchronized (mInlineThresholds) {
+            threshold = mInlineThresholds.get(type);
+        }
+        if (threshold == null) {
+            return false;
+        }
+        long predicted = mServiceTimes.predict(type);
+        if (predicted < 0 || predicted >= threshold) {
+            return false;
+        }
+        return runner.runInline(type, bundle == null ? null
+                : new Bundle(bundle), now, maxRunTime,
+                Looper.myLooper() != Looper.getMainLooper());
+    }
+
+    /***
+     * Record every message posted from now on, whether or not it is admitted,
+     * so the load can be replayed by the LoadGenerator.
+     *
+     * @param trace Trace to record into, or NULL to stop recording.
+     */
+    public final void setTraceRecorder(final LoadTrace trace) {
+        mTraceRecorder = trace;
+    }
+
+    /***
+     * Called by the Service when the Task for an accepted message starts, or
+     * when the message is discarded, to report its queue delay.
+     *
+     * @param enqueueTime Uptime at which the message was posted.
+     */
+    public final void onStarted(final long enqueueTime) {
+        mGate.onStarted(enqueueTime);
+    }
+
+    /***
+     * Called by the Service when a Task completes, to measure the service
+     * time of its Type.
+     *
+     * @param type Task Type.
+     * @param serviceTime Time in milliseconds spent inside resume().
+     */
+    public final void onFinished(final Type type, final long serviceTime) {
+        mServiceTimes.record(type, serviceTime);
+    }
+
+    /***
+     * Called by the Service to register the source of its unfinished work,
+     * or with NULL when it is destroyed.
+     *
+     * @param pendingWork PendingWork, or NULL.
+     */
+    public final void registerPendingWork(final PendingWork pendingWork) {
+        mPendingWork = pendingWork;
+    }
+
+    /***
+     * Returns the messages accepted but not yet finished, both those waiting
+     * for the Service to start and those held by the Service, for a
+     * StateSnapshot.
+     *
+     * @return New list of messages, oldest first.
+     */
+    public final List<Message> getPendingMessages() {
+        List<Message> messages = new ArrayList<Message>();
+        PendingWork pendingWork = mPendingWork;
+        if (pendingWork != null) {
+            messages.addAll(pendingWork.getPendingMessages());
+        }
+        synchronized (queue) {
+            for (Message message : queue) {
+                Message copy = Message.obtain();
+                copy.copyFrom(message);
+                messages.add(copy);
+            }
+        }
+        return messages;
+    }
+
+    /***
+     * Post messages restored from a StateSnapshot, bypassing admission
+     * control as they were accepted by an earlier process. Their enqueue
+     * times are reset and their deadlines dropped, as uptime does not
+     * survive a restart.
+     *
+     * @param messages Restored messages, oldest first.
+     */
+    public final void restore(final List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        long now = mClock.uptimeMillis();
+        synchronized (queue) {
+            for (Message message : messages) {
+                message.getData().putLong(ENQUEUE_TIME, now);
+                message.getData().remove(DEADLINE);
+                queue.add(message);
+                synchronized (mRestoredTypes) {
+                    mRestoredTypes.add(Type.getType(message.what));
+                }
+            }
+        }
+        Log.i(MyApplication.LOG_TAG, "ServiceQueue.restore() Restored ["
+                + messages.size() + "] messages");
+        if (mHandler != null) {
+            registerServiceHandler(mHandler);
+        } else {
+            startService();
+        }
+    }
+
+    /***
+     * Returns TRUE if a message of the given Type was restored from a
+     * StateSnapshot, so the Service need not recover it another way.
+     *
+     * @param type Message Type.
+     * @return TRUE if restored.
+     */
+    public final boolean isRestored(final Type type) {
+        synchronized (mRestoredTypes) {
+            return mRestoredTypes.contains(type);
+        }
+    }
+
+    /***
+     * Called by the Service to register the runner for inline messages, or
+     * with NULL when it is destroyed.
+     *
+     * @param runner InlineRunner, or NULL to queue every message.
+     */
+    public final void registerInlineRunner(final InlineRunner runner) {
+        mInlineRunner = runner;
     }
 
     /***
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zedray.framework.application;
+
+import com.zedray.framework.utils.Type;
+
+/***
+ * Predicts the service time of each Type of Task from an exponentially
+ * weighted moving average of the measured times. The service time is the
+ * time a Task spent inside resume(), so timed waits and parking between
+ * steps, which hold no thread, do not count. No prediction is made until
+ * MIN_SAMPLES Tasks of the Type have completed.
+ */
+public class ServiceTimeEstimator {
+    /** Weight of each new sample in the moving average. **/
+    private static final double ALPHA = 0.2;
+    /** Number of samples needed before a prediction is made. **/
+    private static final int MIN_SAMPLES = 5;
+
+    /** Moving average service time for each Type, by ordinal. **/
+    private final double[] mAverages = new double[Type.values().length];
+    /** Number of samples for each Type, by ordinal. **/
+    private final int[] mSamples = new int[Type.values().length];
+
+    /***
+     * Record the service time of a completed Task.
+     *
+     * @param type Task Type.
+     * @param serviceTime Time in milliseconds spent inside resume().
+     */
+    public final synchronized void record(final Type type,
+            final long serviceTime) {
+        int index = type.ordinal();
+        if (mSamples[index] == 0) {
+            mAverages[index] = serviceTime;
+        } else {
+            mAverages[index] += ALPHA * (serviceTime - mAverages[index]);
+        }
+        if (mSamples[index] < Integer.MAX_VALUE) {
+            mSamples[index]++;
+        }
+    }
+
+    /***
+     * Returns the predicted service time of the next Task of a Type.
+     *
+     * @param type Task Type.
+     * @return Predicted time in milliseconds, or -1 if there are too few
+     *         samples.
+     */
+    public final synchronized long predict(final Type type) {
+        int index = type.ordinal();
+        if (mSamples[index] < MIN_SAMPLES) {
+            return -1;
+        }
+        return Math.round(mAverages[index]);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.application;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/***
+ * CacheBackend which stores all values in an Android preferences file. Every
+ * commit rewrites the whole file, so this backend is best kept for small
+ * amounts of rarely changing state.
+ */
+public class SharedPreferencesBackend implements CacheBackend {
+    /** Cached application context. **/
+    private final Context mContext;
+    /** Preferences file name. **/
+    private final String mPrefsFile;
+
+    /***
+     * Constructor stores the application context and preferences file name.
+     *
+     * @param context Application context.
+     * @param prefsFile Preferences file name.
+     */
+    public SharedPreferencesBackend(final Context context,
+            final String prefsFile) {
+        mContext = context;
+        mPrefsFile = prefsFile;
+    }
+
+    @Override
+    public final String getString(final String key,
+            final String defaultValue) {
+        return getPreferences().getString(key, defaultValue);
+    }
+
+    @Override
+    public final void putString(final String key, final String value) {
+        commit(getPreferences().edit().putString(key, value), key, value);
+    }
+
+    @Override
+    public final int getInt(final String key, final int defaultValue) {
+        return getPreferences().getInt(key, defaultValue);
+    }
+
+    @Override
+    public final void putInt(final String key, final int value) {
+        commit(getPreferences().edit().putInt(key, value), key, value);
+    }
+
+    @Override
+    public final long getLong(final String key, final long defaultValue) {
+        return getPreferences().getLong(key, defaultValue);
+    }
+
+    @Override
+    public final void putLong(final String key, final long value) {
+        commit(getPreferences().edit().putLong(key, value), key, value);
+    }
+
+    @Override
+    public final boolean getBoolean(final String key,
+            final boolean defaultValue) {
+        return getPreferences().getBoolean(key, defaultValue);
+    }
+
+    @Override
+    public final void putBoolean(final String key, final boolean value) {
+        commit(getPreferences().edit().putBoolean(key, value), key, value);
+    }
+
+    @Override
+    public final void remove(final String key) {
+        commit(getPreferences().edit().remove(key), key, null);
+    }
+
+    @Override
+    public void close() {
+        // Do nothing.
+    }
+
+    /***
+     * Returns the preferences file.
+     *
+     * @return SharedPreferences.
+     */
+    private SharedPreferences getPreferences() {
+        return mContext.getSharedPreferences(mPrefsFile, 0);
+    }
+
+    /***
+     * Commit the given editor.
+     *
+     * @param editor Editor containing a single change.
+     * @param key Preferences file parameter key.
+     * @param value Preference value, used for error reporting.
+     */
+    private static void commit(final SharedPreferences.Editor editor,
+            final String key, final Object value) {
+        if (!editor.commit()) {
+            throw new NullPointerException(
+                    "SharedPreferencesBackend.commit() Failed to set key["
+                            + key + "] with value[" + value + "]");
+        }
+    }
+}
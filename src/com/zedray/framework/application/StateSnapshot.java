@@ -0,0 +1,319 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zedray.framework.application;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import android.os.Bundle;
+import android.os.Message;
+import android.util.Log;
+
+import com.zedray.framework.utils.BundleCodec;
+import com.zedray.framework.utils.Type;
+
+/***
+ * Single file image of the framework state that would otherwise be lost when
+ * the process is killed: the in-memory Cache values, the messages waiting in
+ * the ServiceQueue and WorkerThread (including running Tasks, with their
+ * checkpoints), and the message waiting in the UiQueue. The image is written
+ * whole at lifecycle transitions and read back in one sequential read on the
+ * next cold start.
+ *
+ * The file holds a header (MAGIC, VERSION, body length), a body of Bundles
+ * encoded with BundleCodec, and a CRC32 of the body. An image with a
+ * different version, or that fails its checksum, is ignored. Images are
+ * written to a temporary file and renamed into place, so a kill during a
+ * save leaves the previous image intact.
+ */
+public class StateSnapshot {
+
+    /***
+     * Decoded snapshot image.
+     */
+    public static final class Image {
+        /** In-memory Cache values. **/
+        private final Bundle mCacheValues;
+        /** Messages waiting for the Service, oldest first. **/
+        private final List<Message> mServiceMessages;
+        /** Message waiting for the UI, or NULL. **/
+        private final Message mUiMessage;
+
+        /***
+         * Constructor.
+         *
+         * @param cacheValues In-memory Cache values.
+         * @param serviceMessages Messages waiting for the Service.
+         * @param uiMessage Message waiting for the UI, or NULL.
+         */
+        private Image(final Bundle cacheValues,
+                final List<Message> serviceMessages,
+                final Message uiMessage) {
+            mCacheValues = cacheValues;
+            mServiceMessages = serviceMessages;
+            mUiMessage = uiMessage;
+        }
+
+        /***
+         * Returns the in-memory Cache values.
+         *
+         * @return Values by key name.
+         */
+        public Bundle getCacheValues() {
+            return mCacheValues;
+        }
+
+        /***
+         * Returns the messages waiting for the Service.
+         *
+         * @return Unmodifiable list, oldest first.
+         */
+        public List<Message> getServiceMessages() {
+            return mServiceMessages;
+        }
+
+        /***
+         * Returns the message waiting for the UI.
+         *
+         * @return Message, or NULL.
+         */
+        public Message getUiMessage() {
+            return mUiMessage;
+        }
+    }
+
+    /** Name of the snapshot file. **/
+    private static final String FILE = "snapshot.bin";
+    /** File signature "ZSS1". **/
+    private static final int MAGIC = 0x5A535331;
+    /***
+     * Version of the body format. Version 1 stored Type ordinals, version 2
+     * stores the stable Type codes.
+     */
+    private static final int VERSION = 2;
+    /** Size of the header: magic, version and body length. **/
+    private static final int HEADER_SIZE = 12;
+    /** Size of the trailing checksum. **/
+    private static final int CHECKSUM_SIZE = 8;
+
+    /** Snapshot file. **/
+    private final File mFile;
+    /** Temporary file written before being renamed over mFile. **/
+    private final File mTempFile;
+
+    /***
+     * Constructor.
+     *
+     * @param dir Folder holding the snapshot file.
+     */
+    public StateSnapshot(final File dir) {
+        mFile = new File(dir, FILE);
+        mTempFile = new File(dir, FILE + ".tmp");
+    }
+
+    /***
+     * Write a new image, replacing the previous one.
+     *
+     * @param cacheValues In-memory Cache values.
+     * @param serviceMessages Messages waiting for the Service, oldest first.
+     * @param uiMessage Message waiting for the UI, or NULL.
+     * @return TRUE if the image was written.
+     */
+    public final synchronized boolean save(final Bundle cacheValues,
+            final List<Message> serviceMessages, final Message uiMessage) {
+        byte[] body;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            BundleCodec.write(out, cacheValues);
+            out.writeInt(serviceMessages.size());
+            for (Message message : serviceMessages) {
+                writeMessage(out, message);
+            }
+            out.writeBoolean(uiMessage != null);
+            if (uiMessage != null) {
+                writeMessage(out, uiMessage);
+            }
+            out.flush();
+            body = bytes.toByteArray();
+        } catch (IOException e) {
+            /** Writing to memory never fails. **/
+            throw new IllegalStateException(e);
+        } catch (RuntimeException e) {
+            Log.e(MyApplication.LOG_TAG, "StateSnapshot.save() Unable to "
+                    + "encode state", e);
+            return false;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        DataOutputStream out = null;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                    HEADER_SIZE + body.length + CHECKSUM_SIZE);
+            DataOutputStream image = new DataOutputStream(bytes);
+            image.writeInt(MAGIC);
+            image.writeInt(VERSION);
+            image.writeInt(body.length);
+            image.write(body);
+            image.writeLong(crc.getValue());
+            out = new DataOutputStream(new FileOutputStream(mTempFile));
+            bytes.writeTo(out);
+            out.close();
+            out = null;
+            if (!mTempFile.renameTo(mFile)) {
+                throw new IOException("Unable to rename[" + mTempFile
+                        + "]");
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(MyApplication.LOG_TAG, "StateSnapshot.save() Unable to "
+                    + "write[" + mFile + "]", e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Do nothing.
+                }
+            }
+        }
+    }
+
+    /***
+     * Read the current image with a single read of the whole file.
+     *
+     * @return Image, or NULL if there is no valid image.
+     */
+    public final synchronized Image load() {
+        if (!mFile.exists()) {
+            return null;
+        }
+        byte[] data = new byte[(int) mFile.length()];
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(mFile));
+            in.readFully(data);
+        } catch (IOException e) {
+            Log.e(MyApplication.LOG_TAG, "StateSnapshot.load() Unable to "
+                    + "read[" + mFile + "]", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Do nothing.
+                }
+            }
+        }
+
+        try {
+            DataInputStream image = new DataInputStream(
+                    new ByteArrayInputStream(data));
+            if (data.length < HEADER_SIZE + CHECKSUM_SIZE
+                    || image.readInt() != MAGIC) {
+                throw new IOException("Not a snapshot");
+            }
+            int version = image.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version[" + version
+                        + "]");
+            }
+            int length = image.readInt();
+            if (length != data.length - HEADER_SIZE - CHECKSUM_SIZE) {
+                throw new IOException("Truncated body");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, HEADER_SIZE, length);
+            image.skipBytes(length);
+            if (image.readLong() != crc.getValue()) {
+                throw new IOException("Checksum mismatch");
+            }
+
+            DataInputStream body = new DataInputStream(
+                    new ByteArrayInputStream(data, HEADER_SIZE, length));
+            Bundle cacheValues = BundleCodec.read(body);
+            int count = body.readInt();
+            List<Message> serviceMessages = new ArrayList<Message>(count);
+            for (int i = 0; i < count; i++) {
+                serviceMessages.add(readMessage(body));
+            }
+            Message uiMessage = body.readBoolean() ? readMessage(body) : null;
+            return new Image(cacheValues == null ? new Bundle()
+                : cacheValues, Collections.unmodifiableList(serviceMessages),
+                uiMessage);
+        } catch (IOException e) {
+            Log.w(MyApplication.LOG_TAG, "StateSnapshot.load() Ignoring "
+                    + "image[" + mFile + "]: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /***
+     * Delete the current image, once it has been restored.
+     */
+    public final synchronized void delete() {
+        mFile.delete();
+    }
+
+    /***
+     * Write a message: its stable Type code, data Bundle and Bundle object.
+     *
+     * @param out Destination.
+     * @param message Message, whose object must be a Bundle or NULL.
+     * @throws IOException If the destination cannot be written.
+     */
+    private static void writeMessage(final DataOutputStream out,
+            final Message message) throws IOException {
+        out.writeInt(Type.getType(message.what).getCode());
+        BundleCodec.write(out, message.peekData());
+        BundleCodec.write(out, message.obj instanceof Bundle
+                ? (Bundle) message.obj : null);
+    }
+
+    /***
+     * Read a message written by writeMessage().
+     *
+     * @param in Source.
+     * @return New Message.
+     * @throws IOException If the source cannot be read or is corrupt.
+     */
+    private static Message readMessage(final DataInputStream in)
+            throws IOException {
+        Message message = Message.obtain();
+        message.what = Type.fromCode(in.readInt()).ordinal();
+        Bundle data = BundleCodec.read(in);
+        if (data != null) {
+            message.setData(data);
+        }
+        message.obj = BundleCodec.read(in);
+        return message;
+    }
+}
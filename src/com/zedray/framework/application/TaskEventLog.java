@@ -0,0 +1,891 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zedray.framework.application;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+import com.zedray.framework.utils.Type;
+
+/***
+ * Append-only log of Task state transitions, with materialized views kept up
+ * to date as each Event is appended. The built-in views give, in constant
+ * time, the latest Stage of every active and recently finished Task, the
+ * number of transitions into each Stage per Type, and the list of active
+ * Tasks. Further views can be added with addView(), and are built by
+ * replaying the log.
+ *
+ * Each Event is written as one CRC32 checked record, so a record torn by a
+ * crash is detected and cut off, and the views are rebuilt by replaying the
+ * log when it is opened. Tasks still active in the log of an earlier process
+ * are then marked ABANDONED. Once COMPACT_EVENTS have been appended, the log
+ * is rewritten as a COUNTS record plus the latest Event of each active Task.
+ * Records hold the stable Type and Stage codes, not ordinals.
+ *
+ * The views are updated by the appending thread, but records are written,
+ * flushed and compacted by a background thread, in log order, so Tasks
+ * never wait on the disk.
+ */
+public class TaskEventLog {
+
+    /***
+     * Stage of a Task.
+     */
+    public enum Stage {
+        /** The message was accepted and the Task created. **/
+        QUEUED(1),
+        /** The Task was resumed for the first time. **/
+        STARTED(2),
+        /** The Task failed and will be run again after a backoff. **/
+        RETRYING(3),
+        /** The Task finished normally. **/
+        COMPLETED(4),
+        /** The Task threw an exception and will not be retried. **/
+        FAILED(5),
+        /** The Task overran its maximum run time. **/
+        TIMED_OUT(6),
+        /** The Task missed its deadline and never started. **/
+        DROPPED(7),
+        /** The process running the Task ended before it finished. **/
+        ABANDONED(8);
+
+        /** Stable code written to the log, which must never change. **/
+        private final int mCode;
+
+        /***
+         * Constructor.
+         *
+         * @param code Stable code.
+         */
+        private Stage(final int code) {
+            mCode = code;
+        }
+
+        /***
+         * Returns the stable code of the Stage, for writing to the log.
+         *
+         * @return Stable code.
+         */
+        public int getCode() {
+            return mCode;
+        }
+
+        /***
+         * Get the Stage from a stable code read from the log.
+         *
+         * @param code Stable code.
+         * @return Stage, or NULL if the code is not known.
+         */
+        public static Stage fromCode(final int code) {
+            for (Stage stage : values()) {
+                if (stage.mCode == code) {
+                    return stage;
+                }
+            }
+            return null;
+        }
+
+        /***
+         * Returns TRUE if a Task in this Stage has finished.
+         *
+         * @return TRUE for a final Stage.
+         */
+        public boolean isFinal() {
+            return compareTo(COMPLETED) >= 0;
+        }
+    }
+
+    /***
+     * Immutable state transition of one Task.
+     */
+    public static final class Event {
+        /** Position in the log. **/
+        private final long mSequence;
+        /** Task identifier, from newTaskId(). **/
+        private final long mTaskId;
+        /** Task Type. **/
+        private final Type mType;
+        /** New Stage. **/
+        private final Stage mStage;
+        /** Wall clock time of the transition. **/
+        private final long mTime;
+
+        /***
+         * Constructor.
+         *
+         * @param sequence Position in the log.
+         * @param taskId Task identifier.
+         * @param type Task Type.
+         * @param stage New Stage.
+         * @param time Wall clock time of the transition.
+         */
+        private Event(final long sequence, final long taskId,
+                final Type type, final Stage stage, final long time) {
+            mSequence = sequence;
+            mTaskId = taskId;
+            mType = type;
+            mStage = stage;
+            mTime = time;
+        }
+
+        /***
+         * Returns the position in the log.
+         *
+         * @return Sequence number.
+         */
+        public long getSequence() {
+            return mSequence;
+        }
+
+        /***
+         * Returns the Task identifier.
+         *
+         * @return Task ID.
+         */
+        public long getTaskId() {
+            return mTaskId;
+        }
+
+        /***
+         * Returns the Task Type.
+         *
+         * @return Type.
+         */
+        public Type getType() {
+            return mType;
+        }
+
+        /***
+         * Returns the new Stage.
+         *
+         * @return Stage.
+         */
+        public Stage getStage() {
+            return mStage;
+        }
+
+        /***
+         * Returns the wall clock time of the transition.
+         *
+         * @return Milliseconds since the epoch.
+         */
+        public long getTime() {
+            return mTime;
+        }
+
+        @Override
+        public String toString() {
+            return "Event[" + mSequence + ", task " + mTaskId + ", " + mType
+                + ", " + mStage + "]";
+        }
+    }
+
+    /***
+     * Materialized view maintained from the Events in the log.
+     */
+    public interface View {
+
+        /***
+         * Called for each Event, in log order, while holding the log lock,
+         * so must be quick.
+         *
+         * @param event Appended or replayed Event.
+         */
+        void apply(Event event);
+    }
+
+    /** Name of the log file. **/
+    private static final String FILE = "events.log";
+    /***
+     * Record holding one Event. Kinds 1 and 2 held ordinals, and a log
+     * starting with one is discarded as corrupt.
+     */
+    private static final byte EVENT = 3;
+    /** Record holding the Stage counts of compacted Events. **/
+    private static final byte COUNTS = 4;
+    /** Size of an EVENT record body. **/
+    private static final int EVENT_SIZE = 27;
+    /** Bytes added to each record body for its length and CRC32. **/
+    private static final int RECORD_OVERHEAD = 8;
+    /** Largest valid record body. **/
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+    /** Number of appended Events after which the log is compacted. **/
+    private static final int COMPACT_EVENTS = 10000;
+    /** Number of finished Tasks whose final Stage is kept. **/
+    private static final int RECENT_TASKS = 100;
+
+    /***
+     * Snapshot of the log to write instead of its current contents, handed
+     * to the background thread when the log is compacted.
+     */
+    private static final class Compaction {
+        /** Counts of the compacted Events, by Type then Stage ordinal. **/
+        private final int[][] mCounts;
+        /** Latest Event of each active Task. **/
+        private final List<Event> mActive;
+
+        /***
+         * Constructor.
+         *
+         * @param counts Counts of the compacted Events.
+         * @param active Latest Event of each active Task.
+         */
+        private Compaction(final int[][] counts, final List<Event> active) {
+            mCounts = counts;
+            mActive = active;
+        }
+    }
+
+    /** Log file. **/
+    private final File mFile;
+    /** Output appending to the log, used by the background thread. **/
+    private DataOutputStream mOut;
+    /***
+     * Events and Compactions not yet written, in log order, guarded by
+     * mWriteLock.
+     */
+    private final List<Object> mPending = new ArrayList<Object>();
+    /** Guards mPending, mWriting and mClosed. **/
+    private final Object mWriteLock = new Object();
+    /** TRUE while the background thread writes a batch. **/
+    private boolean mWriting = false;
+    /** TRUE once close() has been called. **/
+    private boolean mClosed = false;
+    /** Sequence number of the next Event, guarded by this. **/
+    private long mNextSequence = 0;
+    /** Next Task identifier, guarded by this. **/
+    private long mNextTaskId = 1;
+    /** Events appended since the last compaction, guarded by this. **/
+    private int mUncompacted = 0;
+    /** Latest Event of each active Task, guarded by this. **/
+    private final Map<Long, Event> mActive = new LinkedHashMap<Long, Event>();
+    /** Final Event of recently finished Tasks, guarded by this. **/
+    private final Map<Long, Event> mRecent =
+        new LinkedHashMap<Long, Event>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<Long, Event> eldest) {
+                return size() > RECENT_TASKS;
+            }
+        };
+    /** Transitions into each Stage, by Type ordinal then Stage ordinal. **/
+    private final int[][] mCounts =
+        new int[Type.values().length][Stage.values().length];
+    /***
+     * Unmodifiable list of active Tasks, or NULL if it must be rebuilt,
+     * guarded by this.
+     */
+    private List<Event> mActiveList;
+    /** Additional views. **/
+    private final List<View> mViews = new CopyOnWriteArrayList<View>();
+
+    /***
+     * Constructor replays the existing log to rebuild the views, marks the
+     * Tasks left active by an earlier process as ABANDONED and opens the log
+     * for appending.
+     *
+     * @param directory Folder for the log file.
+     */
+    public TaskEventLog(final File directory) {
+        mFile = new File(directory, FILE);
+        List<Event> abandoned;
+        synchronized (this) {
+            long length = replay(null);
+            truncate(length);
+            abandoned = new ArrayList<Event>(mActive.values());
+            openForAppend();
+        }
+        Thread thread = new Thread("TaskEventLog") {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        long now = System.currentTimeMillis();
+        for (Event event : abandoned) {
+            append(event.getTaskId(), event.getType(), Stage.ABANDONED, now);
+        }
+    }
+
+    /***
+     * Returns a new Task identifier, unique across restarts.
+     *
+     * @return Task ID.
+     */
+    public final synchronized long newTaskId() {
+        return mNextTaskId++;
+    }
+
+    /***
+     * Append a state transition and apply it to every view.
+     *
+     * @param taskId Task identifier, from newTaskId().
+     * @param type Task Type.
+     * @param stage New Stage.
+     * @return Appended Event.
+     */
+    public final Event append(final long taskId, final Type type,
+            final Stage stage) {
+        return append(taskId, type, stage, System.currentTimeMillis());
+    }
+
+    /***
+     * Returns the latest Stage of an active or recently finished Task.
+     *
+     * @param taskId Task identifier.
+     * @return Stage, or NULL if the Task is unknown or finished long ago.
+     */
+    public final synchronized Stage getStage(final long taskId) {
+        Event event = mActive.get(taskId);
+        if (event == null) {
+            event = mRecent.get(taskId);
+        }
+        return event == null ? null : event.getStage();
+    }
+
+    /***
+     * Returns the number of Tasks of a Type that have entered a Stage.
+     *
+     * @param type Task Type.
+     * @param stage Stage.
+     * @return Count.
+     */
+    public final synchronized int getCount(final Type type,
+            final Stage stage) {
+        return mCounts[type.ordinal()][stage.ordinal()];
+    }
+
+    /***
+     * Returns the latest Event of each active Task.
+     *
+     * @return Unmodifiable list, oldest Task first.
+     */
+    public final synchronized List<Event> getActiveTasks() {
+        if (mActiveList == null) {
+            mActiveList = Collections.unmodifiableList(
+                    new ArrayList<Event>(mActive.values()));
+        }
+        return mActiveList;
+    }
+
+    /***
+     * Add a view, building it by replaying the log before it receives new
+     * Events. After a compaction the log only holds the latest Event of each
+     * active Task.
+     *
+     * @param view View to add.
+     */
+    public final synchronized void addView(final View view) {
+        drain();
+        replay(view);
+        mViews.add(view);
+    }
+
+    /***
+     * Remove a view.
+     *
+     * @param view View to remove.
+     */
+    public final void removeView(final View view) {
+        mViews.remove(view);
+    }
+
+    /***
+     * Write the remaining Events and close the log file. Events appended
+     * afterwards only update the views.
+     */
+    public final synchronized void close() {
+        drain();
+        synchronized (mWriteLock) {
+            mClosed = true;
+            mWriteLock.notifyAll();
+        }
+    }
+
+    /***
+     * Append a state transition with the given time.
+     *
+     * @param taskId Task identifier.
+     * @param type Task Type.
+     * @param stage New Stage.
+     * @param time Wall clock time of the transition.
+     * @return Appended Event.
+     */
+    private synchronized Event append(final long taskId, final Type type,
+            final Stage stage, final long time) {
+        Event event = new Event(mNextSequence++, taskId, type, stage, time);
+        apply(event);
+        for (View view : mViews) {
+            view.apply(event);
+        }
+        Compaction compaction = null;
+        if (++mUncompacted >= COMPACT_EVENTS) {
+            compaction = newCompaction();
+        }
+        synchronized (mWriteLock) {
+            if (!mClosed) {
+                mPending.add(event);
+                if (compaction != null) {
+                    mPending.add(compaction);
+                }
+                mWriteLock.notifyAll();
+            }
+        }
+        return event;
+    }
+
+    /***
+     * Apply an Event to the built-in views. Must be called while holding
+     * the lock.
+     *
+     * @param event Event.
+     */
+    private void apply(final Event event) {
+        mCounts[event.getType().ordinal()][event.getStage().ordinal()]++;
+        Long taskId = event.getTaskId();
+        if (event.getStage().isFinal()) {
+            mActive.remove(taskId);
+            mRecent.put(taskId, event);
+        } else {
+            mActive.put(taskId, event);
+        }
+        mActiveList = null;
+        mNextSequence = Math.max(mNextSequence, event.getSequence() + 1);
+        mNextTaskId = Math.max(mNextTaskId, taskId + 1);
+    }
+
+    /***
+     * Read the log, applying each Event to the given view, or to the
+     * built-in views if it is NULL. Must be called while holding the lock.
+     *
+     * @param view View to build, or NULL.
+     * @return Length of the valid part of the log.
+     */
+    private long replay(final View view) {
+        if (!mFile.exists()) {
+            return 0;
+        }
+        long valid = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mFile)));
+            while (true) {
+                byte[] body = readRecord(in);
+                DataInputStream record = new DataInputStream(
+                        new ByteArrayInputStream(body));
+                byte kind = record.readByte();
+                if (kind == EVENT) {
+                    Event event = readEvent(record);
+                    if (view == null) {
+                        apply(event);
+                    } else {
+                        view.apply(event);
+                    }
+                } else if (kind == COUNTS) {
+                    if (view == null) {
+                        readCounts(record);
+                    }
+                } else {
+                    throw new IOException("Unknown record[" + kind + "]");
+                }
+                valid += RECORD_OVERHEAD + body.length;
+            }
+        } catch (EOFException e) {
+            // End of the log, or a torn final record.
+        } catch (IOException e) {
+            Log.w(MyApplication.LOG_TAG, "TaskEventLog.replay() Log["
+                    + mFile + "] is corrupt after [" + valid + "] bytes: "
+                    + e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Do nothing.
+                }
+            }
+        }
+        return valid;
+    }
+
+    /***
+     * Cut off anything after the valid part of the log.
+     *
+     * @param length Length of the valid part.
+     */
+    private void truncate(final long length) {
+        if (!mFile.exists() || mFile.length() == length) {
+            return;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            file.setLength(length);
+        } catch (IOException e) {
+            Log.e(MyApplication.LOG_TAG, "TaskEventLog.truncate() Unable to "
+                    + "truncate[" + mFile + "]", e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // Do nothing.
+                }
+            }
+        }
+    }
+
+    /***
+     * Open the log for appending. Must be called while holding the lock.
+     */
+    private void openForAppend() {
+        try {
+            mOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mFile, true)));
+        } catch (IOException e) {
+            Log.e(MyApplication.LOG_TAG, "TaskEventLog.openForAppend() "
+                    + "Unable to open[" + mFile + "], views are memory only",
+                    e);
+        }
+    }
+
+    /***
+     * Wait until the background thread has written every pending Event.
+     * Must be called while holding the lock, so no Events are appended in
+     * the meantime.
+     */
+    private void drain() {
+        synchronized (mWriteLock) {
+            while ((!mPending.isEmpty() || mWriting) && !mClosed) {
+                try {
+                    mWriteLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /***
+     * Background thread loop, writing the pending Events and Compactions in
+     * batches and flushing after each batch.
+     */
+    private void runWriter() {
+        List<Object> batch = new ArrayList<Object>();
+        while (true) {
+            synchronized (mWriteLock) {
+                mWriting = false;
+                mWriteLock.notifyAll();
+                while (mPending.isEmpty() && !mClosed) {
+                    try {
+                        mWriteLock.wait();
+                    } catch (InterruptedException e) {
+                        // Do nothing.
+                    }
+                }
+                if (mPending.isEmpty()) {
+                    closeOutput();
+                    return;
+                }
+                batch.addAll(mPending);
+                mPending.clear();
+                mWriting = true;
+            }
+            for (Object item : batch) {
+                if (item instanceof Compaction) {
+                    compact((Compaction) item);
+                } else {
+                    write((Event) item);
+                }
+            }
+            batch.clear();
+            if (mOut != null) {
+                try {
+                    mOut.flush();
+                } catch (IOException e) {
+                    writeFailed(e);
+                }
+            }
+        }
+    }
+
+    /***
+     * Append an Event record. Called on the background thread.
+     *
+     * @param event Event.
+     */
+    private void write(final Event event) {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            writeRecord(mOut, encodeEvent(event));
+        } catch (IOException e) {
+            writeFailed(e);
+        }
+    }
+
+    /***
+     * Stop writing after an error. Called on the background thread.
+     *
+     * @param e Error.
+     */
+    private void writeFailed(final IOException e) {
+        Log.e(MyApplication.LOG_TAG, "TaskEventLog.write() Unable to "
+                + "write[" + mFile + "], views are memory only", e);
+        closeOutput();
+    }
+
+    /***
+     * Close the output. Called on the background thread.
+     */
+    private void closeOutput() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // Do nothing.
+            }
+            mOut = null;
+        }
+    }
+
+    /***
+     * Take the current counts, less the active Tasks, and the latest Event
+     * of each active Task, for the background thread to compact the log.
+     * Must be called while holding the lock.
+     *
+     * @return New Compaction.
+     */
+    private Compaction newCompaction() {
+        mUncompacted = 0;
+        int[][] counts = new int[mCounts.length][];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mCounts[i].clone();
+        }
+        for (Event event : mActive.values()) {
+            counts[event.getType().ordinal()][event.getStage().ordinal()]--;
+        }
+        return new Compaction(counts, new ArrayList<Event>(mActive.values()));
+    }
+
+    /***
+     * Rewrite the log as a Compaction. Events appended after it was taken
+     * are written after it. Called on the background thread.
+     *
+     * @param compaction Counts and active Tasks to write.
+     */
+    private void compact(final Compaction compaction) {
+        if (mOut == null) {
+            return;
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)));
+            writeRecord(out, encodeCounts(compaction.mCounts));
+            for (Event event : compaction.mActive) {
+                writeRecord(out, encodeEvent(event));
+            }
+            out.close();
+            out = null;
+            closeOutput();
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Unable to rename[" + temp + "]");
+            }
+        } catch (IOException e) {
+            Log.e(MyApplication.LOG_TAG, "TaskEventLog.compact() Unable to "
+                    + "compact[" + mFile + "]", e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Do nothing.
+                }
+            }
+        }
+        if (mOut == null) {
+            openForAppend();
+        }
+    }
+
+    /***
+     * Encode an EVENT record.
+     *
+     * @param event Event.
+     * @return Record body.
+     * @throws IOException Never, as the body is written to memory.
+     */
+    private static byte[] encodeEvent(final Event event)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(EVENT_SIZE);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(EVENT);
+        out.writeLong(event.getSequence());
+        out.writeLong(event.getTaskId());
+        out.writeByte(event.getType().getCode());
+        out.writeByte(event.getStage().getCode());
+        out.writeLong(event.getTime());
+        return bytes.toByteArray();
+    }
+
+    /***
+     * Decode the rest of an EVENT record.
+     *
+     * @param in Record body, positioned after the record kind.
+     * @return Event.
+     * @throws IOException If the record is corrupt.
+     */
+    private static Event readEvent(final DataInputStream in)
+            throws IOException {
+        long sequence = in.readLong();
+        long taskId = in.readLong();
+        int type = in.readUnsignedByte();
+        int code = in.readUnsignedByte();
+        long time = in.readLong();
+        Stage stage = Stage.fromCode(code);
+        if (stage == null) {
+            throw new IOException("Unknown stage[" + code + "]");
+        }
+        return new Event(sequence, taskId, Type.fromCode(type), stage, time);
+    }
+
+    /***
+     * Encode a COUNTS record as the number of entries followed by the Type
+     * code, Stage code and count of each non-zero count.
+     *
+     * @param counts Counts by Type ordinal then Stage ordinal.
+     * @return Record body.
+     * @throws IOException Never, as the body is written to memory.
+     */
+    private static byte[] encodeCounts(final int[][] counts)
+            throws IOException {
+        Type[] types = Type.values();
+        Stage[] stages = Stage.values();
+        int entries = 0;
+        for (int[] typeCounts : counts) {
+            for (int count : typeCounts) {
+                if (count != 0) {
+                    entries++;
+                }
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(COUNTS);
+        out.writeShort(entries);
+        for (int type = 0; type < counts.length; type++) {
+            for (int stage = 0; stage < counts[type].length; stage++) {
+                if (counts[type][stage] != 0) {
+                    out.writeByte(types[type].getCode());
+                    out.writeByte(stages[stage].getCode());
+                    out.writeInt(counts[type][stage]);
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /***
+     * Decode the rest of a COUNTS record and add it to the counts view.
+     * Counts for a Type or Stage that no longer exists are ignored.
+     *
+     * @param in Record body, positioned after the record kind.
+     * @throws IOException If the record is corrupt.
+     */
+    private void readCounts(final DataInputStream in) throws IOException {
+        int entries = in.readUnsignedShort();
+        for (int i = 0; i < entries; i++) {
+            int typeCode = in.readUnsignedByte();
+            Stage stage = Stage.fromCode(in.readUnsignedByte());
+            int count = in.readInt();
+            Type type = Type.fromCode(typeCode);
+            if (stage != null && type.getCode() == typeCode) {
+                mCounts[type.ordinal()][stage.ordinal()] += count;
+            }
+        }
+    }
+
+    /***
+     * Write a record as its length, body and CRC32.
+     *
+     * @param out Destination.
+     * @param body Record body.
+     * @throws IOException If the destination cannot be written.
+     */
+    private static void writeRecord(final DataOutputStream out,
+            final byte[] body) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        out.writeInt(body.length);
+        out.write(body);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /***
+     * Read a record written by writeRecord().
+     *
+     * @param in Source.
+     * @return Record body.
+     * @throws EOFException At the end of the log, or if the record is torn.
+     * @throws IOException If the record is corrupt.
+     */
+    private static byte[] readRecord(final DataInputStream in)
+            throws IOException {
+        int length = in.readInt();
+        if (length <= 0 || length > MAX_RECORD_SIZE) {
+            throw new IOException("Bad record length[" + length + "]");
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, length);
+        if (in.readInt() != (int) crc.getValue()) {
+            throw new IOException("Checksum mismatch");
+        }
+        return body;
+    }
+}
@@ -0,0 +1,1016 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.application;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.zedray.framework.utils.Type;
+
+/***
+ * Bounded history of every Task execution, for throughput analysis and
+ * capacity planning.
+ *
+ * record() appends a row to an in-memory block of columns, which is cheap
+ * enough to call as each Task finishes. A background thread seals the block
+ * when it is full or once a minute, appends it to a columnar log file and
+ * folds its rows into per-minute, per-Type Rollups. In the log each block
+ * stores its columns one after the other, with times as variable length
+ * deltas, so a row takes a handful of bytes. Rollups for minutes that can no
+ * longer change are appended to a second file.
+ *
+ * Rows are kept for RAW_RETENTION and Rollups for ROLLUP_RETENTION. Both
+ * files are compacted by the background thread, dropping whole blocks or
+ * Rollups that have expired, so the storage stays bounded.
+ *
+ * All times in the history are wall clock times, converted from uptime when
+ * rows are recorded.
+ */
+public class TaskHistory {
+
+    /***
+     * Outcome of a Task execution. Stored by ordinal, so new outcomes must
+     * be added at the end.
+     */
+    public enum Outcome {
+        /** The Task finished normally. **/
+        COMPLETED,
+        /** The Task threw an exception. **/
+        FAILED,
+        /** The Task overran its maximum run time. **/
+        TIMED_OUT,
+        /** The Task missed its deadline and never started. **/
+        DROPPED
+    }
+
+    /***
+     * Receives rows read back from the history.
+     */
+    public interface RowVisitor {
+
+        /***
+         * Called for each row, oldest first.
+         *
+         * @param type Task Type.
+         * @param outcome Outcome.
+         * @param enqueueTime Wall clock time the message was posted.
+         * @param startTime Wall clock time the Task started, or the end time
+         *            if it never started.
+         * @param endTime Wall clock time the Task finished.
+         * @param payloadSize Encoded size of the message Bundle in bytes.
+         */
+        void visit(Type type, Outcome outcome, long enqueueTime,
+                long startTime, long endTime, int payloadSize);
+    }
+
+    /***
+     * Aggregate of the executions of one Type that finished in one minute.
+     */
+    public static final class Rollup {
+        /** Wall clock time of the start of the minute. **/
+        private final long mMinute;
+        /** Task Type. **/
+        private final Type mType;
+        /** Number of executions for each Outcome. **/
+        private final int[] mOutcomes = new int[Outcome.values().length];
+        /** Sum of queue delays in milliseconds. **/
+        private long mDelaySum = 0;
+        /** Longest queue delay in milliseconds. **/
+        private long mDelayMax = 0;
+        /** Sum of run times in milliseconds. **/
+        private long mRunSum = 0;
+        /** Longest run time in milliseconds. **/
+        private long mRunMax = 0;
+        /** Sum of payload sizes in bytes. **/
+        private long mPayloadSum = 0;
+
+        /***
+         * Constructor.
+         *
+         * @param minute Wall clock time of the start of the minute.
+         * @param type Task Type.
+         */
+        private Rollup(final long minute, final Type type) {
+            mMinute = minute;
+            mType = type;
+        }
+
+        /***
+         * Returns the start of the minute.
+         *
+         * @return Wall clock time in milliseconds.
+         */
+        public long getMinute() {
+            return mMinute;
+        }
+
+        /***
+         * Returns the Task Type.
+         *
+         * @return Type.
+         */
+        public Type getType() {
+            return mType;
+        }
+
+        /***
+         * Returns the number of executions with the given Outcome.
+         *
+         * @param outcome Outcome.
+         * @return Count.
+         */
+        public int getCount(final Outcome outcome) {
+            return mOutcomes[outcome.ordinal()];
+        }
+
+        /***
+         * Returns the number of executions of any Outcome.
+         *
+         * @return Count, which is also the throughput per minute.
+         */
+        public int getCount() {
+            int count = 0;
+            for (int outcome : mOutcomes) {
+                count += outcome;
+            }
+            return count;
+        }
+
+        /***
+         * Returns the mean queue delay.
+         *
+         * @return Milliseconds.
+         */
+        public long getMeanDelay() {
+            int count = getCount();
+            return count == 0 ? 0 : mDelaySum / count;
+        }
+
+        /***
+         * Returns the longest queue delay.
+         *
+         * @return Milliseconds.
+         */
+        public long getMaxDelay() {
+            return mDelayMax;
+        }
+
+        /***
+         * Returns the mean run time.
+         *
+         * @return Milliseconds.
+         */
+        public long getMeanRunTime() {
+            int count = getCount();
+            return count == 0 ? 0 : mRunSum / count;
+        }
+
+        /***
+         * Returns the longest run time.
+         *
+         * @return Milliseconds.
+         */
+        public long getMaxRunTime() {
+            return mRunMax;
+        }
+
+        /***
+         * Returns the total payload size.
+         *
+         * @return Bytes.
+         */
+        public long getPayloadBytes() {
+            return mPayloadSum;
+        }
+
+        /***
+         * Add a single execution.
+         *
+         * @param outcome Outcome.
+         * @param delay Queue delay.
+         * @param run Run time.
+         * @param payloadSize Payload size.
+         */
+        private void add(final Outcome outcome, final long delay,
+                final long run, final int payloadSize) {
+            mOutcomes[outcome.ordinal()]++;
+            mDelaySum += delay;
+            mDelayMax = Math.max(mDelayMax, delay);
+            mRunSum += run;
+            mRunMax = Math.max(mRunMax, run);
+            mPayloadSum += payloadSize;
+        }
+
+        /***
+         * Add another Rollup for the same minute and Type.
+         *
+         * @param other Rollup.
+         */
+        private void add(final Rollup other) {
+            for (int i = 0; i < mOutcomes.length; i++) {
+                mOutcomes[i] += other.mOutcomes[i];
+            }
+            mDelaySum += other.mDelaySum;
+            mDelayMax = Math.max(mDelayMax, other.mDelayMax);
+            mRunSum += other.mRunSum;
+            mRunMax = Math.max(mRunMax, other.mRunMax);
+            mPayloadSum += other.mPayloadSum;
+        }
+
+        @Override
+        public String toString() {
+            return "Rollup[" + mMinute + ", " + mType + ", count["
+                    + getCount() + "] delay[" + getMeanDelay() + "/"
+                    + mDelayMax + "ms] run[" + getMeanRunTime() + "/"
+                    + mRunMax + "ms]]";
+        }
+    }
+
+    /** Name of the columnar row log. **/
+    private static final String ROWS_FILE = "history.log";
+    /** Name of the Rollup log. **/
+    private static final String ROLLUPS_FILE = "history-rollups.log";
+    /** Block signature "ZTH2". **/
+    private static final int MAGIC = 0x5A544832;
+    /** Maximum rows in a block. **/
+    private static final int BLOCK_ROWS = 1024;
+    /** One minute in milliseconds. **/
+    private static final long MINUTE = 60 * 1000;
+    /** Time (in milliseconds) between seals of a partly full block. **/
+    private static final long SEAL_INTERVAL = MINUTE;
+    /** Age after which a minute can no longer change. **/
+    private static final long CLOSE_DELAY = 3 * MINUTE;
+    /** [Optional] Time (in milliseconds) rows are kept. **/
+    private static final long RAW_RETENTION = 24 * 60 * MINUTE;
+    /** [Optional] Time (in milliseconds) Rollups are kept. **/
+    private static final long ROLLUP_RETENTION = 7 * 24 * 60 * MINUTE;
+    /** Time (in milliseconds) between retention compactions. **/
+    private static final long COMPACT_INTERVAL = 60 * MINUTE;
+
+    /** Folder holding both files. **/
+    private final File mDirectory;
+    /** Block being filled by record(), guarded by this. **/
+    private Block mBlock = new Block();
+    /** Sealed blocks waiting for the background thread. **/
+    private final BlockingQueue<Block> mSealed =
+        new LinkedBlockingQueue<Block>();
+    /** Rollups for minutes that can still change, guarded by mRollups. **/
+    private final Map<Long, Rollup[]> mOpenRollups =
+        new TreeMap<Long, Rollup[]>();
+    /** Rollups for closed minutes, guarded by mRollups. **/
+    private final Map<Long, Rollup[]> mRollups = new TreeMap<Long, Rollup[]>();
+    /** Background thread writing blocks and Rollups. **/
+    private final Thread mThread;
+    /** Wall clock time of the last compaction. **/
+    private long mLastCompaction = 0;
+    /** TRUE once close() has been called. **/
+    private volatile boolean mClosed = false;
+
+    /***
+     * Constructor loads the stored Rollups and starts the background thread.
+     *
+     * @param directory Folder for the history files.
+     */
+    public TaskHistory(final File directory) {
+        mDirectory = directory;
+        loadRollups();
+        mThread = new Thread("TaskHistory") {
+            @Override
+            public void run() {
+                runBackground();
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /***
+     * Record a Task execution.
+     *
+     * @param type Task Type.
+     * @param outcome Outcome.
+     * @param enqueueTime Uptime at which the message was posted.
+     * @param startTime Uptime of the first resume(), or 0 if it never ran.
+     * @param endTime Uptime at which the Task finished.
+     * @param payloadSize Encoded size of the message Bundle in bytes.
+     */
+    public final void record(final Type type, final Outcome outcome,
+            final long enqueueTime, final long startTime, final long endTime,
+            final int payloadSize) {
+        long offset = System.currentTimeMillis() - SystemClock.uptimeMillis();
+        long start = startTime == 0 ? endTime : startTime;
+        synchronized (this) {
+            mBlock.add(type, outcome, enqueueTime + offset, start + offset,
+                    endTime + offset, payloadSize);
+            if (mBlock.mRows == BLOCK_ROWS) {
+                mSealed.add(mBlock);
+                mBlock = new Block();
+            }
+        }
+    }
+
+    /***
+     * Returns the Rollups for all minutes in a time range, oldest first.
+     * Rollups for the last few minutes are not final, and rows still in the
+     * current block are not yet included.
+     *
+     * @param from Wall clock time, inclusive.
+     * @param to Wall clock time, exclusive.
+     * @return New list of Rollups.
+     */
+    public final List<Rollup> getRollups(final long from, final long to) {
+        List<Rollup> result = new ArrayList<Rollup>();
+        synchronized (mRollups) {
+            addRollups(result, mRollups, from, to);
+            addRollups(result, mOpenRollups, from, to);
+        }
+        return result;
+    }
+
+    /***
+     * Read every stored row, oldest first. Rows still in memory are not
+     * included.
+     *
+     * @param visitor Receives the rows.
+     * @throws IOException If the row log cannot be read.
+     */
+    public final void readRows(final RowVisitor visitor) throws IOException {
+        DataInputStream in = openRows();
+        if (in == null) {
+            return;
+        }
+        try {
+            Block block;
+            while ((block = Block.read(in)) != null) {
+                block.visit(visitor);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /***
+     * Seal the current block and stop the background thread once every
+     * sealed block has been written.
+     */
+    public final void close() {
+        seal();
+        mClosed = true;
+        mThread.interrupt();
+    }
+
+    /***
+     * Queue the current block for the background thread, if it has rows.
+     */
+    private synchronized void seal() {
+        if (mBlock.mRows > 0) {
+            mSealed.add(mBlock);
+            mBlock = new Block();
+        }
+    }
+
+    /***
+     * Background thread loop.
+     */
+    private void runBackground() {
+        discardOldRows();
+        long nextSeal = System.currentTimeMillis() + SEAL_INTERVAL;
+        while (true) {
+            Block block;
+            try {
+                block = mSealed.poll(Math.max(1, nextSeal
+                        - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                block = null;
+            }
+            if (block == null && mClosed) {
+                /** Drain whatever close() sealed. **/
+                while ((block = mSealed.poll()) != null) {
+                    process(block);
+                }
+                closeMinutes(Long.MAX_VALUE);
+                return;
+            }
+            if (block != null) {
+                process(block);
+            }
+
+            /** Runs on time even while full blocks keep arriving. **/
+            long now = System.currentTimeMillis();
+            if (now >= nextSeal) {
+                nextSeal = now + SEAL_INTERVAL;
+                seal();
+                closeMinutes(now - CLOSE_DELAY);
+            }
+            if (now - mLastCompaction > COMPACT_INTERVAL) {
+                mLastCompaction = now;
+                compact(now);
+            }
+        }
+    }
+
+    /***
+     * Delete a row log written in an older block format, as blocks after it
+     * could never be read back.
+     */
+    private void discardOldRows() {
+        File file = new File(mDirectory, ROWS_FILE);
+        DataInputStream in = null;
+        boolean old = false;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            old = in.readInt() != MAGIC;
+        } catch (IOException e) {
+            /** Missing or empty. **/
+        } finally {
+            closeQuietly(in);
+        }
+        if (old) {
+            Log.w(MyApplication.LOG_TAG, "TaskHistory.discardOldRows() "
+                    + "Deleting rows in an older format");
+            file.delete();
+        }
+    }
+
+    /***
+     * Append a sealed block to the row log and fold it into the Rollups.
+     *
+     * @param block Sealed block.
+     */
+    private void process(final Block block) {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(new File(mDirectory, ROWS_FILE),
+                            true)));
+            block.write(out);
+        } catch (IOException e) {
+            Log.e(MyApplication.LOG_TAG, "TaskHistory.process() Unable to "
+                    + "write block", e);
+        } finally {
+            closeQuietly(out);
+        }
+
+        synchronized (mRollups) {
+            for (int i = 0; i < block.mRows; i++) {
+                long minute = block.mEnd[i] - block.mEnd[i] % MINUTE;
+                Rollup[] rollups = mOpenRollups.get(minute);
+                if (rollups == null) {
+                    rollups = new Rollup[Type.values().length];
+                    mOpenRollups.put(minute, rollups);
+                }
+                Type type = Type.fromCode(block.mType[i]);
+                if (rollups[type.ordinal()] == null) {
+                    rollups[type.ordinal()] = new Rollup(minute, type);
+                }
+                rollups[type.ordinal()].add(
+                        Outcome.values()[block.mOutcome[i]],
+                        block.mStart[i] - block.mEnqueue[i],
+                        block.mEnd[i] - block.mStart[i], block.mPayload[i]);
+            }
+        }
+    }
+
+    /***
+     * Move Rollups for minutes before the given time from the open set to
+     * the closed set, appending them to the Rollup log.
+     *
+     * @param before Wall clock time.
+     */
+    private void closeMinutes(final long before) {
+        List<Rollup> closed = new ArrayList<Rollup>();
+        synchronized (mRollups) {
+            List<Long> minutes = new ArrayList<Long>();
+            for (Map.Entry<Long, Rollup[]> entry : mOpenRollups.entrySet()) {
+                if (entry.getKey() >= before) {
+                    break;
+                }
+                minutes.add(entry.getKey());
+                for (Rollup rollup : entry.getValue()) {
+                    if (rollup != null) {
+                        closed.add(rollup);
+                        merge(mRollups, rollup);
+                    }
+                }
+            }
+            for (Long minute : minutes) {
+                mOpenRollups.remove(minute);
+            }
+        }
+        if (closed.isEmpty()) {
+            return;
+        }
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(new File(mDirectory, ROLLUPS_FILE),
+                            true)));
+            for (Rollup rollup : closed) {
+                writeRollup(out, rollup);
+            }
+        } catch (IOException e) {
+            Log.e(MyApplication.LOG_TAG, "TaskHistory.closeMinutes() Unable "
+                    + "to write rollups", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /***
+     * Drop expired blocks from the row log and expired Rollups from the
+     * Rollup log, rewriting each file only if something has expired.
+     *
+     * @param now Current wall clock time.
+     */
+    private void compact(final long now) {
+        try {
+            compactRows(now - RAW_RETENTION);
+        } catch (IOException e) {
+            Log.e(MyApplication.LOG_TAG, "TaskHistory.compact() Unable to "
+                    + "compact rows", e);
+        }
+
+        List<Rollup> kept = new ArrayList<Rollup>();
+        boolean expired = false;
+        synchronized (mRollups) {
+            long cutoff = now - ROLLUP_RETENTION;
+            List<Long> minutes = new ArrayList<Long>(mRollups.keySet());
+            for (Long minute : minutes) {
+                if (minute < cutoff) {
+                    mRollups.remove(minute);
+                    expired = true;
+                } else {
+                    for (Rollup rollup : mRollups.get(minute)) {
+                        if (rollup != null) {
+                            kept.add(rollup);
+                        }
+                    }
+                }
+            }
+        }
+        if (!expired) {
+            return;
+        }
+        File file = new File(mDirectory, ROLLUPS_FILE);
+        File compact = new File(mDirectory, ROLLUPS_FILE + ".compact");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(compact)));
+            for (Rollup rollup : kept) {
+                writeRollup(out, rollup);
+            }
+            out.close();
+            out = null;
+            if (!compact.renameTo(file)) {
+                throw new IOException("Rename failed");
+            }
+        } catch (IOException e) {
+            Log.e(MyApplication.LOG_TAG, "TaskHistory.compact() Unable to "
+                    + "compact rollups", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /***
+     * Drop blocks whose newest row is before the cutoff from the row log.
+     * Blocks are appended in order, so expired blocks form a prefix.
+     *
+     * @param cutoff Wall clock time.
+     * @throws IOException If the row log cannot be rewritten.
+     */
+    private void compactRows(final long cutoff) throws IOException {
+        DataInputStream in = openRows();
+        if (in == null) {
+            return;
+        }
+        File file = new File(mDirectory, ROWS_FILE);
+        File compact = new File(mDirectory, ROWS_FILE + ".compact");
+        DataOutputStream out = null;
+        boolean expired = false;
+        try {
+            Block block;
+            while ((block = Block.read(in)) != null) {
+                if (out == null) {
+                    if (block.mNewest < cutoff) {
+                        expired = true;
+                        continue;
+                    } else if (!expired) {
+                        /** Nothing has expired, so leave the file alone. **/
+                        return;
+                    }
+                    out = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(compact)));
+                }
+                block.write(out);
+            }
+        } finally {
+            in.close();
+            closeQuietly(out);
+        }
+        if (!expired) {
+            return;
+        }
+        if (out == null) {
+            /** Every block has expired. **/
+            file.delete();
+        } else if (!compact.renameTo(file)) {
+            throw new IOException("TaskHistory.compactRows() Rename failed");
+        }
+    }
+
+    /***
+     * Load the closed Rollups from the Rollup log.
+     */
+    private void loadRollups() {
+        File file = new File(mDirectory, ROLLUPS_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            while (true) {
+                Rollup rollup = readRollup(in);
+                if (rollup == null) {
+                    break;
+                }
+                merge(mRollups, rollup);
+            }
+        } catch (IOException e) {
+            Log.w(MyApplication.LOG_TAG, "TaskHistory.loadRollups() "
+                    + "Stopped at a damaged rollup: " + e);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /***
+     * Open the row log for reading.
+     *
+     * @return Stream, or NULL if there is no row log.
+     * @throws IOException If the row log cannot be opened.
+     */
+    private DataInputStream openRows() throws IOException {
+        File file = new File(mDirectory, ROWS_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        return new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+    }
+
+    /***
+     * Add a Rollup to a map, merging with any Rollup for the same minute
+     * and Type.
+     *
+     * @param map Rollups by minute.
+     * @param rollup Rollup to add.
+     */
+    private static void merge(final Map<Long, Rollup[]> map,
+            final Rollup rollup) {
+        Rollup[] rollups = map.get(rollup.mMinute);
+        if (rollups == null) {
+            rollups = new Rollup[Type.values().length];
+            map.put(rollup.mMinute, rollups);
+        }
+        int index = rollup.mType.ordinal();
+        if (rollups[index] == null) {
+            rollups[index] = new Rollup(rollup.mMinute, rollup.mType);
+        }
+        rollups[index].add(rollup);
+    }
+
+    /***
+     * Add copies of the Rollups of a map within a time range to a list.
+     *
+     * @param result List to add to.
+     * @param map Rollups by minute.
+     * @param from Wall clock time, inclusive.
+     * @param to Wall clock time, exclusive.
+     */
+    private static void addRollups(final List<Rollup> result,
+            final Map<Long, Rollup[]> map, final long from, final long to) {
+        for (Map.Entry<Long, Rollup[]> entry : map.entrySet()) {
+            if (entry.getKey() >= from && entry.getKey() < to) {
+                for (Rollup rollup : entry.getValue()) {
+                    if (rollup != null) {
+                        /** Copy, as open Rollups keep changing. **/
+                        Rollup copy = new Rollup(rollup.mMinute,
+                                rollup.mType);
+                        copy.add(rollup);
+                        result.add(copy);
+                    }
+                }
+            }
+        }
+    }
+
+    /***
+     * Write a Rollup record.
+     *
+     * @param out Destination.
+     * @param rollup Rollup.
+     * @throws IOException If the destination cannot be written.
+     */
+    private static void writeRollup(final DataOutputStream out,
+            final Rollup rollup) throws IOException {
+        out.writeLong(rollup.mMinute);
+        out.writeUTF(rollup.mType.name());
+        out.writeByte(rollup.mOutcomes.length);
+        for (int count : rollup.mOutcomes) {
+            out.writeInt(count);
+        }
+        out.writeLong(rollup.mDelaySum);
+        out.writeLong(rollup.mDelayMax);
+        out.writeLong(rollup.mRunSum);
+        out.writeLong(rollup.mRunMax);
+        out.writeLong(rollup.mPayloadSum);
+    }
+
+    /***
+     * Read a Rollup record.
+     *
+     * @param in Source.
+     * @return Rollup, or NULL at the end of the file.
+     * @throws IOException If the record is damaged.
+     */
+    private static Rollup readRollup(final DataInputStream in)
+            throws IOException {
+        long minute;
+        try {
+            minute = in.readLong();
+        } catch (EOFException e) {
+            return null;
+        }
+        Type type;
+        try {
+            type = Type.valueOf(in.readUTF());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown type");
+        }
+        Rollup rollup = new Rollup(minute, type);
+        int outcomes = in.readByte();
+        for (int i = 0; i < outcomes; i++) {
+            int count = in.readInt();
+            if (i < rollup.mOutcomes.length) {
+                rollup.mOutcomes[i] = count;
+            }
+        }
+        rollup.mDelaySum = in.readLong();
+        rollup.mDelayMax = in.readLong();
+        rollup.mRunSum = in.readLong();
+        rollup.mRunMax = in.readLong();
+        rollup.mPayloadSum = in.readLong();
+        return rollup;
+    }
+
+    /***
+     * Close a stream, ignoring errors.
+     *
+     * @param stream Stream, or NULL.
+     */
+    private static void closeQuietly(final Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // Do nothing.
+            }
+        }
+    }
+
+    /***
+     * Block of rows stored column by column. On disk a block is
+     * [magic][length][payload][crc32], where the payload holds the row
+     * count, the oldest and newest end times, and then each column in turn:
+     * Type codes, Outcome ordinals, enqueue times as deltas from the
+     * previous row, queue delays, run times and payload sizes, all as
+     * variable length integers.
+     */
+    private static final class Block {
+        /** Type code column. **/
+        private final byte[] mType = new byte[BLOCK_ROWS];
+        /** Outcome ordinal column. **/
+        private final byte[] mOutcome = new byte[BLOCK_ROWS];
+        /** Enqueue time column. **/
+        private final long[] mEnqueue = new long[BLOCK_ROWS];
+        /** Start time column. **/
+        private final long[] mStart = new long[BLOCK_ROWS];
+        /** End time column. **/
+        private final long[] mEnd = new long[BLOCK_ROWS];
+        /** Payload size column. **/
+        private final int[] mPayload = new int[BLOCK_ROWS];
+        /** Number of rows. **/
+        private int mRows = 0;
+        /** Oldest end time in the block. **/
+        private long mOldest = Long.MAX_VALUE;
+        /** Newest end time in the block. **/
+        private long mNewest = Long.MIN_VALUE;
+
+        /***
+         * Append a row.
+         *
+         * @param type Task Type.
+         * @param outcome Outcome.
+         * @param enqueue Enqueue time.
+         * @param start Start time.
+         * @param end End time.
+         * @param payload Payload size.
+         */
+        private void add(final Type type, final Outcome outcome,
+                final long enqueue, final long start, final long end,
+                final int payload) {
+            mType[mRows] = (byte) type.getCode();
+            mOutcome[mRows] = (byte) outcome.ordinal();
+            mEnqueue[mRows] = enqueue;
+            mStart[mRows] = start;
+            mEnd[mRows] = end;
+            mPayload[mRows] = payload;
+            mRows++;
+            mOldest = Math.min(mOldest, end);
+            mNewest = Math.max(mNewest, end);
+        }
+
+        /***
+         * Pass every row to a visitor.
+         *
+         * @param visitor Receives the rows.
+         */
+        private void visit(final RowVisitor visitor) {
+            Outcome[] outcomes = Outcome.values();
+            for (int i = 0; i < mRows; i++) {
+                visitor.visit(Type.fromCode(mType[i]), outcomes[mOutcome[i]],
+                        mEnqueue[i], mStart[i], mEnd[i], mPayload[i]);
+            }
+        }
+
+        /***
+         * Write the block.
+         *
+         * @param out Destination.
+         * @throws IOException If the destination cannot be written.
+         */
+        private void write(final DataOutputStream out) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream payload = new DataOutputStream(bytes);
+            payload.writeShort(mRows);
+            payload.writeLong(mOldest);
+            payload.writeLong(mNewest);
+            payload.write(mType, 0, mRows);
+            payload.write(mOutcome, 0, mRows);
+            long previous = mOldest;
+            for (int i = 0; i < mRows; i++) {
+                writeVarLong(payload, mEnqueue[i] - previous);
+                previous = mEnqueue[i];
+            }
+            for (int i = 0; i < mRows; i++) {
+                writeVarLong(payload, mStart[i] - mEnqueue[i]);
+            }
+            for (int i = 0; i < mRows; i++) {
+                writeVarLong(payload, mEnd[i] - mStart[i]);
+            }
+            for (int i = 0; i < mRows; i++) {
+                writeVarLong(payload, mPayload[i]);
+            }
+            byte[] data = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            out.writeInt(MAGIC);
+            out.writeInt(data.length);
+            out.write(data);
+            out.writeInt((int) crc.getValue());
+        }
+
+        /***
+         * Read the next block.
+         *
+         * @param in Source.
+         * @return Block, or NULL at the end of the log or at a damaged
+         *         block, such as one torn by a crash.
+         * @throws IOException If the source cannot be read.
+         */
+        private static Block read(final DataInputStream in)
+                throws IOException {
+            byte[] data;
+            try {
+                if (in.readInt() != MAGIC) {
+                    return null;
+                }
+                int length = in.readInt();
+                if (length < 0 || length > BLOCK_ROWS * 64) {
+                    return null;
+                }
+                data = new byte[length];
+                in.readFully(data);
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                if (in.readInt() != (int) crc.getValue()) {
+                    return null;
+                }
+            } catch (EOFException e) {
+                return null;
+            }
+
+            DataInputStream payload = new DataInputStream(
+                    new ByteArrayInputStream(data));
+            Block block = new Block();
+            int rows = payload.readShort();
+            block.mOldest = payload.readLong();
+            block.mNewest = payload.readLong();
+            payload.readFully(block.mType, 0, rows);
+            payload.readFully(block.mOutcome, 0, rows);
+            long previous = block.mOldest;
+            for (int i = 0; i < rows; i++) {
+                block.mEnqueue[i] = previous + readVarLong(payload);
+                previous = block.mEnqueue[i];
+            }
+            for (int i = 0; i < rows; i++) {
+                block.mStart[i] = block.mEnqueue[i] + readVarLong(payload);
+            }
+            for (int i = 0; i < rows; i++) {
+                block.mEnd[i] = block.mStart[i] + readVarLong(payload);
+            }
+            for (int i = 0; i < rows; i++) {
+                block.mPayload[i] = (int) readVarLong(payload);
+            }
+            block.mRows = rows;
+            return block;
+        }
+
+        /***
+         * Write a signed value as a zigzag variable length integer.
+         *
+         * @param out Destination.
+         * @param value Value.
+         * @throws IOException If the destination cannot be written.
+         */
+        private static void writeVarLong(final DataOutputStream out,
+                final long value) throws IOException {
+            long zigzag = (value << 1) ^ (value >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+                zigzag >>>= 7;
+            }
+            out.writeByte((int) zigzag);
+        }
+
+        /***
+         * Read a zigzag variable length integer.
+         *
+         * @param in Source.
+         * @return Value.
+         * @throws IOException If the source cannot be read.
+         */
+        private static long readVarLong(final DataInputStream in)
+                throws IOException {
+            long zigzag = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.readUnsignedByte();
+                zigzag |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return (zigzag >>> 1) ^ -(zigzag & 1);
+                }
+            }
+            throw new IOException("TaskHistory.readVarLong() Malformed value");
+        }
+    }
+}
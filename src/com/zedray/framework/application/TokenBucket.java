@@ -0,0 +1,73 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.application;
+
+import java.security.InvalidParameterException;
+
+/***
+ * Token bucket rate limiter. Tokens are added at a fixed rate up to a burst
+ * capacity, and each admitted request takes one token.
+ */
+public class TokenBucket {
+    /** Tokens added per millisecond. **/
+    private final double mTokensPerMilli;
+    /** Maximum number of stored tokens. **/
+    private final double mCapacity;
+    /** Tokens currently available. **/
+    private double mTokens;
+    /** Uptime at which mTokens was last refilled. **/
+    private long mLastRefill;
+
+    /***
+     * Constructor creates a full bucket.
+     *
+     * @param permitsPerSecond Sustained rate of admitted requests.
+     * @param burst Number of requests that can be admitted at once.
+     * @param now Current uptime in milliseconds.
+     */
+    public TokenBucket(final double permitsPerSecond, final int burst,
+            final long now) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new InvalidParameterException("TokenBucket() Invalid "
+                    + "rate[" + permitsPerSecond + "] or burst[" + burst
+                    + "]");
+        }
+        mTokensPerMilli = permitsPerSecond / 1000;
+        mCapacity = burst;
+        mTokens = burst;
+        mLastRefill = now;
+    }
+
+    /***
+     * Take a token if one is available.
+     *
+     * @param now Current uptime in milliseconds.
+     * @return TRUE if the request is admitted.
+     */
+    public final synchronized boolean tryAcquire(final long now) {
+        if (now > mLastRefill) {
+            mTokens = Math.min(mCapacity,
+                    mTokens + (now - mLastRefill) * mTokensPerMilli);
+            mLastRefill = now;
+        }
+        if (mTokens >= 1) {
+            mTokens--;
+            return true;
+        }
+        return false;
+    }
+}
@@ -17,12 +17,15 @@
 package com.zedray.framework.application;
 
 import java.security.InvalidParameterException;
+import java.util.EnumMap;
+import java.util.Map;
 
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
+import com.zedray.framework.utils.AsyncLog;
 import com.zedray.framework.utils.Type;
 
 /***
@@ -33,7 +36,8 @@ import com.zedray.framework.utils.Type;
  * Activity will then receive all incoming messages until it calls unsubscribe.
  * When all Activities are unsubscribed, all messages flagged as update will be
  * suppressed. The queue size is set to one, with higher priority messages
- * overwriting lower priority pending messages.
+ * overwriting lower priority pending messages. Progress of running tasks is
+ * not sent as messages, but through a ProgressPublisher for each task Type.
  */
 public class UiQueue {
     /** Handler of the currently subscribed Activity. **/
@@ -45,6 +49,11 @@ public class UiQueue {
     private Message queue;
     /** Synchronisation lock for the queue. **/
     private final Object mQueueLock = new Object();
+    /** Records Activity subscribe churn when set, otherwise NULL. **/
+    private volatile LoadTrace mTraceRecorder;
+    /** Progress stream for each task Type, created on demand. **/
+    private final Map<Type, ProgressPublisher<Progress>> mProgress =
+        new EnumMap<Type, ProgressPublisher<Progress>>(Type.class);
 
     /***
      * Called by the BaseActivity to start receiving messages. Any queued
@@ -58,10 +67,16 @@ public class UiQueue {
                     + "Handler cannot be NULL");
         }
 
+        LoadTrace recorder = mTraceRecorder;
+        if (recorder != null) {
+            recorder.record(LoadTrace.Kind.SUBSCRIBE, null);
+        }
+
         mHandler = handler;
         if (queue != null) {
             synchronized (mQueueLock) {
-                Log.w("", "UiQueue.subscribe() calling sendMessage()");                
+                AsyncLog.i(MyApplication.LOG_TAG, "UiQueue.subscribe() "
+                        + "Sending pending message[{}]", queue.what);
                 mHandler.sendMessage(queue);
                 queue = null;
             }
@@ -84,6 +99,10 @@ public class UiQueue {
                     + "handler");
         } else {
             mHandler = null;
+            LoadTrace recorder = mTraceRecorder;
+            if (recorder != null) {
+                recorder.record(LoadTrace.Kind.UNSUBSCRIBE, null);
+            }
         }
     }
 
@@ -119,9 +138,9 @@ public class UiQueue {
 
         } else if (update) {
             /** Suppress update. **/
-            Log.w(MyApplication.LOG_TAG, "UiQueue.postToUi() Suppressing "
-                    + "message[" + message.what + "], as update requests "
-                    + "should not be queued");
+            AsyncLog.w(MyApplication.LOG_TAG, "UiQueue.postToUi() "
+                    + "Suppressing message[{}], as update requests should "
+                    + "not be queued", type);
 
         } else {
             /** Send later. **/
@@ -132,12 +151,79 @@ public class UiQueue {
                 if (queue == null || message.what < queue.what) {
                     queue = message;
                 } else {
-                    Log.w(MyApplication.LOG_TAG, "UiQueue.postToUi() "
-                            + "Ignoring message[" + message.what + "], as "
-                            + "highter priority message[" + message.what
-                            + "] is already pending");
+                    AsyncLog.w(MyApplication.LOG_TAG, "UiQueue.postToUi() "
+                            + "Ignoring message[{}], as higher priority "
+                            + "message[{}] is already pending", type,
+                            queue.what);
                 }
             }
         }
     }
+
+    /***
+     * Returns a copy of the message waiting for an Activity, for a
+     * StateSnapshot.
+     *
+     * @return Message, or NULL if none is waiting.
+     */
+    public final Message getPendingMessage() {
+        synchronized (mQueueLock) {
+            if (queue == null) {
+                return null;
+            }
+            Message message = Message.obtain();
+            message.copyFrom(queue);
+            return message;
+        }
+    }
+
+    /***
+     * Queue a message restored from a StateSnapshot, unless a message is
+     * already waiting.
+     *
+     * @param message Restored message, or NULL.
+     */
+    public final void restore(final Message message) {
+        if (message == null) {
+            return;
+        }
+        synchronized (mQueueLock) {
+            if (queue == null) {
+                queue = message;
+            }
+        }
+    }
+
+    /***
+     * Record every Activity subscribe and unsubscribe from now on, so the
+     * churn can be replayed by the LoadGenerator.
+     *
+     * @param trace Trace to record into, or NULL to stop recording.
+     */
+    public final void setTraceRecorder(final LoadTrace trace) {
+        mTraceRecorder = trace;
+    }
+
+    /***
+     * Returns the Progress stream for a Type of task. The stream lives as
+     * long as the UiQueue, so Activities can subscribe before a task starts
+     * and a new task of the same Type publishes to the same Subscribers.
+     *
+     * @param type Task Type.
+     * @return ProgressPublisher for the Type.
+     */
+    public final ProgressPublisher<Progress> getProgress(final Type type) {
+        if (type == null) {
+            throw new InvalidParameterException("UiQueue.getProgress() "
+                    + "Type cannot be NULL");
+        }
+        synchronized (mProgress) {
+            ProgressPublisher<Progress> publisher = mProgress.get(type);
+            if (publisher == null) {
+                publisher = new ProgressPublisher<Progress>();
+                mProgress.put(type, publisher);
+            }
+            return publisher;
+        }
+    }
 }
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.application;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/***
+ * Low overhead watchdog for stalled worker threads and a backed up UI
+ * thread. Worker threads register a Heartbeat and mark each unit of work
+ * with begin() and end(), which only write a volatile field. Once per sample
+ * interval the watchdog checks every busy Heartbeat against its SLO, and
+ * measures the UI thread lag by posting a ping to the main Looper.
+ *
+ * On a breach it logs an error and writes a diagnostic file to the given
+ * folder, holding the breach, the output of every registered Diagnostic
+ * (e.g. the current queue) and a dump of all thread stacks. Dumps are rate
+ * limited, and only the most recent MAX_DUMPS files are kept.
+ */
+public class Watchdog extends Thread {
+
+    /***
+     * Supplies extra state for a diagnostic dump.
+     */
+    public interface Diagnostic {
+
+        /***
+         * Returns a description of the current state, called on the
+         * watchdog thread.
+         *
+         * @return Description.
+         */
+        String describe();
+    }
+
+    /***
+     * Progress marker for a single worker thread.
+     */
+    public static final class Heartbeat {
+        /** Name shown in breach reports. **/
+        private final String mName;
+        /** Thread that registered the Heartbeat. **/
+        private final Thread mThread;
+        /** Longest acceptable unit of work, in milliseconds. **/
+        private final long mSlo;
+        /** Uptime at which the current unit of work began, or 0 if idle. **/
+        private volatile long mBusySince = 0;
+        /** Value of mBusySince already reported, read by the watchdog. **/
+        private long mReported = 0;
+
+        /***
+         * Constructor.
+         *
+         * @param name Name shown in breach reports.
+         * @param slo Longest acceptable unit of work, in milliseconds.
+         */
+        private Heartbeat(final String name, final long slo) {
+            mName = name;
+            mThread = Thread.currentThread();
+            mSlo = slo;
+        }
+
+        /***
+         * Mark the start of a unit of work.
+         */
+        public void begin() {
+            mBusySince = SystemClock.uptimeMillis();
+        }
+
+        /***
+         * Mark the end of a unit of work.
+         */
+        public void end() {
+            mBusySince = 0;
+        }
+    }
+
+    /** Time (in milliseconds) between samples. **/
+    private static final long SAMPLE_INTERVAL = 1000;
+    /** Minimum time (in milliseconds) between diagnostic dumps. **/
+    private static final long MIN_DUMP_INTERVAL = 60000;
+    /** Number of diagnostic dump files kept. **/
+    private static final int MAX_DUMPS = 5;
+    /** Prefix of the diagnostic dump file names. **/
+    private static final String DUMP_PREFIX = "watchdog-";
+
+    /** Folder holding the diagnostic dumps. **/
+    private final File mDumpDirectory;
+    /** Longest acceptable UI thread lag, in milliseconds. **/
+    private final long mUiSlo;
+    /** Registered worker heartbeats. **/
+    private final List<Heartbeat> mHeartbeats =
+        new CopyOnWriteArrayList<Heartbeat>();
+    /** Registered diagnostics, by name. **/
+    private final Map<String, Diagnostic> mDiagnostics =
+        new LinkedHashMap<String, Diagnostic>();
+    /** Handler for the main Looper, used to ping the UI thread. **/
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+    /** Ping posted to the UI thread. **/
+    private final Runnable mPing = new Runnable() {
+        @Override
+        public void run() {
+            mPingPosted = 0;
+        }
+    };
+    /** Uptime at which the outstanding ping was posted, or 0 if none. **/
+    private volatile long mPingPosted = 0;
+    /** TRUE once the outstanding ping has been reported as late. **/
+    private boolean mPingReported = false;
+    /** Uptime of the last diagnostic dump. **/
+    private long mLastDump = -MIN_DUMP_INTERVAL;
+    /** TRUE once shutdown() has been called. **/
+    private volatile boolean mShutdown = false;
+
+    /***
+     * Constructor.
+     *
+     * @param dumpDirectory Folder to write diagnostic dumps into.
+     * @param uiSlo Longest acceptable UI thread lag, in milliseconds.
+     */
+    public Watchdog(final File dumpDirectory, final long uiSlo) {
+        super("Watchdog");
+        setDaemon(true);
+        mDumpDirectory = dumpDirectory;
+        mUiSlo = uiSlo;
+    }
+
+    /***
+     * Register a Heartbeat for the current thread.
+     *
+     * @param name Name shown in breach reports.
+     * @param slo Longest acceptable unit of work, in milliseconds.
+     * @return New Heartbeat, to be unregistered when the thread exits.
+     */
+    public final Heartbeat register(final String name, final long slo) {
+        Heartbeat heartbeat = new Heartbeat(name, slo);
+        mHeartbeats.add(heartbeat);
+        return heartbeat;
+    }
+
+    /***
+     * Stop checking a Heartbeat.
+     *
+     * @param heartbeat Registered Heartbeat.
+     */
+    public final void unregister(final Heartbeat heartbeat) {
+        mHeartbeats.remove(heartbeat);
+    }
+
+    /***
+     * Add state to every diagnostic dump.
+     *
+     * @param name Section name in the dump.
+     * @param diagnostic Supplier of the state.
+     */
+    public final void addDiagnostic(final String name,
+            final Diagnostic diagnostic) {
+        synchronized (mDiagnostics) {
+            mDiagnostics.put(name, diagnostic);
+        }
+    }
+
+    /***
+     * Stop the watchdog thread.
+     */
+    public final void shutdown() {
+        mShutdown = true;
+        interrupt();
+    }
+
+    @Override
+    public final void run() {
+        while (!mShutdown) {
+            try {
+                Thread.sleep(SAMPLE_INTERVAL);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            sample(SystemClock.uptimeMillis());
+        }
+    }
+
+    /***
+     * Check every Heartbeat and the UI thread against their SLOs.
+     *
+     * @param now Current uptime.
+     */
+    private void sample(final long now) {
+        for (Heartbeat heartbeat : mHeartbeats) {
+            long busySince = heartbeat.mBusySince;
+            if (busySince != 0 && busySince != heartbeat.mReported
+                    && now - busySince > heartbeat.mSlo) {
+                heartbeat.mReported = busySince;
+                breach("Worker[" + heartbeat.mName + "] thread["
+                        + heartbeat.mThread.getName() + "] busy for ["
+                        + (now - busySince) + "ms], SLO [" + heartbeat.mSlo
+                        + "ms]");
+            }
+        }
+
+        long pingPosted = mPingPosted;
+        if (pingPosted == 0) {
+            mPingReported = false;
+            mPingPosted = now;
+            mUiHandler.post(mPing);
+        } else if (!mPingReported && now - pingPosted > mUiSlo) {
+            mPingReported = true;
+            breach("UI thread lagging by [" + (now - pingPosted)
+                    + "ms], SLO [" + mUiSlo + "ms]");
+        }
+    }
+
+    /***
+     * Report a breach, writing a diagnostic dump unless one was written
+     * recently.
+     *
+     * @param reason Description of the breach.
+     */
+    private void breach(final String reason) {
+        Log.e(MyApplication.LOG_TAG, "Watchdog.breach() " + reason);
+        long now = SystemClock.uptimeMillis();
+        if (now - mLastDump < MIN_DUMP_INTERVAL) {
+            return;
+        }
+        mLastDump = now;
+        File file = new File(mDumpDirectory, DUMP_PREFIX
+                + System.currentTimeMillis() + ".txt");
+        PrintWriter writer = null;
+        try {
+            writer = new PrintWriter(new FileWriter(file));
+            writeDump(writer, reason);
+        } catch (IOException e) {
+            Log.e(MyApplication.LOG_TAG, "Watchdog.breach() Unable to write "
+                    + "dump[" + file + "]", e);
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+        deleteOldDumps();
+    }
+
+    /***
+     * Write a diagnostic dump.
+     *
+     * @param writer Destination.
+     * @param reason Description of the breach.
+     */
+    private void writeDump(final PrintWriter writer, final String reason) {
+        writer.println("Breach: " + reason);
+        writer.println("Uptime: " + SystemClock.uptimeMillis());
+        synchronized (mDiagnostics) {
+            for (Map.Entry<String, Diagnostic> entry
+                    : mDiagnostics.entrySet()) {
+                writer.println();
+                writer.println("== " + entry.getKey() + " ==");
+                try {
+                    writer.println(entry.getValue().describe());
+                } catch (RuntimeException e) {
+                    writer.println("Failed: " + e);
+                }
+            }
+        }
+        writer.println();
+        writer.println("== Threads ==");
+        for (Map.Entry<Thread, StackTraceElement[]> entry
+                : Thread.getAllStackTraces().entrySet()) {
+            Thread thread = entry.getKey();
+            writer.println("\"" + thread.getName() + "\" state["
+                    + thread.getState() + "] priority["
+                    + thread.getPriority() + "]");
+            for (StackTraceElement element : entry.getValue()) {
+                writer.println("    at " + element);
+            }
+        }
+    }
+
+    /***
+     * Delete all but the most recent MAX_DUMPS diagnostic dumps.
+     */
+    private void deleteOldDumps() {
+        File[] files = mDumpDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        String[] names = new String[files.length];
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().startsWith(DUMP_PREFIX)) {
+                names[count++] = file.getName();
+            }
+        }
+        /** Names hold the creation time, so sort oldest first. **/
+        Arrays.sort(names, 0, count);
+        for (int i = 0; i < count - MAX_DUMPS; i++) {
+            new File(mDumpDirectory, names[i]).delete();
+        }
+    }
+}
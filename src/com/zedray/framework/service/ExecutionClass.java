@@ -0,0 +1,71 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zedray.framework.service;
+
+import android.os.Process;
+
+/***
+ * Class of work a Task belongs to, which decides the group of carrier
+ * threads it runs on and their Linux thread priority. Separate carriers keep
+ * background throughput work from holding up Tasks the user is waiting on,
+ * and the lower priority keeps it from taking CPU from the UI thread. At
+ * THREAD_PRIORITY_BACKGROUND and below, the platform also moves the threads
+ * into the background scheduling group where it has one.
+ */
+public enum ExecutionClass {
+    /** Work the user is waiting on, at the same priority as the UI. **/
+    INTERACTIVE(Process.THREAD_PRIORITY_DEFAULT, 2),
+    /** Ordinary work, in the background scheduling group. **/
+    DEFAULT(Process.THREAD_PRIORITY_BACKGROUND, 2),
+    /** Throughput work that should only use spare CPU. **/
+    BACKGROUND(Process.THREAD_PRIORITY_LOWEST, 1);
+
+    /** Linux thread priority of the carriers. **/
+    private final int mPriority;
+    /** Number of carrier threads. **/
+    private final int mCarriers;
+
+    /***
+     * Constructor.
+     *
+     * @param priority Linux thread priority of the carriers.
+     * @param carriers Number of carrier threads.
+     */
+    private ExecutionClass(final int priority, final int carriers) {
+        mPriority = priority;
+        mCarriers = carriers;
+    }
+
+    /***
+     * Returns the Linux thread priority of the carriers.
+     *
+     * @return android.os.Process thread priority.
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /***
+     * Returns the number of carrier threads.
+     *
+     * @return Carrier count.
+     */
+    public int getCarriers() {
+        return mCarriers;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zedray.framework.service;
+
+import java.security.InvalidParameterException;
+
+import com.zedray.framework.application.RetryPolicy;
+
+/***
+ * Immutable description of how the Tasks of a TaskHandler are run: how long
+ * a message may wait for its Task to start, how long the Task may run, when
+ * it may skip the Service queue, whether it is retried after a failure, and
+ * the ExecutionClass whose carriers run it.
+ */
+public class ExecutionPolicy {
+    /** Policy with no timeouts, no inline running and no retries. **/
+    public static final ExecutionPolicy DEFAULT =
+        new ExecutionPolicy(0, 0, 0, null);
+
+    /** Time in milliseconds by which the Task must start, or 0. **/
+    private final long mTimeout;
+    /** Time in milliseconds the Task may run, or 0. **/
+    private final long mMaxRunTime;
+    /** Predicted service time below which the Task runs inline, or 0. **/
+    private final long mInlineThreshold;
+    /** Retry policy, or NULL to not retry. **/
+    private final RetryPolicy mRetryPolicy;
+    /** Carriers and priority the Task runs with. **/
+    private final ExecutionClass mExecutionClass;
+
+    /***
+     * Constructor for a policy in the DEFAULT ExecutionClass.
+     *
+     * @param timeout Time in milliseconds by which the Task must start, or
+     *            0 for no deadline.
+     * @param maxRunTime Time in milliseconds the Task may run, or 0 for no
+     *            limit.
+     * @param inlineThreshold Predicted service time in milliseconds below
+     *            which the Task skips the Service queue, or 0 to always
+     *            queue.
+     * @param retryPolicy Retry policy, or NULL to not retry failed Tasks.
+     */
+    public ExecutionPolicy(final long timeout, final long maxRunTime,
+            final long inlineThreshold, final RetryPolicy retryPolicy) {
+        this(timeout, maxRunTime, inlineThreshold, retryPolicy,
+                ExecutionClass.DEFAULT);
+    }
+
+    /***
+     * Constructor.
+     *
+     * @param timeout Time in milliseconds by which the Task must start, or
+     *            0 for no deadline.
+     * @param maxRunTime Time in milliseconds the Task may run, or 0 for no
+     *            limit.
+     * @param inlineThreshold Predicted service time in milliseconds below
+     *            which the Task skips the Service queue, or 0 to always
+     *            queue.
+     * @param retryPolicy Retry policy, or NULL to not retry failed Tasks.
+     * @param executionClass Carriers and priority the Task runs with.
+     */
+    public ExecutionPolicy(final long timeout, final long maxRunTime,
+            final long inlineThreshold, final RetryPolicy retryPolicy,
+            final ExecutionClass executionClass) {
+        if (timeout < 0 || maxRunTime < 0 || inlineThreshold < 0
+                || executionClass == null) {
+            throw new InvalidParameterException("ExecutionPolicy() Invalid "
+                    + "timeout[" + timeout + "], max run time[" + maxRunTime
+                    + "], inline threshold[" + inlineThreshold
+                    + "] or class[" + executionClass + "]");
+        }
+        mTimeout = timeout;
+        mMaxRunTime = maxRunTime;
+        mInlineThreshold = inlineThreshold;
+        mRetryPolicy = retryPolicy;
+        mExecutionClass = executionClass;
+    }
+
+    /***
+     * Returns the time by which the Task must start.
+     *
+     * @return Timeout in milliseconds, or 0 for no deadline.
+     */
+    public final long getTimeout() {
+        return mTimeout;
+    }
+
+    /***
+     * Returns the time the Task may run.
+     *
+     * @return Maximum run time in milliseconds, or 0 for no limit.
+     */
+    public final long getMaxRunTime() {
+        return mMaxRunTime;
+    }
+
+    /***
+     * Returns the predicted service time below which the Task runs inline.
+     *
+     * @return Threshold in milliseconds, or 0 to always queue.
+     */
+    public final long getInlineThreshold() {
+        return mInlineThreshold;
+    }
+
+    /***
+     * Returns the retry policy for failed Tasks.
+     *
+     * @return RetryPolicy, or NULL to not retry.
+     */
+    public final RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    /***
+     * Returns the ExecutionClass whose carriers run the Task.
+     *
+     * @return ExecutionClass.
+     */
+    public final ExecutionClass getExecutionClass() {
+        return mExecutionClass;
+    }
+}
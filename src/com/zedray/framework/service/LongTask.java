@@ -0,0 +1,166 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.service;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.zedray.framework.application.Cache;
+import com.zedray.framework.application.Progress;
+import com.zedray.framework.application.ProgressPublisher;
+import com.zedray.framework.application.RetryPolicy;
+import com.zedray.framework.application.UiQueue;
+import com.zedray.framework.utils.Keys;
+import com.zedray.framework.utils.Type;
+
+/***
+ * [Optional] Example task which takes time to complete and repeatedly updates
+ * the UI. The work is split into LONG_TASK_COMPLETE units which are computed
+ * in parallel, so the task finishes sooner on devices with more cores.
+ * Progress is published on the UiQueue Progress stream for DO_LONG_TASK, and
+ * the number of units completed without a gap is checkpointed in the Cache,
+ * so the Service can resume the task after it has been abnormally terminated.
+ */
+public class LongTask extends ParallelTask<Integer> {
+    /***
+     * [Optional] Long tasks run without limits on the BACKGROUND carriers,
+     * and are retried up to 5 times.
+     */
+    public static final ExecutionPolicy POLICY = new ExecutionPolicy(0, 0,
+            0, new RetryPolicy(5, 2000, 60000), ExecutionClass.BACKGROUND);
+    /** [Optional] Number of units of work, one per percent. **/
+    private static final int LONG_TASK_COMPLETE = 100;
+    /** [Optional] Time (in milliseconds) wasted by each unit of work. **/
+    private static final int UNIT_TIME = WorkerThread.WASTE_TIME / 10;
+    /** Pointer to the Application Cache. **/
+    private final Cache mCache;
+    /** Progress stream for this task. **/
+    private final ProgressPublisher<Progress> mProgressPublisher;
+    /** Units completed, guarded by this. **/
+    private final boolean[] mCompleted = new boolean[LONG_TASK_COMPLETE];
+    /** First unit not yet completed, guarded by this. **/
+    private int mCheckpoint;
+
+    /***
+     * Constructor.
+     *
+     * @param cache Application Cache.
+     * @param uiQueue Application UiQueue.
+     * @param executor Executor computing the units of work.
+     * @param bundle Bundle of extra information, NULL otherwise.
+     */
+    public LongTask(final Cache cache, final UiQueue uiQueue,
+            final ParallelExecutor executor, final Bundle bundle) {
+        super(Type.DO_LONG_TASK, executor, uiQueue, getStartProgress(bundle),
+                LONG_TASK_COMPLETE, 1);
+        mCache = cache;
+        mProgressPublisher = uiQueue.getProgress(Type.DO_LONG_TASK);
+        mCheckpoint = getStartProgress(bundle);
+    }
+
+    /***
+     * Creates LongTasks for DO_LONG_TASK messages.
+     */
+    public static class Handler implements TaskHandler {
+        @Override
+        public final Task createTask(final WorkerThread worker,
+                final Bundle bundle) {
+            return new LongTask(worker.getCache(), worker.getUiQueue(),
+                    worker.getParallelExecutor(POLICY.getExecutionClass()),
+                    bundle);
+        }
+
+        @Override
+        public final ExecutionPolicy getPolicy() {
+            return POLICY;
+        }
+    }
+
+    /***
+     * Returns the unit to resume from.
+     *
+     * @param bundle Bundle of extra information, NULL otherwise.
+     * @return Checkpointed unit, or 0.
+     */
+    private static int getStartProgress(final Bundle bundle) {
+        if (bundle != null) {
+            return Math.max(0, bundle.getInt(WorkerThread.PROCESS_STATE));
+        } else {
+            return 0;
+        }
+    }
+
+    @Override
+    protected final long onStart() {
+        mProgressPublisher.publish(new Progress(mCheckpoint,
+                "Loading long task"));
+        return WorkerThread.WASTE_TIME;
+    }
+
+    @Override
+    public final Integer compute(final int from, final int to) {
+        for (int unit = from; unit < to; unit++) {
+            SystemClock.sleep(UNIT_TIME);
+            checkpoint(unit);
+            worked(1);
+        }
+        return to - from;
+    }
+
+    @Override
+    public final Integer merge(final Integer left, final Integer right) {
+        return left + right;
+    }
+
+    @Override
+    protected final String getProgressText(final int percent) {
+        return "Long task " + percent + "% complete";
+    }
+
+    @Override
+    protected final void onComplete(final Integer result) {
+        /** Clear Long Process state. **/
+        mCache.setInt(Keys.STATE_PROCESS, -1);
+        mProgressPublisher.publish(new Progress(Progress.IDLE,
+                "Long task done"));
+    }
+
+    @Override
+    protected final synchronized Bundle getCheckpoint() {
+        Bundle bundle = new Bundle();
+        bundle.putInt(WorkerThread.PROCESS_STATE, mCheckpoint);
+        return bundle;
+    }
+
+    /***
+     * Mark a unit as completed, and checkpoint the first unit not yet
+     * completed if it has moved.
+     *
+     * @param unit Completed unit.
+     */
+    private synchronized void checkpoint(final int unit) {
+        mCompleted[unit] = true;
+        int checkpoint = mCheckpoint;
+        while (checkpoint < LONG_TASK_COMPLETE && mCompleted[checkpoint]) {
+            checkpoint++;
+        }
+        if (checkpoint != mCheckpoint) {
+            mCheckpoint = checkpoint;
+            mCache.setInt(Keys.STATE_PROCESS, checkpoint);
+        }
+    }
+}
@@ -16,6 +16,9 @@
 
 package com.zedray.framework.service;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.app.Service;
 import android.content.Intent;
 import android.os.Bundle;
@@ -26,8 +29,12 @@ import android.util.Log;
 
 import com.zedray.framework.application.Cache;
 import com.zedray.framework.application.MyApplication;
+import com.zedray.framework.application.Progress;
+import com.zedray.framework.application.ProgressPublisher;
 import com.zedray.framework.application.ServiceQueue;
 import com.zedray.framework.application.UiQueue;
+import com.zedray.framework.utils.Keys;
+import com.zedray.framework.utils.NotificationUtils;
 import com.zedray.framework.utils.Type;
 
 /***
@@ -36,6 +43,11 @@ import com.zedray.framework.utils.Type;
  * events (Alarms, Broadcast receivers, etc).
  */
 public class MyService extends Service {
+    /***
+     * [Optional] Minimum time (in milliseconds) between updates of the
+     * progress notification.
+     */
+    private static final long NOTIFICATION_SAMPLE_INTERVAL = 1000;
     /** Performs all long running tasks in a separate thread. **/
     private WorkerThread mWorkerThread;
     /** Synchronisation lock for the WorkerThread. **/
@@ -55,6 +67,44 @@ public class MyService extends Service {
             processMessage(messageCopy);
         }
     };
+    /***
+     * Starts inline eligible messages on the running WorkerThread. Messages
+     * are queued normally while there is no WorkerThread.
+     */
+    private final ServiceQueue.InlineRunner mInlineRunner =
+        new ServiceQueue.InlineRunner() {
+            @Override
+            public boolean runInline(final Type type, final Bundle bundle,
+                    final long enqueueTime, final long maxRunTime,
+                    final boolean onCaller) {
+                WorkerThread workerThread;
+                synchronized (mWorkerThreadLock) {
+                    workerThread = mWorkerThread;
+                }
+                return workerThread != null && workerThread.runInline(type,
+                        bundle, enqueueTime, maxRunTime, onCaller);
+            }
+        };
+    /***
+     * Lists the unfinished work of the running WorkerThread, for a
+     * StateSnapshot.
+     */
+    private final ServiceQueue.PendingWork mPendingWork =
+        new ServiceQueue.PendingWork() {
+            @Override
+            public List<Message> getPendingMessages() {
+                WorkerThread workerThread;
+                synchronized (mWorkerThreadLock) {
+                    workerThread = mWorkerThread;
+                }
+                if (workerThread == null) {
+                    return new ArrayList<Message>();
+                }
+                return workerThread.getPendingMessages();
+            }
+        };
+    /** Subscription of the progress notification to the long task. **/
+    private ProgressPublisher.Subscription mNotificationSubscription;
 
     /***
      * Reacts to any incoming message by passing it to the WorkerThread,
@@ -65,12 +115,11 @@ public class MyService extends Service {
      */
     private void processMessage(final Message message) {
         synchronized (mWorkerThreadLock) {
-            if (mWorkerThread == null || mWorkerThread.isStopping()) {
-                mWorkerThread = new WorkerThread(mCache, mUiQueue, this);
+            if (mWorkerThread == null || !mWorkerThread.add(message)) {
+                mWorkerThread = new WorkerThread(mCache, mUiQueue,
+                        mServiceQueue, this);
                 mWorkerThread.add(message);
                 mWorkerThread.start();
-            } else {
-                mWorkerThread.add(message);
             }
         }
     }
@@ -95,10 +144,34 @@ public class MyService extends Service {
          * handle incoming messages.
          */
         mServiceQueue.registerServiceHandler(mHandler);
+        mServiceQueue.registerInlineRunner(mInlineRunner);
+        mServiceQueue.registerPendingWork(mPendingWork);
+
+        /** Show sampled long task progress in a notification. **/
+        mUiQueue.getProgress(Type.DO_LONG_TASK).subscribe(
+                new ProgressPublisher.Subscriber<Progress>() {
+                    @Override
+                    public void onSubscribe(
+                            final ProgressPublisher.Subscription s) {
+                        mNotificationSubscription = s;
+                        s.request(1);
+                    }
 
-        /** Recreate an unresolved execution state. **/
-        int state = mCache.getLongProcessState();
-        if (state != -1) {
+                    @Override
+                    public void onNext(final Progress progress) {
+                        NotificationUtils.notifyUserOfProgress(
+                                getApplicationContext(),
+                                progress.getPercent());
+                        mNotificationSubscription.request(1);
+                    }
+                }, mHandler, NOTIFICATION_SAMPLE_INTERVAL);
+
+        /***
+         * Recreate an unresolved execution state, unless the long task was
+         * already restored from a StateSnapshot.
+         */
+        int state = mCache.getInt(Keys.STATE_PROCESS);
+        if (state != -1 && !mServiceQueue.isRestored(Type.DO_LONG_TASK)) {
             Bundle bundle = new Bundle();
             bundle.putInt(WorkerThread.PROCESS_STATE, state);
             mServiceQueue.postToService(Type.DO_LONG_TASK, bundle);
@@ -111,6 +184,12 @@ public class MyService extends Service {
     public final void onDestroy() {
         Log.i(MyApplication.LOG_TAG, "MyService.MyBinder.onDestroy()");
         mServiceQueue.registerServiceHandler(null);
+        mServiceQueue.registerInlineRunner(null);
+        mServiceQueue.registerPendingWork(null);
+        mNotificationSubscription.cancel();
+        MyApplication myApplication = (MyApplication) getApplication();
+        myApplication.saveTrace();
+        myApplication.saveSnapshot();
         super.onDestroy();
     }
 
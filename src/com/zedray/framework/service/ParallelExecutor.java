@@ -0,0 +1,454 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.service;
+
+import java.security.InvalidParameterException;
+import java.util.LinkedList;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.zedray.framework.application.MyApplication;
+
+/***
+ * Work stealing pool for data parallel jobs over an integer range. Each
+ * worker keeps its own deque of range chunks. A worker splits its current
+ * chunk in half, pushing the right half onto its deque and carrying on with
+ * the left, for as long as the chunk is above the job grain and either its
+ * deque is empty or another worker is idle. Idle workers steal the oldest,
+ * and so largest, chunk from another worker's deque. Splitting therefore
+ * adapts to the number of workers actually free, rather than cutting the
+ * range into a fixed number of pieces up front.
+ *
+ * Partial results are merged pairwise up the tree of splits, always as
+ * merge(left, right), so a Job only needs an associative merge.
+ */
+public class ParallelExecutor {
+
+    /***
+     * Data parallel computation over a range.
+     *
+     * @param <R> Type of the partial and final results.
+     */
+    public interface Job<R> {
+
+        /***
+         * Compute the result for part of the range, on a worker thread.
+         *
+         * @param from First index, inclusive.
+         * @param to Last index, exclusive.
+         * @return Partial result.
+         */
+        R compute(int from, int to);
+
+        /***
+         * Merge the results of two adjacent parts of the range.
+         *
+         * @param left Result of the lower part.
+         * @param right Result of the upper part.
+         * @return Merged result.
+         */
+        R merge(R left, R right);
+
+        /***
+         * Called once, on a worker thread, when the whole range has been
+         * computed or a part of it has failed.
+         *
+         * @param result Final result, or NULL on failure.
+         * @param error Exception thrown by compute() or merge(), or NULL.
+         */
+        void onFinished(R result, RuntimeException error);
+    }
+
+    /** Worker threads, each with its own deque. **/
+    private final Worker[] mWorkers;
+    /** Root chunks submitted from outside the pool. **/
+    private final LinkedList<Chunk<?>> mSubmitted = new LinkedList<Chunk<?>>();
+    /** Lock idle workers wait on. **/
+    private final Object mIdleLock = new Object();
+    /** Number of workers waiting for work, guarded by mIdleLock. **/
+    private volatile int mIdle = 0;
+    /** TRUE once shutdown() has been called. **/
+    private volatile boolean mShutdown = false;
+
+    /***
+     * Constructor starts the worker threads.
+     *
+     * @param name Prefix for the thread names.
+     * @param workers Number of worker threads, usually the number of cores.
+     * @param priority android.os.Process thread priority of the workers.
+     */
+    public ParallelExecutor(final String name, final int workers,
+            final int priority) {
+        if (workers < 1) {
+            throw new InvalidParameterException("ParallelExecutor() "
+                    + "Workers[" + workers + "] must be at least 1");
+        }
+        mWorkers = new Worker[workers];
+        for (int i = 0; i < workers; i++) {
+            mWorkers[i] = new Worker(name + "-" + i, priority);
+        }
+        for (Worker worker : mWorkers) {
+            worker.start();
+        }
+    }
+
+    /***
+     * Returns the number of worker threads.
+     *
+     * @return Worker count.
+     */
+    public final int getParallelism() {
+        return mWorkers.length;
+    }
+
+    /***
+     * Start a Job over a range. Returns straight away; the Job is notified
+     * through onFinished().
+     *
+     * @param job Job to run.
+     * @param from First index, inclusive.
+     * @param to Last index, exclusive.
+     * @param grain Smallest range size worth splitting further.
+     * @param <R> Type of the results.
+     */
+    public final <R> void invoke(final Job<R> job, final int from,
+            final int to, final int grain) {
+        if (job == null || from > to || grain < 1) {
+            throw new InvalidParameterException("ParallelExecutor.invoke() "
+                    + "Invalid job[" + job + "] range[" + from + ", " + to
+                    + "] or grain[" + grain + "]");
+        }
+        Chunk<R> root = new Chunk<R>(new Invocation<R>(job, grain), null,
+                false, from, to);
+        synchronized (mSubmitted) {
+            mSubmitted.addLast(root);
+        }
+        signal();
+    }
+
+    /***
+     * Stop all worker threads. Chunks that have not been computed are
+     * abandoned and their Jobs are never notified.
+     */
+    public final void shutdown() {
+        mShutdown = true;
+        for (Worker worker : mWorkers) {
+            worker.interrupt();
+        }
+        synchronized (mIdleLock) {
+            mIdleLock.notifyAll();
+        }
+    }
+
+    /***
+     * Wake an idle worker, if there is one, after new work has been queued.
+     */
+    private void signal() {
+        if (mIdle > 0) {
+            synchronized (mIdleLock) {
+                mIdleLock.notify();
+            }
+        }
+    }
+
+    /***
+     * Find work for a worker: its own newest chunk, then a submitted chunk,
+     * then the oldest chunk of another worker.
+     *
+     * @param worker Worker looking for work.
+     * @return Chunk, or NULL if there is no work anywhere.
+     */
+    private Chunk<?> findWork(final Worker worker) {
+        Chunk<?> chunk = worker.popLast();
+        if (chunk != null) {
+            return chunk;
+        }
+        synchronized (mSubmitted) {
+            if (!mSubmitted.isEmpty()) {
+                return mSubmitted.removeFirst();
+            }
+        }
+        for (Worker victim : mWorkers) {
+            if (victim != worker) {
+                chunk = victim.stealFirst();
+                if (chunk != null) {
+                    return chunk;
+                }
+            }
+        }
+        return null;
+    }
+
+    /***
+     * Split a chunk as far as is useful, then compute and complete the
+     * remaining leaf.
+     *
+     * @param worker Worker running the chunk.
+     * @param chunk Chunk to run.
+     * @param <R> Type of the results.
+     */
+    private <R> void run(final Worker worker, final Chunk<R> chunk) {
+        Invocation<R> invocation = chunk.mInvocation;
+        Chunk<R> leaf = chunk;
+        try {
+            while (!invocation.isFinished()
+                    && leaf.mTo - leaf.mFrom > invocation.mGrain
+                    && (mIdle > 0 || worker.isEmpty())) {
+                int middle = leaf.mFrom + (leaf.mTo - leaf.mFrom) / 2;
+                leaf.mPending = 2;
+                worker.push(new Chunk<R>(invocation, leaf, false, middle,
+                        leaf.mTo));
+                signal();
+                leaf = new Chunk<R>(invocation, leaf, true, leaf.mFrom,
+                        middle);
+            }
+            if (invocation.isFinished()) {
+                return;
+            }
+            leaf.complete(invocation.mJob.compute(leaf.mFrom, leaf.mTo));
+        } catch (RuntimeException e) {
+            invocation.finish(null, e);
+        }
+    }
+
+    /***
+     * A single Job invocation, shared by all of its chunks.
+     *
+     * @param <R> Type of the results.
+     */
+    private static final class Invocation<R> {
+        /** Job being run. **/
+        private final Job<R> mJob;
+        /** Smallest range size worth splitting further. **/
+        private final int mGrain;
+        /** TRUE once the Job has been notified. **/
+        private boolean mFinished = false;
+
+        /***
+         * Constructor.
+         *
+         * @param job Job being run.
+         * @param grain Smallest range size worth splitting further.
+         */
+        private Invocation(final Job<R> job, final int grain) {
+            mJob = job;
+            mGrain = grain;
+        }
+
+        /***
+         * Returns TRUE once the Job has completed or failed.
+         *
+         * @return TRUE if finished.
+         */
+        private synchronized boolean isFinished() {
+            return mFinished;
+        }
+
+        /***
+         * Notify the Job, the first time only.
+         *
+         * @param result Final result, or NULL on failure.
+         * @param error Failure, or NULL.
+         */
+        private void finish(final R result, final RuntimeException error) {
+            synchronized (this) {
+                if (mFinished) {
+                    return;
+                }
+                mFinished = true;
+            }
+            if (error != null) {
+                Log.e(MyApplication.LOG_TAG, "ParallelExecutor.finish() Job["
+                        + mJob + "] failed", error);
+            }
+            mJob.onFinished(result, error);
+        }
+    }
+
+    /***
+     * Part of the range of an Invocation. A chunk that has been split waits
+     * for both halves, then merges their results into its parent.
+     *
+     * @param <R> Type of the results.
+     */
+    private static final class Chunk<R> {
+        /** Invocation this chunk belongs to. **/
+        private final Invocation<R> mInvocation;
+        /** Chunk this was split from, or NULL for the whole range. **/
+        private final Chunk<R> mParent;
+        /** TRUE if this is the lower half of its parent. **/
+        private final boolean mLeft;
+        /** First index, inclusive. **/
+        private final int mFrom;
+        /** Last index, exclusive. **/
+        private final int mTo;
+        /** Number of halves still to complete once split, guarded by this. **/
+        private int mPending = 0;
+        /** Result of the lower half, guarded by this. **/
+        private R mLeftResult;
+        /** Result of the upper half, guarded by this. **/
+        private R mRightResult;
+
+        /***
+         * Constructor.
+         *
+         * @param invocation Invocation this chunk belongs to.
+         * @param parent Chunk this was split from, or NULL.
+         * @param left TRUE if this is the lower half of its parent.
+         * @param from First index, inclusive.
+         * @param to Last index, exclusive.
+         */
+        private Chunk(final Invocation<R> invocation, final Chunk<R> parent,
+                final boolean left, final int from, final int to) {
+            mInvocation = invocation;
+            mParent = parent;
+            mLeft = left;
+            mFrom = from;
+            mTo = to;
+        }
+
+        /***
+         * Pass the result of this chunk up the tree, merging with the other
+         * half whenever both halves of a parent have completed.
+         *
+         * @param result Result of this chunk.
+         */
+        private void complete(final R result) {
+            R value = result;
+            Chunk<R> chunk = this;
+            while (chunk.mParent != null) {
+                Chunk<R> parent = chunk.mParent;
+                synchronized (parent) {
+                    if (chunk.mLeft) {
+                        parent.mLeftResult = value;
+                    } else {
+                        parent.mRightResult = value;
+                    }
+                    if (--parent.mPending > 0) {
+                        return;
+                    }
+                }
+                value = mInvocation.mJob.merge(parent.mLeftResult,
+                        parent.mRightResult);
+                chunk = parent;
+            }
+            mInvocation.finish(value, null);
+        }
+    }
+
+    /***
+     * Worker thread with its own deque of chunks.
+     */
+    private final class Worker extends Thread {
+        /** Chunks split off by this worker, newest last. **/
+        private final LinkedList<Chunk<?>> mDeque = new LinkedList<Chunk<?>>();
+        /** Linux thread priority. **/
+        private final int mPriority;
+
+        /***
+         * Constructor.
+         *
+         * @param name Thread name.
+         * @param priority android.os.Process thread priority.
+         */
+        private Worker(final String name, final int priority) {
+            super(name);
+            mPriority = priority;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(mPriority);
+            while (!mShutdown) {
+                Chunk<?> chunk = findWork(this);
+                if (chunk != null) {
+                    ParallelExecutor.this.run(this, chunk);
+                    continue;
+                }
+                synchronized (mIdleLock) {
+                    mIdle++;
+                    try {
+                        /** Check again now that pushers will signal us. **/
+                        if (!mShutdown && !hasWork()) {
+                            mIdleLock.wait();
+                        }
+                    } catch (InterruptedException e) {
+                        // Check for shutdown.
+                    } finally {
+                        mIdle--;
+                    }
+                }
+            }
+        }
+
+        /***
+         * Returns TRUE if any chunk is queued anywhere in the pool.
+         *
+         * @return TRUE if there is work.
+         */
+        private boolean hasWork() {
+            synchronized (mSubmitted) {
+                if (!mSubmitted.isEmpty()) {
+                    return true;
+                }
+            }
+            for (Worker worker : mWorkers) {
+                if (!worker.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /***
+         * Push a newly split chunk.
+         *
+         * @param chunk Chunk.
+         */
+        private synchronized void push(final Chunk<?> chunk) {
+            mDeque.addLast(chunk);
+        }
+
+        /***
+         * Take the newest chunk, for this worker.
+         *
+         * @return Chunk, or NULL if the deque is empty.
+         */
+        private synchronized Chunk<?> popLast() {
+            return mDeque.isEmpty() ? null : mDeque.removeLast();
+        }
+
+        /***
+         * Take the oldest chunk, for another worker.
+         *
+         * @return Chunk, or NULL if the deque is empty.
+         */
+        private synchronized Chunk<?> stealFirst() {
+            return mDeque.isEmpty() ? null : mDeque.removeFirst();
+        }
+
+        /***
+         * Returns TRUE if the deque is empty.
+         *
+         * @return TRUE if empty.
+         */
+        private synchronized boolean isEmpty() {
+            return mDeque.isEmpty();
+        }
+    }
+}
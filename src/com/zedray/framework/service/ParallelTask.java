@@ -0,0 +1,155 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.zedray.framework.application.Progress;
+import com.zedray.framework.application.ProgressPublisher;
+import com.zedray.framework.application.UiQueue;
+import com.zedray.framework.utils.Type;
+
+/***
+ * Task over a range of items which is split across a ParallelExecutor. The
+ * Task parks while the range is computed, so it holds no carrier thread, and
+ * is woken to handle the merged result. Subclasses report items as they are
+ * computed with worked(), which publishes the aggregated percentage on the
+ * UiQueue Progress stream for the Task Type.
+ *
+ * @param <R> Type of the partial and final results.
+ */
+public abstract class ParallelTask<R> extends Task implements
+        ParallelExecutor.Job<R> {
+    /** Executor computing the range. **/
+    private final ParallelExecutor mExecutor;
+    /** Progress stream for this Task. **/
+    private final ProgressPublisher<Progress> mProgressPublisher;
+    /** First index of the range, inclusive. **/
+    private final int mFrom;
+    /** Last index of the range, exclusive. **/
+    private final int mTo;
+    /** Smallest range size worth splitting further. **/
+    private final int mGrain;
+    /** Number of items reported by worked(). **/
+    private final AtomicInteger mWorked = new AtomicInteger();
+    /** Last published percentage, guarded by mProgressPublisher. **/
+    private int mPublishedPercent = -1;
+    /** TRUE once onStart() has been called. **/
+    private boolean mStarted = false;
+    /** TRUE once the range has been handed to the executor. **/
+    private boolean mSubmitted = false;
+    /** Final result, set before the Task is woken. **/
+    private volatile R mResult;
+    /** Failure, set before the Task is woken. **/
+    private volatile RuntimeException mError;
+
+    /***
+     * Constructor. Items before the start of the range are counted as
+     * already done, so a Task resumed from a checkpoint carries on from its
+     * previous percentage.
+     *
+     * @param type Message Type that created this Task.
+     * @param executor Executor computing the range.
+     * @param uiQueue Application UiQueue.
+     * @param from First index of the range, inclusive.
+     * @param to Last index of the range, exclusive.
+     * @param grain Smallest range size worth splitting further.
+     */
+    protected ParallelTask(final Type type, final ParallelExecutor executor,
+            final UiQueue uiQueue, final int from, final int to,
+            final int grain) {
+        super(type);
+        mExecutor = executor;
+        mProgressPublisher = uiQueue.getProgress(type);
+        mFrom = from;
+        mTo = to;
+        mGrain = grain;
+    }
+
+    /***
+     * Called on a carrier thread before the range is submitted.
+     *
+     * @return Milliseconds to wait before submitting the range, or 0.
+     */
+    protected long onStart() {
+        return 0;
+    }
+
+    /***
+     * Called on a carrier thread with the merged result of the whole range.
+     *
+     * @param result Final result.
+     */
+    protected abstract void onComplete(R result);
+
+    /***
+     * Returns the progress text for a percentage.
+     *
+     * @param percent Percent complete.
+     * @return Text.
+     */
+    protected String getProgressText(final int percent) {
+        return getType() + " " + percent + "% complete";
+    }
+
+    /***
+     * Report items computed, from any worker thread. Progress is published
+     * whenever the aggregated percentage increases.
+     *
+     * @param items Number of items computed since the last call.
+     */
+    protected final void worked(final int items) {
+        int done = mFrom + mWorked.addAndGet(items);
+        int percent = mTo == 0 ? 100 : (int) (done * 100L / mTo);
+        synchronized (mProgressPublisher) {
+            if (percent > mPublishedPercent) {
+                mPublishedPercent = percent;
+                mProgressPublisher.publish(new Progress(percent,
+                        getProgressText(percent)));
+            }
+        }
+    }
+
+    @Override
+    protected final long resume() {
+        if (!mStarted) {
+            mStarted = true;
+            long wait = onStart();
+            if (wait > 0) {
+                return wait;
+            }
+        }
+        if (!mSubmitted) {
+            mSubmitted = true;
+            mExecutor.invoke(this, mFrom, mTo, mGrain);
+            return PARK;
+        }
+        if (mError != null) {
+            throw mError;
+        }
+        onComplete(mResult);
+        return DONE;
+    }
+
+    @Override
+    public final void onFinished(final R result,
+            final RuntimeException error) {
+        mResult = result;
+        mError = error;
+        wake();
+    }
+}
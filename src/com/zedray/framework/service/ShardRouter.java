@@ -0,0 +1,255 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.service;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.zedray.framework.application.MyApplication;
+import com.zedray.framework.utils.AsyncLog;
+
+/***
+ * Routes Tasks with a routing key to one of a fixed number of shards, by the
+ * hash of the key. Tasks with the same key are held in submission order, and
+ * only the oldest of them is offered to a shard, so they never overlap and
+ * run in order, whatever their ExecutionClass. Each ExecutionClass has its
+ * own shards, so an INTERACTIVE Task never waits behind a BACKGROUND Task
+ * with another key that hashed to the same shard. Each shard lets one Task
+ * at a time into the TaskScheduler for its class and holds the rest in the
+ * order they were offered, while Tasks on different shards run
+ * concurrently. Tasks without a key go straight to the scheduler.
+ *
+ * Keyed submissions are counted in windows of HOT_KEY_WINDOW. A key taking
+ * at least HOT_KEY_SHARE of a window is reported as hot, as it serialises
+ * its shard and everything else hashed to it.
+ */
+public class ShardRouter {
+    /** Number of keyed submissions in each hot key window. **/
+    private static final int HOT_KEY_WINDOW = 256;
+    /** Share of a window above which a key is hot. **/
+    private static final double HOT_KEY_SHARE = 0.25;
+
+    /** Schedulers running the Tasks of each ExecutionClass. **/
+    private final Map<ExecutionClass, TaskScheduler> mSchedulers;
+    /** Number of shards for each ExecutionClass. **/
+    private final int mShards;
+    /***
+     * Tasks offered to each shard and waiting behind its running Task,
+     * indexed by ExecutionClass ordinal times mShards plus the shard.
+     */
+    private final List<LinkedList<Task>> mWaiting;
+    /** TRUE for each shard with a Task in the scheduler, as mWaiting. **/
+    private final boolean[] mBusy;
+    /***
+     * Unfinished Tasks for each routing key, in submission order. Only the
+     * first has been offered to its shard.
+     */
+    private final Map<String, LinkedList<Task>> mKeys =
+        new HashMap<String, LinkedList<Task>>();
+    /** Submissions per key in the current window. **/
+    private final Map<String, Integer> mKeyCounts =
+        new HashMap<String, Integer>();
+    /** Keyed submissions in the current window. **/
+    private int mWindowCount = 0;
+    /** Keys found hot in the last complete window. **/
+    private List<String> mHotKeys = new ArrayList<String>();
+
+    /***
+     * Constructor.
+     *
+     * @param schedulers Schedulers running the Tasks of each ExecutionClass.
+     * @param shards Number of shards for each ExecutionClass, which is the
+     *            most keyed Tasks of a class that can run at once.
+     */
+    public ShardRouter(final Map<ExecutionClass, TaskScheduler> schedulers,
+            final int shards) {
+        if (shards < 1) {
+            throw new InvalidParameterException("ShardRouter() Shards["
+                    + shards + "] must be at least 1");
+        }
+        mSchedulers = schedulers;
+        mShards = shards;
+        int total = shards * ExecutionClass.values().length;
+        mWaiting = new ArrayList<LinkedList<Task>>(total);
+        for (int i = 0; i < total; i++) {
+            mWaiting.add(new LinkedList<Task>());
+        }
+        mBusy = new boolean[total];
+    }
+
+    /***
+     * Submit a Task, holding it behind any earlier Task with its key, then
+     * behind any earlier Task on its shard.
+     *
+     * @param task Task to run.
+     */
+    public final void submit(final Task task) {
+        String key = task.getRoutingKey();
+        if (key == null) {
+            mSchedulers.get(task.getExecutionClass()).submit(task);
+            return;
+        }
+        synchronized (this) {
+            countKey(key);
+            LinkedList<Task> tasks = mKeys.get(key);
+            if (tasks != null) {
+                tasks.add(task);
+                return;
+            }
+            tasks = new LinkedList<Task>();
+            tasks.add(task);
+            mKeys.put(key, tasks);
+            if (!offer(task)) {
+                return;
+            }
+        }
+        mSchedulers.get(task.getExecutionClass()).submit(task);
+    }
+
+    /***
+     * Called when a Task has finished, to release the next Task with its key
+     * and the next Task on its shard. A retry stands in for the attempt
+     * that failed, so it releases the same key and shard.
+     *
+     * @param task Finished Task.
+     */
+    public final void onTaskFinished(final Task task) {
+        String key = task.getRoutingKey();
+        if (key == null) {
+            return;
+        }
+        List<Task> ready = new ArrayList<Task>(2);
+        synchronized (this) {
+            int shard = getSlot(task);
+            Task next = mWaiting.get(shard).poll();
+            if (next == null) {
+                mBusy[shard] = false;
+            } else {
+                ready.add(next);
+            }
+
+            LinkedList<Task> tasks = mKeys.get(key);
+            tasks.poll();
+            next = tasks.peek();
+            if (next == null) {
+                mKeys.remove(key);
+            } else if (offer(next)) {
+                ready.add(next);
+            }
+        }
+        for (Task next : ready) {
+            mSchedulers.get(next.getExecutionClass()).submit(next);
+        }
+    }
+
+    /***
+     * Returns the Tasks waiting behind an earlier Task with the same key or
+     * on the same shard.
+     *
+     * @return New list of waiting Tasks.
+     */
+    public final synchronized List<Task> getWaiting() {
+        List<Task> waiting = new ArrayList<Task>();
+        for (LinkedList<Task> shard : mWaiting) {
+            waiting.addAll(shard);
+        }
+        for (LinkedList<Task> tasks : mKeys.values()) {
+            waiting.addAll(tasks.subList(1, tasks.size()));
+        }
+        return waiting;
+    }
+
+    /***
+     * Returns the keys found hot in the last complete window.
+     *
+     * @return New list of hot keys.
+     */
+    public final synchronized List<String> getHotKeys() {
+        return new ArrayList<String>(mHotKeys);
+    }
+
+    /***
+     * Offer the oldest Task with a key to its shard, holding it if the shard
+     * is busy. Must be called while holding the lock.
+     *
+     * @param task Oldest unfinished Task with its key.
+     * @return TRUE if the shard was free, and the caller must submit the Task
+     *         to its scheduler once it has released the lock.
+     */
+    private boolean offer(final Task task) {
+        int shard = getSlot(task);
+        if (mBusy[shard]) {
+            mWaiting.get(shard).add(task);
+            return false;
+        }
+        mBusy[shard] = true;
+        return true;
+    }
+
+    /***
+     * Returns the shard for a key, within each ExecutionClass.
+     *
+     * @param key Routing key.
+     * @return Shard index.
+     */
+    private int getShard(final String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % mShards;
+    }
+
+    /***
+     * Returns the index in mWaiting and mBusy of the shard for a keyed Task.
+     *
+     * @param task Task with a routing key.
+     * @return Index of the shard of its key in its ExecutionClass.
+     */
+    private int getSlot(final Task task) {
+        return task.getExecutionClass().ordinal() * mShards
+            + getShard(task.getRoutingKey());
+    }
+
+    /***
+     * Count a keyed submission, finding the hot keys at the end of each
+     * window. Must be called while holding the lock.
+     *
+     * @param key Routing key.
+     */
+    private void countKey(final String key) {
+        Integer count = mKeyCounts.get(key);
+        mKeyCounts.put(key, count == null ? 1 : count + 1);
+        if (++mWindowCount < HOT_KEY_WINDOW) {
+            return;
+        }
+
+        List<String> hotKeys = new ArrayList<String>();
+        for (Map.Entry<String, Integer> entry : mKeyCounts.entrySet()) {
+            if (entry.getValue() >= HOT_KEY_SHARE * mWindowCount) {
+                hotKeys.add(entry.getKey());
+                AsyncLog.w(MyApplication.LOG_TAG, "ShardRouter.countKey() "
+                        + "Hot key[{}] took [{}/" + HOT_KEY_WINDOW
+                        + "] submissions, on shard[{}]", entry.getKey(),
+                        entry.getValue(), getShard(entry.getKey()));
+            }
+        }
+        mHotKeys = hotKeys;
+        mKeyCounts.clear();
+        mWindowCount = 0;
+    }
+}
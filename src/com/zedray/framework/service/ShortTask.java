@@ -0,0 +1,102 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.service;
+
+import android.os.Bundle;
+
+import com.zedray.framework.application.Cache;
+import com.zedray.framework.application.RetryPolicy;
+import com.zedray.framework.application.UiQueue;
+import com.zedray.framework.utils.Keys;
+import com.zedray.framework.utils.Type;
+
+/***
+ * [Optional] Example task which takes time to complete and repeatedly updates
+ * the UI.
+ */
+public class ShortTask extends Task {
+    /***
+     * [Optional] Short tasks the user is waiting on must start within 5
+     * seconds and finish within 30, may skip the Service queue when predicted
+     * to take under 10 milliseconds, are retried up to 3 times, and run on
+     * the INTERACTIVE carriers.
+     */
+    public static final ExecutionPolicy POLICY = new ExecutionPolicy(5000,
+            30000, 10, new RetryPolicy(3, 1000, 10000),
+            ExecutionClass.INTERACTIVE);
+    /** [Optional] Status text shown at each step. **/
+    private static final String[] STEPS = {"Loading short task",
+        "Running short task", "Finishing short task"};
+    /** Pointer to the Application Cache. **/
+    private final Cache mCache;
+    /** Pointer to the Application UiQueue. **/
+    private final UiQueue mUiQueue;
+    /** Bundle of extra information. **/
+    private final Bundle mBundle;
+    /** Index of the next step. **/
+    private int mStep = 0;
+
+    /***
+     * Constructor.
+     *
+     * @param cache Application Cache.
+     * @param uiQueue Application UiQueue.
+     * @param bundle Bundle of extra information, NULL otherwise.
+     */
+    public ShortTask(final Cache cache, final UiQueue uiQueue,
+            final Bundle bundle) {
+        super(Type.DO_SHORT_TASK);
+        mCache = cache;
+        mUiQueue = uiQueue;
+        mBundle = bundle;
+    }
+
+    /***
+     * Creates ShortTasks for DO_SHORT_TASK messages.
+     */
+    public static class Handler implements TaskHandler {
+        @Override
+        public final Task createTask(final WorkerThread worker,
+                final Bundle bundle) {
+            return new ShortTask(worker.getCache(), worker.getUiQueue(),
+                    bundle);
+        }
+
+        @Override
+        public final ExecutionPolicy getPolicy() {
+            return POLICY;
+        }
+    }
+
+    @Override
+    protected final long resume() {
+        if (mStep < STEPS.length) {
+            mCache.set(Keys.STATE_SHORT_TASK, STEPS[mStep++]);
+            return WorkerThread.WASTE_TIME;
+        }
+
+        mCache.set(Keys.STATE_SHORT_TASK, "Finished short task");
+        if (mBundle != null) {
+            Bundle outBundle = new Bundle();
+            outBundle.putString("TEXT",
+                    "The short task has finished. Called from ["
+                            + mBundle.getString("TEXT") + "]");
+            mUiQueue.postToUi(Type.SHOW_DIALOG, outBundle, false);
+        }
+        return DONE;
+    }
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.service;
+
+import android.os.Bundle;
+
+import com.zedray.framework.utils.Type;
+
+/***
+ * Unit of work executed by the TaskScheduler as a continuation. Rather than
+ * blocking its thread, a Task runs until its next suspension point and
+ * returns from resume(), telling the scheduler when it wants to continue: after
+ * a timed wait, when another thread calls wake() (e.g. on an I/O completion),
+ * or never because it is done. The next resume() may run on any carrier
+ * thread, so a Task keeps its progress in fields rather than on the stack.
+ *
+ * A Task may carry a deadline, by which it must have started, and a maximum
+ * run time, after which it is timed out wherever it is. Once a Task is DONE,
+ * for whatever reason, no other state change can bring it back.
+ */
+public abstract class Task {
+    /** Returned by resume() when the Task has finished. **/
+    public static final long DONE = -1;
+    /** Returned by resume() to suspend the Task until wake() is called. **/
+    public static final long PARK = -2;
+
+    /***
+     * Scheduling state of a Task.
+     */
+    enum State {
+        /** Not yet submitted to a TaskScheduler. **/
+        NEW,
+        /** Waiting for a carrier thread. **/
+        READY,
+        /** Executing resume() on a carrier thread. **/
+        RUNNING,
+        /** Waiting for a timed wait to expire. **/
+        WAITING,
+        /** Waiting for wake() to be called. **/
+        PARKED,
+        /** Finished. **/
+        DONE
+    }
+
+    /** Message Type that created this Task. **/
+    private final Type mType;
+    /** Scheduler running this Task, set on submission. **/
+    private TaskScheduler mScheduler;
+    /** Current scheduling state, guarded by this. **/
+    private State mState = State.NEW;
+    /** TRUE if wake() was called while the Task was running. **/
+    private boolean mWakePending = false;
+    /** TRUE once resume() has been called for the first time. **/
+    private boolean mStarted = false;
+    /** Uptime at which the message for this Task was posted. **/
+    private long mEnqueueTime;
+    /** Uptime of the first resume(), or 0 if it has not been resumed. **/
+    private volatile long mStartTime = 0;
+    /** Total milliseconds spent inside resume(), over all steps. **/
+    private volatile long mResumeTime = 0;
+    /** Message Bundle the Task was created from, or NULL. **/
+    private Bundle mBundle;
+    /** Handler that created the Task, used to create retries. **/
+    private TaskHandler mHandler;
+    /** TaskEventLog identifier, shared by all attempts, or 0. **/
+    private long mId = 0;
+    /** Attempt number, starting at 1 and increased on each retry. **/
+    private int mAttempt = 1;
+    /** Routing key, or NULL if the Task has no ordering constraint. **/
+    private String mRoutingKey;
+    /** Encoded size of the message Bundle in bytes. **/
+    private int mPayloadSize = 0;
+    /** Uptime by which the Task must start, or 0 for no deadline. **/
+    private long mDeadline = 0;
+    /** Maximum time in milliseconds from start to finish, or 0. **/
+    private long mMaxRunTime = 0;
+    /** Order in which the Task last became ready, for FIFO among equals. **/
+    private long mReadySequence;
+    /** Carrier thread running resume(), guarded by this. **/
+    private Thread mCarrier;
+
+    /***
+     * Constructor.
+     *
+     * @param type Message Type that created this Task.
+     */
+    protected Task(final Type type) {
+        mType = type;
+    }
+
+    /***
+     * Run the Task until its next suspension point.
+     *
+     * @return Number of milliseconds to wait before the next resume(), PARK
+     *         to wait for wake(), or DONE when the Task has finished.
+     */
+    protected abstract long resume();
+
+    /***
+     * Returns the message Type that created this Task.
+     *
+     * @return Type.
+     */
+    public final Type getType() {
+        return mType;
+    }
+
+    /***
+     * Returns the uptime at which the message for this Task was posted.
+     *
+     * @return Enqueue time in milliseconds.
+     */
+    public final long getEnqueueTime() {
+        return mEnqueueTime;
+    }
+
+    /***
+     * Set the uptime at which the message for this Task was posted.
+     *
+     * @param enqueueTime Enqueue time in milliseconds.
+     */
+    final void setEnqueueTime(final long enqueueTime) {
+        mEnqueueTime = enqueueTime;
+    }
+
+    /***
+     * Returns the uptime at which the Task was first resumed.
+     *
+     * @return Start time in milliseconds, or 0 if the Task never started,
+     *         e.g. because it missed its deadline.
+     */
+    public final long getStartTime() {
+        return mStartTime;
+    }
+
+    /***
+     * Set the uptime at which the Task was first resumed.
+     *
+     * @param startTime Start time in milliseconds.
+     */
+    final void setStartTime(final long startTime) {
+        mStartTime = startTime;
+    }
+
+    /***
+     * Returns the time spent inside resume(), which leaves out the time the
+     * Task spent waiting or parked between steps.
+     *
+     * @return Total resume() time in milliseconds.
+     */
+    public final long getResumeTime() {
+        return mResumeTime;
+    }
+
+    /***
+     * Add the time taken by one resume() call.
+     *
+     * @param resumeTime Time in milliseconds.
+     */
+    final void addResumeTime(final long resumeTime) {
+        mResumeTime += resumeTime;
+    }
+
+    /***
+     * Returns the message Bundle the Task was created from, used to create
+     * the Task again for a retry.
+     *
+     * @return Bundle, or NULL.
+     */
+    final Bundle getBundle() {
+        return mBundle;
+    }
+
+    /***
+     * Returns the Bundle to create the Task from after a process restart,
+     * so it can carry on from its progress so far. Override this in Tasks
+     * that checkpoint their progress.
+     *
+     * @return Bundle, or NULL.
+     */
+    protected Bundle getCheckpoint() {
+        return mBundle;
+    }
+
+    /***
+     * Set the message Bundle the Task was created from.
+     *
+     * @param bundle Bundle, or NULL.
+     */
+    final void setBundle(final Bundle bundle) {
+        mBundle = bundle;
+    }
+
+    /***
+     * Returns the handler that created the Task.
+     *
+     * @return TaskHandler.
+     */
+    final TaskHandler getHandler() {
+        return mHandler;
+    }
+
+    /***
+     * Set the handler that created the Task.
+     *
+     * @param handler TaskHandler.
+     */
+    final void setHandler(final TaskHandler handler) {
+        mHandler = handler;
+    }
+
+    /***
+     * Returns the ExecutionClass of the Task, from the policy of its
+     * TaskHandler.
+     *
+     * @return ExecutionClass, DEFAULT for a Task without a TaskHandler.
+     */
+    final ExecutionClass getExecutionClass() {
+        if (mHandler == null) {
+            return ExecutionClass.DEFAULT;
+        }
+        return mHandler.getPolicy().getExecutionClass();
+    }
+
+    /***
+     * Returns the TaskEventLog identifier of the Task.
+     *
+     * @return Task ID, shared by all attempts, or 0 if not yet logged.
+     */
+    public final long getId() {
+        return mId;
+    }
+
+    /***
+     * Set the TaskEventLog identifier of the Task.
+     *
+     * @param id Task ID.
+     */
+    final void setId(final long id) {
+        mId = id;
+    }
+
+    /***
+     * Returns the attempt number of the Task.
+     *
+     * @return 1 for the first attempt, 2 for the first retry, etc.
+     */
+    public final int getAttempt() {
+        return mAttempt;
+    }
+
+    /***
+     * Set the attempt number of the Task.
+     *
+     * @param attempt Attempt number, starting at 1.
+     */
+    final void setAttempt(final int attempt) {
+        mAttempt = attempt;
+    }
+
+    /***
+     * Returns the routing key of the Task.
+     *
+     * @return Routing key, or NULL.
+     */
+    public final String getRoutingKey() {
+        return mRoutingKey;
+    }
+
+    /***
+     * Set the routing key of the Task.
+     *
+     * @param routingKey Routing key, or NULL.
+     */
+    final void setRoutingKey(final String routingKey) {
+        mRoutingKey = routingKey;
+    }
+
+    /***
+     * Returns the encoded size of the message Bundle.
+     *
+     * @return Payload size in bytes.
+     */
+    public final int getPayloadSize() {
+        return mPayloadSize;
+    }
+
+    /***
+     * Set the encoded size of the message Bundle.
+     *
+     * @param payloadSize Payload size in bytes.
+     */
+    final void setPayloadSize(final int payloadSize) {
+        mPayloadSize = payloadSize;
+    }
+
+    /***
+     * Returns the uptime by which the Task must start.
+     *
+     * @return Deadline in milliseconds, or 0 for no deadline.
+     */
+    public final long getDeadline() {
+        return mDeadline;
+    }
+
+    /***
+     * Set the uptime by which the Task must start. A Task that is still
+     * waiting for a carrier at its deadline is dropped.
+     *
+     * @param deadline Deadline in milliseconds, or 0 for no deadline.
+     */
+    final void setDeadline(final long deadline) {
+        mDeadline = deadline;
+    }
+
+    /***
+     * Returns the maximum run time.
+     *
+     * @return Milliseconds from start to finish, or 0 for no limit.
+     */
+    public final long getMaxRunTime() {
+        return mMaxRunTime;
+    }
+
+    /***
+     * Set the maximum time from the first resume() until the Task finishes.
+     * An overrunning Task is timed out.
+     *
+     * @param maxRunTime Milliseconds, or 0 for no limit.
+     */
+    final void setMaxRunTime(final long maxRunTime) {
+        mMaxRunTime = maxRunTime;
+    }
+
+    /***
+     * Returns the deadline used for ordering the ready queue, where Tasks
+     * without a deadline come last.
+     *
+     * @return Effective deadline.
+     */
+    final long getScheduleDeadline() {
+        return mDeadline == 0 ? Long.MAX_VALUE : mDeadline;
+    }
+
+    /***
+     * Returns the order in which the Task last became ready.
+     *
+     * @return Ready sequence number.
+     */
+    final long getReadySequence() {
+        return mReadySequence;
+    }
+
+    /***
+     * Set the order in which the Task became ready.
+     *
+     * @param readySequence Ready sequence number.
+     */
+    final void setReadySequence(final long readySequence) {
+        mReadySequence = readySequence;
+    }
+
+    /***
+     * Resume a parked Task on the next free carrier thread. Safe to call from
+     * any thread, including while the Task is still inside the resume() call
+     * that is about to return PARK.
+     */
+    public final void wake() {
+        TaskScheduler scheduler;
+        synchronized (this) {
+            if (mState == State.RUNNING) {
+                mWakePending = true;
+                return;
+            } else if (mState != State.PARKED) {
+                return;
+            }
+            mState = State.READY;
+            scheduler = mScheduler;
+        }
+        scheduler.ready(this);
+    }
+
+    /***
+     * Attach the Task to a scheduler.
+     *
+     * @param scheduler TaskScheduler.
+     */
+    final synchronized void attach(final TaskScheduler scheduler) {
+        if (mState != State.NEW) {
+            throw new IllegalStateException("Task.attach() Task[" + this
+                    + "] has already been submitted");
+        }
+        mScheduler = scheduler;
+        mState = State.READY;
+    }
+
+    /***
+     * Move the Task into the given state, unless it is already DONE.
+     *
+     * @param state New state, other than RUNNING or DONE.
+     */
+    final synchronized void setState(final State state) {
+        if (mState != State.DONE) {
+            mState = state;
+        }
+    }
+
+    /***
+     * Move the Task into the RUNNING state on the given carrier.
+     *
+     * @param carrier Carrier thread about to call resume().
+     * @return TRUE if the Task should run, FALSE if it is already DONE.
+     */
+    final synchronized boolean begin(final Thread carrier) {
+        if (mState == State.DONE) {
+            return false;
+        }
+        mState = State.RUNNING;
+        mWakePending = false;
+        mCarrier = carrier;
+        return true;
+    }
+
+    /***
+     * Called by the scheduler after resume() returns.
+     */
+    final synchronized void end() {
+        mCarrier = null;
+    }
+
+    /***
+     * Returns the carrier thread currently inside resume().
+     *
+     * @return Carrier thread, or NULL if the Task is not running.
+     */
+    final synchronized Thread getCarrier() {
+        return mCarrier;
+    }
+
+    /***
+     * Move the Task into the DONE state.
+     *
+     * @return TRUE if the Task has just finished, FALSE if it was already
+     *         DONE.
+     */
+    final synchronized boolean finish() {
+        if (mState == State.DONE) {
+            return false;
+        }
+        mState = State.DONE;
+        return true;
+    }
+
+    /***
+     * Record that the Task is about to be resumed for the first time.
+     *
+     * @return TRUE on the first call only.
+     */
+    final synchronized boolean markStarted() {
+        if (mStarted) {
+            return false;
+        }
+        mStarted = true;
+        return true;
+    }
+
+    /***
+     * Called by the scheduler after resume() returns PARK. A wake() that
+     * arrived while the Task was running cancels the park.
+     *
+     * @return TRUE if the Task is now parked, FALSE if it should be run
+     *         again straight away.
+     */
+    final synchronized boolean park() {
+        if (mState == State.DONE) {
+            return true;
+        } else if (mWakePending) {
+            mWakePending = false;
+            mState = State.READY;
+            return false;
+        }
+        mState = State.PARKED;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + mType + "]";
+    }
+}
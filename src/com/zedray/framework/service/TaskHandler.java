@@ -0,0 +1,45 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zedray.framework.service;
+
+import android.os.Bundle;
+
+/***
+ * Creates the Tasks for one kind of message, and declares how they run.
+ * Handlers are added to the TaskRegistry when the Application is created.
+ */
+public interface TaskHandler {
+
+    /***
+     * Create a Task for a message. Called on the WorkerThread, or on the
+     * posting thread for Tasks run inline, and again for each retry.
+     *
+     * @param worker WorkerThread, giving access to the Cache, UiQueue and
+     *            ParallelExecutor.
+     * @param bundle Bundle of extra information, NULL otherwise.
+     * @return New Task.
+     */
+    Task createTask(WorkerThread worker, Bundle bundle);
+
+    /***
+     * Returns how the Tasks of this handler are run.
+     *
+     * @return ExecutionPolicy, never NULL.
+     */
+    ExecutionPolicy getPolicy();
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zedray.framework.service;
+
+import java.security.InvalidParameterException;
+
+import com.zedray.framework.utils.Type;
+
+/***
+ * Maps message Types to the TaskHandlers that create their Tasks. Handlers
+ * are registered by Type while the Application starts. Lookup is a read of
+ * an array indexed by message code, the Type ordinal, which is replaced as a
+ * whole on each registration, so dispatch takes no lock.
+ */
+public class TaskRegistry {
+    /** Handlers indexed by Type ordinal, copied on write. **/
+    private volatile TaskHandler[] mHandlers =
+        new TaskHandler[Type.values().length];
+
+    /***
+     * Register the handler for a Type of message, replacing any existing
+     * one.
+     *
+     * @param type Message Type.
+     * @param handler TaskHandler.
+     */
+    public final synchronized void register(final Type type,
+            final TaskHandler handler) {
+        if (type == null || handler == null
+                || handler.getPolicy() == null) {
+            throw new InvalidParameterException("TaskRegistry.register() "
+                    + "Invalid type[" + type + "] or handler[" + handler
+                    + "]");
+        }
+        TaskHandler[] handlers = mHandlers.clone();
+        handlers[type.ordinal()] = handler;
+        mHandlers = handlers;
+    }
+
+    /***
+     * Returns the handler for a message code.
+     *
+     * @param id Message code, the ordinal of its Type.
+     * @return TaskHandler, or NULL if none is registered.
+     */
+    public final TaskHandler get(final int id) {
+        TaskHandler[] handlers = mHandlers;
+        if (id < 0 || id >= handlers.length) {
+            return null;
+        }
+        return handlers[id];
+    }
+
+    /***
+     * Returns the handler for a Type of message.
+     *
+     * @param type Message Type.
+     * @return TaskHandler, or NULL if none is registered.
+     */
+    public final TaskHandler get(final Type type) {
+        return get(type.ordinal());
+    }
+}
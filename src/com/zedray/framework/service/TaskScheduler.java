@@ -0,0 +1,499 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.zedray.framework.application.MyApplication;
+import com.zedray.framework.application.Watchdog;
+import com.zedray.framework.utils.AsyncLog;
+
+/***
+ * Runs Tasks as continuations on a small, fixed number of carrier threads.
+ * A carrier only holds a Task for the duration of a single resume(); timed
+ * waits are held in a DelayQueue by one timer thread and parked Tasks are not
+ * held anywhere until they are woken, so thousands of long lived Tasks can be
+ * in flight at once without pinning a thread each.
+ *
+ * Ready Tasks are taken earliest deadline first, with Tasks that have no
+ * deadline last and equal deadlines in FIFO order. A Task still waiting for
+ * its first resume() when its deadline passes is dropped, and a Task that
+ * overruns its maximum run time is timed out; both finish with a
+ * TimeoutException. If a timed out Task is stuck inside resume(), its carrier
+ * is interrupted and retired, and a fresh carrier takes its place.
+ *
+ * Each carrier reports a Watchdog Heartbeat around every resume(), which
+ * should never take longer than RESUME_SLO.
+ */
+public class TaskScheduler {
+
+    /***
+     * Notified when a Task starts and finishes.
+     */
+    public interface Listener {
+
+        /***
+         * Called once, on a carrier thread, when a Task leaves the ready
+         * queue for the first time: just before it is first resumed, or when
+         * it is dropped for missing its deadline.
+         *
+         * @param task Starting Task.
+         */
+        void onTaskStarted(Task task);
+
+        /***
+         * Called once when a Task has finished, on the carrier thread that
+         * ran it, or on the timer thread if it was timed out.
+         *
+         * @param task Finished Task.
+         * @param error Exception thrown by the Task, a TimeoutException if it
+         *            missed its deadline or overran, or NULL if it completed.
+         */
+        void onTaskFinished(Task task, Throwable error);
+    }
+
+    /** Longest acceptable single resume(), in milliseconds. **/
+    private static final long RESUME_SLO = 5000;
+    /** Initial capacity of the ready queue. **/
+    private static final int READY_CAPACITY = 16;
+
+    /** Tasks waiting for a carrier thread, earliest deadline first. **/
+    private final BlockingQueue<Task> mReady = new PriorityBlockingQueue<Task>(
+            READY_CAPACITY, new Comparator<Task>() {
+                @Override
+                public int compare(final Task a, final Task b) {
+                    long difference = a.getScheduleDeadline()
+                        - b.getScheduleDeadline();
+                    if (difference == 0) {
+                        difference = a.getReadySequence()
+                            - b.getReadySequence();
+                    }
+                    return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+                }
+            });
+    /** Source of ready sequence numbers. **/
+    private final AtomicLong mReadySequence = new AtomicLong();
+    /** Tasks waiting for a timed wait or a timeout to expire. **/
+    private final DelayQueue<TimedWait> mWaiting = new DelayQueue<TimedWait>();
+    /** Carrier and timer threads, guarded by this. **/
+    private final List<Thread> mThreads = new ArrayList<Thread>();
+    /** Carriers stuck in a timed out Task, guarded by this. **/
+    private final List<Thread> mRetired = new ArrayList<Thread>();
+    /** Prefix for the thread names. **/
+    private final String mName;
+    /** Linux thread priority of the carriers. **/
+    private final int mPriority;
+    /** Number of carrier threads started so far. **/
+    private int mCarrierCount = 0;
+    /** Notified when each Task starts and finishes. **/
+    private final Listener mListener;
+    /** Watchdog checking carrier heartbeats, or NULL. **/
+    private final Watchdog mWatchdog;
+    /** TRUE once shutdown() has been called. **/
+    private volatile boolean mShutdown = false;
+
+    /***
+     * Constructor starts the carrier and timer threads.
+     *
+     * @param name Prefix for the thread names.
+     * @param carriers Number of carrier threads.
+     * @param priority android.os.Process thread priority of the carriers.
+     * @param listener Notified when each Task finishes.
+     * @param watchdog Watchdog checking carrier heartbeats, or NULL.
+     */
+    public TaskScheduler(final String name, final int carriers,
+            final int priority, final Listener listener,
+            final Watchdog watchdog) {
+        mName = name;
+        mPriority = priority;
+        mListener = listener;
+        mWatchdog = watchdog;
+        for (int i = 0; i < carriers; i++) {
+            startCarrier();
+        }
+        startThread(new Thread(name + "-timer") {
+            @Override
+            public void run() {
+                runTimer();
+            }
+        });
+    }
+
+    /***
+     * Submit a new Task, which will be resumed for the first time on the next
+     * free carrier thread.
+     *
+     * @param task Task to run.
+     */
+    public final void submit(final Task task) {
+        task.attach(this);
+        ready(task);
+    }
+
+    /***
+     * Run the first step of a new Task on the calling thread, leaving any
+     * continuation to the carriers. If the Task overruns its maximum run
+     * time, it is timed out but the calling thread is not interrupted.
+     *
+     * @param task Task to run.
+     */
+    public final void runInline(final Task task) {
+        boolean interrupted = Thread.currentThread().isInterrupted();
+        task.attach(this);
+        runTask(task);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /***
+     * Submit a new Task, which is held by the timer thread until the given
+     * delay has passed, without occupying a carrier thread.
+     *
+     * @param task Task to run.
+     * @param delay Milliseconds to wait before the first resume().
+     */
+    public final void submit(final Task task, final long delay) {
+        if (delay <= 0) {
+            submit(task);
+            return;
+        }
+        task.attach(this);
+        task.setState(Task.State.WAITING);
+        mWaiting.add(new TimedWait(task, SystemClock.uptimeMillis() + delay,
+                false));
+    }
+
+    /***
+     * Stop all carrier and timer threads. Tasks that have not finished are
+     * abandoned.
+     */
+    public final void shutdown() {
+        mShutdown = true;
+        synchronized (this) {
+            for (Thread thread : mThreads) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    /***
+     * Returns TRUE if the given thread is one of this scheduler's carrier or
+     * timer threads.
+     *
+     * @param thread Thread to check.
+     * @return TRUE if the thread belongs to this scheduler.
+     */
+    public final synchronized boolean isSchedulerThread(final Thread thread) {
+        return mThreads.contains(thread) || mRetired.contains(thread);
+    }
+
+    /***
+     * Queue a Task for the next free carrier thread.
+     *
+     * @param task Task in the READY state.
+     */
+    final void ready(final Task task) {
+        task.setReadySequence(mReadySequence.getAndIncrement());
+        mReady.add(task);
+    }
+
+    /***
+     * Start a new carrier thread.
+     */
+    private void startCarrier() {
+        int number;
+        synchronized (this) {
+            number = mCarrierCount++;
+        }
+        startThread(new Thread(mName + "-" + number) {
+            @Override
+            public void run() {
+                runCarrier();
+            }
+        });
+    }
+
+    /***
+     * Track and start a thread, unless the scheduler has been shut down.
+     *
+     * @param thread Carrier or timer thread.
+     */
+    private synchronized void startThread(final Thread thread) {
+        if (!mShutdown) {
+            mThreads.add(thread);
+            thread.start();
+        }
+    }
+
+    /***
+     * Returns TRUE if the current carrier has been retired, removing it from
+     * the tracked threads.
+     *
+     * @return TRUE if the carrier should exit.
+     */
+    private synchronized boolean retireCurrentCarrier() {
+        Thread thread = Thread.currentThread();
+        if (mRetired.remove(thread)) {
+            mThreads.remove(thread);
+            return true;
+        }
+        return false;
+    }
+
+    /***
+     * Carrier thread loop, resuming one ready Task at a time.
+     */
+    private void runCarrier() {
+        Process.setThreadPriority(mPriority);
+        Watchdog.Heartbeat heartbeat = null;
+        if (mWatchdog != null) {
+            heartbeat = mWatchdog.register(Thread.currentThread().getName(),
+                    RESUME_SLO);
+        }
+        try {
+            while (!mShutdown) {
+                Task task;
+                try {
+                    task = mReady.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (heartbeat != null) {
+                    heartbeat.begin();
+                }
+                try {
+                    runTask(task);
+                } catch (Error e) {
+                    /** The Task has finished, but this carrier is lost. **/
+                    synchronized (this) {
+                        mThreads.remove(Thread.currentThread());
+                        if (mRetired.remove(Thread.currentThread())) {
+                            /** Already replaced when it was retired. **/
+                            throw e;
+                        }
+                    }
+                    startCarrier();
+                    throw e;
+                }
+                if (heartbeat != null) {
+                    heartbeat.end();
+                }
+                if (retireCurrentCarrier()) {
+                    return;
+                }
+            }
+        } finally {
+            if (heartbeat != null) {
+                mWatchdog.unregister(heartbeat);
+            }
+        }
+    }
+
+    /***
+     * Resume a Task and reschedule it according to its result. A Task that
+     * throws is finished with the exception, which is then rethrown only if
+     * it leaves the virtual machine unusable.
+     *
+     * @param task Task to resume.
+     */
+    private void runTask(final Task task) {
+        if (!task.begin(Thread.currentThread())) {
+            /** Timed out while it was waiting. **/
+            return;
+        }
+        if (task.markStarted()) {
+            if (mListener != null) {
+                mListener.onTaskStarted(task);
+            }
+            long now = SystemClock.uptimeMillis();
+            if (task.getDeadline() != 0 && now > task.getDeadline()) {
+                task.end();
+                finish(task, new TimeoutException("Task[" + task
+                        + "] missed its deadline by ["
+                        + (now - task.getDeadline()) + "ms]"));
+                return;
+            }
+            task.setStartTime(now);
+            if (task.getMaxRunTime() > 0) {
+                mWaiting.add(new TimedWait(task, now + task.getMaxRunTime(),
+                        true));
+            }
+        }
+
+        long result;
+        long resumeStart = SystemClock.uptimeMillis();
+        try {
+            result = task.resume();
+        } catch (Throwable e) {
+            Log.e(MyApplication.LOG_TAG, "TaskScheduler.runTask() Task["
+                    + task + "] failed", e);
+            finish(task, e);
+            if (e instanceof VirtualMachineError || e instanceof ThreadDeath) {
+                throw (Error) e;
+            }
+            return;
+        } finally {
+            task.addResumeTime(SystemClock.uptimeMillis() - resumeStart);
+            task.end();
+            /** Clear any interrupt meant for a timed out Task. **/
+            Thread.interrupted();
+        }
+
+        if (result == Task.DONE) {
+            finish(task, null);
+        } else if (result == Task.PARK) {
+            if (!task.park()) {
+                ready(task);
+            }
+        } else if (result <= 0) {
+            task.setState(Task.State.READY);
+            ready(task);
+        } else {
+            task.setState(Task.State.WAITING);
+            mWaiting.add(new TimedWait(task,
+                    SystemClock.uptimeMillis() + result, false));
+        }
+    }
+
+    /***
+     * Mark a Task as finished and notify the listener, unless it has already
+     * finished.
+     *
+     * @param task Finished Task.
+     * @param error Exception thrown by the Task, or NULL.
+     */
+    private void finish(final Task task, final Throwable error) {
+        if (task.finish() && mListener != null) {
+            mListener.onTaskFinished(task, error);
+        }
+    }
+
+    /***
+     * Time out a Task that has overrun its maximum run time. If it is stuck
+     * in resume(), its carrier is interrupted and replaced.
+     *
+     * The interrupt is sent while holding the Task lock, and only if the
+     * carrier has not yet reached end(), which takes the same lock. The
+     * carrier clears its interrupt after end(), so the interrupt can never
+     * reach the next Task it runs.
+     *
+     * @param task Overrunning Task.
+     */
+    private void timeOut(final Task task) {
+        boolean isCarrier = false;
+        synchronized (task) {
+            if (!task.finish()) {
+                return;
+            }
+            Thread carrier = task.getCarrier();
+            if (carrier != null) {
+                synchronized (this) {
+                    /** Not a carrier if the Task was run inline. **/
+                    isCarrier = mThreads.contains(carrier);
+                    if (isCarrier) {
+                        mRetired.add(carrier);
+                    }
+                }
+                if (isCarrier) {
+                    carrier.interrupt();
+                }
+            }
+        }
+        AsyncLog.w(MyApplication.LOG_TAG, "TaskScheduler.timeOut() Task[{}] "
+                + "overran [{}ms]", task, task.getMaxRunTime());
+        if (isCarrier) {
+            startCarrier();
+        }
+        if (mListener != null) {
+            mListener.onTaskFinished(task, new TimeoutException("Task["
+                    + task + "] overran [" + task.getMaxRunTime() + "ms]"));
+        }
+    }
+
+    /***
+     * Timer thread loop, moving Tasks whose wait has expired to the ready
+     * queue and timing out overrunning Tasks.
+     */
+    private void runTimer() {
+        while (!mShutdown) {
+            try {
+                TimedWait wait = mWaiting.take();
+                if (wait.mTimeout) {
+                    timeOut(wait.mTask);
+                } else {
+                    wait.mTask.setState(Task.State.READY);
+                    ready(wait.mTask);
+                }
+            } catch (InterruptedException e) {
+                // Check for shutdown.
+            }
+        }
+    }
+
+    /***
+     * Entry in the DelayQueue for a Task in a timed wait, or for the maximum
+     * run time of a Task.
+     */
+    private static final class TimedWait implements Delayed {
+        /** Waiting Task. **/
+        private final Task mTask;
+        /** Uptime at which the wait expires. **/
+        private final long mResumeTime;
+        /** TRUE if this is a timeout rather than a timed wait. **/
+        private final boolean mTimeout;
+
+        /***
+         * Constructor.
+         *
+         * @param task Waiting Task.
+         * @param resumeTime Uptime at which the wait expires.
+         * @param timeout TRUE if this is a timeout rather than a timed wait.
+         */
+        private TimedWait(final Task task, final long resumeTime,
+                final boolean timeout) {
+            mTask = task;
+            mResumeTime = resumeTime;
+            mTimeout = timeout;
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit) {
+            return unit.convert(mResumeTime - SystemClock.uptimeMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(final Delayed other) {
+            long difference = mResumeTime - ((TimedWait) other).mResumeTime;
+            return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+        }
+    }
+}
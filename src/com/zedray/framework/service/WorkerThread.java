@@ -16,28 +16,68 @@
 
 package com.zedray.framework.service;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeoutException;
 
 import android.os.Bundle;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.zedray.framework.application.Cache;
+import com.zedray.framework.application.DeadLetterQueue;
+import com.zedray.framework.application.MemoryPressure;
 import com.zedray.framework.application.MyApplication;
+import com.zedray.framework.application.Progress;
+import com.zedray.framework.application.RetryPolicy;
+import com.zedray.framework.application.ServiceQueue;
+import com.zedray.framework.application.TaskEventLog;
+import com.zedray.framework.application.TaskHistory;
 import com.zedray.framework.application.UiQueue;
-import com.zedray.framework.utils.NotificationUtils;
+import com.zedray.framework.application.Watchdog;
+import com.zedray.framework.utils.AsyncLog;
+import com.zedray.framework.utils.BundleCodec;
+import com.zedray.framework.utils.Keys;
 import com.zedray.framework.utils.Type;
 
 /***
  * Used by the Service to perform long running tasks (e.g. network
- * connectivity) in a single separate thread.  This implementation uses a
- * single thread to pop items off the end of a ServiceQueue, providing a clear
- * finishing point (i.e. current task complete & queue empty) where the
- * Services own stopSelf() method can then be called to terminate the
- * background part of the Application.
+ * connectivity) without blocking the UI.  This implementation uses a single
+ * thread to pop items off the end of a ServiceQueue and hand them to a
+ * TaskScheduler, which runs every Task as a continuation on a few carrier
+ * threads.  Each ExecutionClass has its own TaskScheduler, whose carriers run
+ * at the thread priority of the class, so background work neither waits in
+ * front of nor takes CPU from the Tasks the user is waiting on.  This
+ * provides a clear finishing point (i.e. all tasks complete &
+ * queue empty) where the Services own stopSelf() method can then be called to
+ * terminate the background part of the Application.
+ *
+ * A Task that fails is created again from its message and resubmitted after
+ * the backoff of the RetryPolicy for its Type, waiting on the scheduler's
+ * timer rather than a thread. A retried Task keeps its routing key shard, so
+ * later Tasks with the same key still wait for it. Once the attempts run out
+ * the message goes to the DeadLetterQueue.
+ *
+ * Under CRITICAL memory pressure the Bundles of queued messages are spilled
+ * to files in the cache folder by the WorkerThread itself, and read back as
+ * each message is taken. A message whose spill file cannot be read back goes
+ * to the DeadLetterQueue.
  */
-public class WorkerThread extends Thread {
+public class WorkerThread extends Thread
+        implements MemoryPressure.Trimmable {
 
     /**
      * [Optional] Execution state of the currently running long process, used by
@@ -45,25 +85,62 @@ public class WorkerThread extends Thread {
      * terminated.
      */
     public static final String PROCESS_STATE = "PROCESS_STATE";
-    /** [Optional] Size of long task increment. **/
-    private static final int LONG_TASK_INCREMENT = 10;
-    /** [Optional] End of long task. **/
-    private static final int LONG_TASK_COMPLETE = 100;
     /***
-     * [Optional] Configures how much time (in milliseconds) should be wasted
+     * [Optional] Configures how much time (in milliseconds) should be waited
      * between UI updates - for test use only.
      */
-    private static final int WASTE_TIME = 2000;
-    /** [Optional] Synchronisation lock for the Thread Sleep. **/
-    private final Object mWakeLock = new Object();
+    static final int WASTE_TIME = 2000;
+    /** Longest acceptable time to dispatch a message, in milliseconds. **/
+    private static final long DISPATCH_SLO = 1000;
+    /** Folder in the cache folder for spilled message Bundles. **/
+    private static final String SPILL_DIR = "spill";
     /** Queue of incoming messages. **/
     private final List<Message> mWorkQueue = new ArrayList<Message>();
+    /** Submitted Tasks that have not finished, guarded by mWorkQueue. **/
+    private final List<Task> mRunning = new ArrayList<Task>();
     /** Pointer to the Application Cache. **/
     private final Cache mCache;
     /** Pointer to the Application UiQueue. **/
     private final UiQueue mUiQueue;
+    /** Pointer to the Application ServiceQueue. **/
+    private final ServiceQueue mServiceQueue;
     /** Pointer to the parent Service.. **/
     private MyService mMyService;
+    /** Pointer to the Application. **/
+    private final MyApplication mApplication;
+    /** Handlers creating the Task for each message code. **/
+    private final TaskRegistry mRegistry;
+    /** Messages that failed on every attempt. **/
+    private final DeadLetterQueue mDeadLetters;
+    /** Log of Task state transitions. **/
+    private final TaskEventLog mEvents;
+    /** Folder for spilled message Bundles. **/
+    private final File mSpillDir;
+    /** Number of Bundles spilled so far, used for file names. **/
+    private int mSpillCount = 0;
+    /** TRUE when queued Bundles should be spilled, guarded by mWorkQueue. **/
+    private boolean mSpillRequested = false;
+    /** Source of retry backoff jitter. **/
+    private final Random mRandom = new Random();
+    /** Records every finished Task. **/
+    private final TaskHistory mHistory;
+    /** Watchdog checking the dispatcher and carrier heartbeats. **/
+    private final Watchdog mWatchdog;
+    /** Runs the Tasks of each ExecutionClass. **/
+    private final Map<ExecutionClass, TaskScheduler> mSchedulers =
+        new EnumMap<ExecutionClass, TaskScheduler>(ExecutionClass.class);
+    /** Orders Tasks with the same routing key. **/
+    private final ShardRouter mRouter;
+    /***
+     * Compute the ranges of ParallelTasks, one worker per core, for each
+     * ExecutionClass that has needed one. The workers run at the priority
+     * of their class, as the ranges are the real work of the Task. Guarded
+     * by itself.
+     */
+    private final Map<ExecutionClass, ParallelExecutor> mParallelExecutors =
+        new EnumMap<ExecutionClass, ParallelExecutor>(ExecutionClass.class);
+    /** TRUE once the ParallelExecutors are shut down, guarded by them. **/
+    private boolean mParallelShutdown = false;
     /***
      * TRUE when the WorkerThread can no longer handle incoming messages,
      * because it is shutting down or dead.
@@ -71,32 +148,105 @@ public class WorkerThread extends Thread {
     private boolean stopping = false;
 
     /***
-     * Constructor which stores pointers to the Application Cache, UiQueue and
-     * parent Service.
+     * Constructor which stores pointers to the Application Cache, UiQueue,
+     * ServiceQueue and parent Service.
      *
      * @param cache Application Cache.
      * @param uiQueue UiQueue.
+     * @param serviceQueue ServiceQueue.
      * @param myService MyService.
      */
     protected WorkerThread(final Cache cache, final UiQueue uiQueue,
-            final MyService myService) {
+            final ServiceQueue serviceQueue, final MyService myService) {
         mCache = cache;
         mUiQueue = uiQueue;
+        mServiceQueue = serviceQueue;
         mMyService = myService;
+        mApplication = (MyApplication) myService.getApplication();
+        mWatchdog = mApplication.getWatchdog();
+        mHistory = mApplication.getTaskHistory();
+        mDeadLetters = mApplication.getDeadLetterQueue();
+        mEvents = mApplication.getTaskEvents();
+        mRegistry = mApplication.getTaskRegistry();
+        TaskScheduler.Listener listener = new TaskScheduler.Listener() {
+            @Override
+            public void onTaskStarted(final Task task) {
+                /** Admission only counted the first attempt. **/
+                if (task.getAttempt() == 1) {
+                    mServiceQueue.onStarted(task.getEnqueueTime());
+                }
+                mEvents.append(task.getId(), task.getType(),
+                        TaskEventLog.Stage.STARTED);
+            }
+
+            @Override
+            public void onTaskFinished(final Task task,
+                    final Throwable error) {
+                recordHistory(task, error);
+                if (error == null && task.getStartTime() != 0) {
+                    mServiceQueue.onFinished(task.getType(),
+                            task.getResumeTime());
+                }
+                if (error instanceof RuntimeException
+                        && retry(task, error)) {
+                    showQueue();
+                    return;
+                }
+                mEvents.append(task.getId(), task.getType(),
+                        getStage(task, error));
+                if (error instanceof TimeoutException) {
+                    postFailure(task, error);
+                } else if (error != null) {
+                    mDeadLetters.add(task.getType(), task.getBundle(),
+                            task.getAttempt(), error);
+                    postFailure(task, error);
+                }
+                mRouter.onTaskFinished(task);
+                synchronized (mWorkQueue) {
+                    mRunning.remove(task);
+                    mWorkQueue.notifyAll();
+                }
+                showQueue();
+            }
+        };
+        for (ExecutionClass executionClass : ExecutionClass.values()) {
+            mSchedulers.put(executionClass, new TaskScheduler("TaskCarrier-"
+                    + executionClass.name().toLowerCase(),
+                    executionClass.getCarriers(), executionClass.getPriority(),
+                    listener, mWatchdog));
+        }
+        mRouter = new ShardRouter(mSchedulers,
+                mApplication.getRoutingShards());
+        mSpillDir = new File(myService.getCacheDir(), SPILL_DIR);
+        /** Spilled Bundles of a Service that was killed are lost. **/
+        File[] leftovers = mSpillDir.listFiles();
+        if (leftovers != null) {
+            for (File file : leftovers) {
+                file.delete();
+            }
+        }
+        mApplication.getMemoryPressure().register(this);
     }
 
     /***
      * Add a message to the work queue.
      *
      * @param message Message containing a description of work to be done.
+     * @return TRUE if the message was added, FALSE if the WorkerThread is
+     *         stopping and a new one is needed.
      */
-    protected final void add(final Message message) {
+    protected final boolean add(final Message message) {
         synchronized (mWorkQueue) {
-            Log.i(MyApplication.LOG_TAG, "WorkerThread.add() "
-                    + "Message type[" + Type.getType(message.what) + "]");
+            if (stopping) {
+                return false;
+            }
+            AsyncLog.i(MyApplication.LOG_TAG, "WorkerThread.add() "
+                    + "Message type[{}]", Type.getType(message.what));
             mWorkQueue.add(message);
+            mWorkQueue.notifyAll();
         }
         showQueue();
+        return true;
     }
 
     /***
@@ -106,149 +256,620 @@ public class WorkerThread extends Thread {
      *         messages, because it is dead or shutting down, FALSE otherwise.
      */
     public final boolean isStopping() {
-        return stopping;
+        synchronized (mWorkQueue) {
+            return stopping;
+        }
     }
 
     /***
-     * Main run method, where all the queued messages are executed.
+     * Main run method, where all the queued messages are turned into Tasks and
+     * submitted to the TaskScheduler.  The thread waits while Tasks are still
+     * running, as they may be followed by more messages.
      */
     public final void run() {
         setName("WorkerThread");
-        while (mWorkQueue.size() > 0) {
-            Type type;
+        Watchdog.Heartbeat heartbeat = mWatchdog.register(getName(),
+                DISPATCH_SLO);
+        while (true) {
+            spillQueue();
+            int what;
             Bundle bundle = null;
+            long enqueueTime;
+            long deadline;
+            long maxRunTime;
+            String routingKey;
+            File spilled = null;
             synchronized (mWorkQueue) {
+                while (mWorkQueue.isEmpty() && !mRunning.isEmpty()) {
+                    try {
+                        mWorkQueue.wait();
+                    } catch (InterruptedException e) {
+                        // Do nothing.
+                    }
+                }
+                if (mWorkQueue.isEmpty()) {
+                    stopping = true;
+                    break;
+                }
+
+                heartbeat.begin();
                 Message message = mWorkQueue.remove(0);
-                Log.i(MyApplication.LOG_TAG, "WorkerThread.run() "
-                        + "Message type[" + Type.getType(message.what) + "]");
-                type = Type.getType(message.what);
+                AsyncLog.i(MyApplication.LOG_TAG, "WorkerThread.run() "
+                        + "Message type[{}]", Type.getType(message.what));
+                what = message.what;
+                Bundle data = message.getData();
+                enqueueTime = data.getLong(ServiceQueue.ENQUEUE_TIME);
+                deadline = data.getLong(ServiceQueue.DEADLINE, 0);
+                maxRunTime = data.getLong(ServiceQueue.MAX_RUN_TIME, 0);
+                routingKey = data.getString(ServiceQueue.ROUTING_KEY);
                 if (message.obj != null
                         && message.obj.getClass() == Bundle.class) {
                     bundle = (Bundle) message.obj;
+                } else if (message.obj instanceof File) {
+                    spilled = (File) message.obj;
+                }
+            }
+            if (spilled != null) {
+                bundle = unspill(spilled, true);
+                if (bundle == null) {
+                    deadLetter(what, enqueueTime, spilled);
+                    heartbeat.end();
+                    continue;
                 }
             }
-            showQueue();
-
-            switch (type) {
-            case DO_SHORT_TASK:
-                doShortTask(bundle);
-                break;
-
-            case DO_LONG_TASK:
-                doLongTask(bundle);
-                break;
 
-            default:
-                // Do nothing.
-                break;
+            Task task = createTask(what, bundle);
+            if (task != null) {
+                task.setEnqueueTime(enqueueTime);
+                task.setDeadline(deadline);
+                task.setMaxRunTime(maxRunTime);
+                task.setPayloadSize(getPayloadSize(bundle));
+                task.setRoutingKey(routingKey);
+                task.setBundle(bundle);
+                logQueued(task);
+                synchronized (mWorkQueue) {
+                    mRunning.add(task);
+                }
+                mRouter.submit(task);
+            } else {
+                mServiceQueue.onStarted(enqueueTime);
             }
+            showQueue();
+            heartbeat.end();
         }
+        mWatchdog.unregister(heartbeat);
+        mApplication.getMemoryPressure().unregister(this);
 
-        mCache.setStateLongTask("");
-        mUiQueue.postToUi(Type.UPDATE_SHORT_TASK, null, true);
-        mCache.setStateShortTask("");
-        mUiQueue.postToUi(Type.UPDATE_LONG_TASK, null, true);
+        for (TaskScheduler scheduler : mSchedulers.values()) {
+            scheduler.shutdown();
+        }
+        synchronized (mParallelExecutors) {
+            mParallelShutdown = true;
+            for (ParallelExecutor executor : mParallelExecutors.values()) {
+                executor.shutdown();
+            }
+        }
+        mUiQueue.getProgress(Type.DO_LONG_TASK).publish(Progress.NONE);
+        mCache.set(Keys.STATE_SHORT_TASK, "");
 
-        stopping = true;
         mMyService.stopSelf();
     }
 
     /***
-     * [Optional] Example task which takes time to complete and repeatedly
-     * updates the UI.
+     * Returns a message for each unfinished Task, created from its
+     * checkpoint, followed by copies of the queued messages, for a
+     * StateSnapshot. Spilled Bundles are read back after the lock is
+     * released, and a message whose spill file cannot be read is left out.
      *
-     * @param bundle
-     *            Bundle of extra information.
+     * @return New list of messages, whose objects are Bundles or NULL.
      */
-    private void doShortTask(final Bundle bundle) {
-        mCache.setStateShortTask("Loading short task");
-        mUiQueue.postToUi(Type.UPDATE_SHORT_TASK, null, true);
-        wasteTime(WASTE_TIME);
-        mCache.setStateShortTask("Running short task");
-        mUiQueue.postToUi(Type.UPDATE_SHORT_TASK, null, true);
-        wasteTime(WASTE_TIME);
-        mCache.setStateShortTask("Finishing short task");
-        mUiQueue.postToUi(Type.UPDATE_SHORT_TASK, null, true);
-        wasteTime(WASTE_TIME);
-        mCache.setStateShortTask("Finished short task");
-        mUiQueue.postToUi(Type.UPDATE_SHORT_TASK, null, true);
+    final List<Message> getPendingMessages() {
+        List<Message> messages = new ArrayList<Message>();
+        List<Message> queuedMessages = new ArrayList<Message>();
+        synchronized (mWorkQueue) {
+            for (Task task : mRunning) {
+                Message message = Message.obtain();
+                message.what = task.getType().ordinal();
+                message.obj = task.getCheckpoint();
+                Bundle data = message.getData();
+                data.putLong(ServiceQueue.ENQUEUE_TIME,
+                        task.getEnqueueTime());
+                if (task.getMaxRunTime() > 0) {
+                    data.putLong(ServiceQueue.MAX_RUN_TIME,
+                            task.getMaxRunTime());
+                }
+                if (task.getRoutingKey() != null) {
+                    data.putString(ServiceQueue.ROUTING_KEY,
+                            task.getRoutingKey());
+                }
+                messages.add(message);
+            }
+            for (Message queued : mWorkQueue) {
+                Message message = Message.obtain();
+                message.copyFrom(queued);
+                queuedMessages.add(message);
+            }
+        }
+        for (Message message : queuedMessages) {
+            if (message.obj instanceof File) {
+                message.obj = unspill((File) message.obj, false);
+                if (message.obj == null) {
+                    continue;
+                }
+            }
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    /***
+     * Start the Task for an inline eligible message without queuing it, as
+     * long as the WorkerThread is not stopping.
+     *
+     * @param type Message Type.
+     * @param bundle Bundle of extra information, NULL otherwise.
+     * @param enqueueTime Uptime at which the message was posted.
+     * @param maxRunTime Maximum run time in milliseconds, or 0.
+     * @param onCaller TRUE to run the first step on the calling thread,
+     *            FALSE to hand the Task to the next idle carrier. A Task
+     *            posted from a carrier is always handed over, so it does not
+     *            run nested inside the posting Task.
+     * @return TRUE if the Task was started.
+     */
+    final boolean runInline(final Type type, final Bundle bundle,
+            final long enqueueTime, final long maxRunTime,
+            final boolean onCaller) {
+        Task task = createTask(type.ordinal(), bundle);
+        if (task == null) {
+            return false;
+        }
+        task.setEnqueueTime(enqueueTime);
+        task.setMaxRunTime(maxRunTime);
+        task.setPayloadSize(getPayloadSize(bundle));
+        task.setBundle(bundle);
+        synchronized (mWorkQueue) {
+            if (stopping) {
+                return false;
+            }
+            mRunning.add(task);
+        }
+        logQueued(task);
+        /** Inline Tasks keep the priority of the calling thread. **/
+        TaskScheduler scheduler = mSchedulers.get(task.getExecutionClass());
+        if (onCaller && !isSchedulerThread()) {
+            scheduler.runInline(task);
+        } else {
+            scheduler.submit(task);
+        }
+        return true;
+    }
 
-        if (bundle != null) {
-            Bundle outBundle = new Bundle();
-            outBundle.putString("TEXT",
-                    "The short task has finished. Called from ["
-                            + bundle.getString("TEXT") + "]");
-            mUiQueue.postToUi(Type.SHOW_DIALOG, outBundle, false);
+    /***
+     * Returns TRUE if the calling thread belongs to one of the
+     * TaskSchedulers.
+     *
+     * @return TRUE on a carrier or timer thread.
+     */
+    private boolean isSchedulerThread() {
+        Thread thread = Thread.currentThread();
+        for (TaskScheduler scheduler : mSchedulers.values()) {
+            if (scheduler.isSchedulerThread(thread)) {
+                return true;
+            }
         }
+        return false;
     }
 
     /***
-     * [Optional] Example task which takes time to complete and repeatedly
-     * updates the UI.
+     * Ask the WorkerThread to spill the Bundles of all queued messages to
+     * disk under CRITICAL memory pressure. The files are written on the
+     * WorkerThread before it takes the next message, so the caller does not
+     * wait on the disk and add() is not held up.
      *
-     * @param bundle Bundle of extra information.
+     * @param level Severity of the memory pressure.
      */
-    private void doLongTask(final Bundle bundle) {
-        mCache.setStateLongTask("Loading long task");
-        mUiQueue.postToUi(Type.UPDATE_LONG_TASK, null, true);
-        wasteTime(WASTE_TIME);
+    @Override
+    public final void onTrim(final MemoryPressure.Level level) {
+        if (level != MemoryPressure.Level.CRITICAL) {
+            return;
+        }
+        synchronized (mWorkQueue) {
+            mSpillRequested = true;
+            mWorkQueue.notifyAll();
+        }
+    }
 
-        int i = 0;
-        if (bundle != null) {
-            i = bundle.getInt(PROCESS_STATE);
-        } else {
-            i = 0;
+    /***
+     * Spill the Bundles of the queued messages, if onTrim() asked for it.
+     * The messages are listed under the lock and written outside it, and a
+     * message only takes its spill file if it is still queued with the same
+     * Bundle. Bundles that cannot be encoded stay in memory.
+     */
+    private void spillQueue() {
+        List<Message> messages = new ArrayList<Message>();
+        List<Bundle> bundles = new ArrayList<Bundle>();
+        synchronized (mWorkQueue) {
+            if (!mSpillRequested) {
+                return;
+            }
+            mSpillRequested = false;
+            for (Message message : mWorkQueue) {
+                if (message.obj != null
+                        && message.obj.getClass() == Bundle.class) {
+                    messages.add(message);
+                    bundles.add((Bundle) message.obj);
+                }
+            }
         }
+        int spilled = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            File file = spill(bundles.get(i));
+            if (file == null) {
+                continue;
+            }
+            boolean swapped = false;
+            synchronized (mWorkQueue) {
+                Message message = messages.get(i);
+                if (message.obj == bundles.get(i)
+                        && containsMessage(message)) {
+                    message.obj = file;
+                    swapped = true;
+                }
+            }
+            if (swapped) {
+                spilled++;
+            } else {
+                file.delete();
+            }
+        }
+        Log.i(MyApplication.LOG_TAG, "WorkerThread.spillQueue() Spilled ["
+                + spilled + "] Bundles");
+    }
 
-        for (; i <= LONG_TASK_COMPLETE; i += LONG_TASK_INCREMENT) {
-            mCache.setStateLongTask("Long task " + i + "% complete");
-            mUiQueue.postToUi(Type.UPDATE_LONG_TASK, null, true);
-            NotificationUtils.notifyUserOfProgress(mMyService
-                    .getApplicationContext(), i);
-            wasteTime(WASTE_TIME);
-            mCache.setLongProcessState(i);
+    /***
+     * Returns TRUE if the given message is still in the work queue. Must be
+     * called with the mWorkQueue lock held.
+     *
+     * @param message Message instance.
+     * @return TRUE if the instance is queued.
+     */
+    private boolean containsMessage(final Message message) {
+        for (Message queued : mWorkQueue) {
+            if (queued == message) {
+                return true;
+            }
         }
-        /** Clear Long Process state. **/
-        mCache.setLongProcessState(-1);
+        return false;
+    }
 
-        mCache.setStateLongTask("Long task done");
-        mUiQueue.postToUi(Type.UPDATE_LONG_TASK, null, true);
-        NotificationUtils.notifyUserOfProgress(mMyService
-                .getApplicationContext(), -1);
+    /***
+     * Send a message whose spilled Bundle could not be read back to the
+     * DeadLetterQueue, instead of running its Task without a Bundle.
+     *
+     * @param what Message code.
+     * @param enqueueTime Uptime at which the message was posted.
+     * @param file Spill file that could not be read.
+     */
+    private void deadLetter(final int what, final long enqueueTime,
+            final File file) {
+        mServiceQueue.onStarted(enqueueTime);
+        Type type = Type.getType(what);
+        IOException error = new IOException("Unable to read spilled Bundle["
+                + file + "]");
+        mDeadLetters.add(type, null, 0, error);
+        postFailure(type, error);
+        showQueue();
     }
 
     /***
-     * [Optional] Example task which sends the current state of the queue to the
-     * UI.
+     * Write a message Bundle to a new file in the spill folder.
+     *
+     * @param bundle Bundle to spill.
+     * @return Spill file, or NULL if the Bundle could not be written.
      */
-    private void showQueue() {
-        StringBuffer stringBuffer = new StringBuffer();
-        for (Message message : mWorkQueue) {
-            stringBuffer.append("Message type[");
-            stringBuffer.append(Type.getType(message.what));
-            stringBuffer.append("]\n");
+    private File spill(final Bundle bundle) {
+        mSpillDir.mkdirs();
+        File file = new File(mSpillDir, "bundle-" + (mSpillCount++));
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file)));
+            BundleCodec.write(out, bundle);
+            out.close();
+            out = null;
+            return file;
+        } catch (IOException e) {
+            Log.w(MyApplication.LOG_TAG, "WorkerThread.spill() Unable to "
+                    + "write[" + file + "]: " + e);
+        } catch (InvalidParameterException e) {
+            // Bundle holds a value the codec cannot encode.
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Do nothing.
+                }
+            }
         }
-        mCache.setQueue(stringBuffer.toString());
-        mUiQueue.postToUi(Type.UPDATE_QUEUE, null, true);
+        file.delete();
+        return null;
     }
 
     /***
-     * [Optional] Slow down the running task - for test use only.
+     * Read back a spilled message Bundle.
      *
-     * @param time
-     *            Amount of time to waste.
+     * @param file Spill file.
+     * @param delete TRUE to delete the file once read.
+     * @return Bundle, or NULL if the file could not be read.
      */
-    private void wasteTime(final long time) {
-        long startTime = System.currentTimeMillis();
-        while (System.currentTimeMillis() < startTime + time) {
-            synchronized (mWakeLock) {
+    private static Bundle unspill(final File file, final boolean delete) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            return BundleCodec.read(in);
+        } catch (IOException e) {
+            Log.e(MyApplication.LOG_TAG, "WorkerThread.unspill() Unable to "
+                    + "read[" + file + "]", e);
+            return null;
+        } finally {
+            if (in != null) {
                 try {
-                    mWakeLock.wait(startTime + WASTE_TIME
-                            - System.currentTimeMillis());
-                } catch (InterruptedException e) {
+                    in.close();
+                } catch (IOException e) {
                     // Do nothing.
                 }
             }
+            if (delete) {
+                file.delete();
+            }
+        }
+    }
+
+    /***
+     * Returns the Application Cache, for TaskHandlers.
+     *
+     * @return Cache.
+     */
+    public final Cache getCache() {
+        return mCache;
+    }
+
+    /***
+     * Returns the Application UiQueue, for TaskHandlers.
+     *
+     * @return UiQueue.
+     */
+    public final UiQueue getUiQueue() {
+        return mUiQueue;
+    }
+
+    /***
+     * Returns the ParallelExecutor shared by the ParallelTasks of an
+     * ExecutionClass, for TaskHandlers, starting it on first use.
+     *
+     * @param executionClass ExecutionClass of the ParallelTask.
+     * @return ParallelExecutor whose workers run at the class priority.
+     */
+    public final ParallelExecutor getParallelExecutor(
+            final ExecutionClass executionClass) {
+        synchronized (mParallelExecutors) {
+            ParallelExecutor executor =
+                mParallelExecutors.get(executionClass);
+            if (executor == null) {
+                executor = new ParallelExecutor("ParallelWorker-"
+                        + executionClass.name().toLowerCase(),
+                        Runtime.getRuntime().availableProcessors(),
+                        executionClass.getPriority());
+                if (mParallelShutdown) {
+                    executor.shutdown();
+                }
+                mParallelExecutors.put(executionClass, executor);
+            }
+            return executor;
+        }
+    }
+
+    /***
+     * Create the Task for a message, using the TaskHandler registered for
+     * its message code.
+     *
+     * @param what Message code.
+     * @param bundle Bundle of extra information, NULL otherwise.
+     * @return New Task, or NULL if no handler is registered for the code.
+     */
+    private Task createTask(final int what, final Bundle bundle) {
+        TaskHandler handler = mRegistry.get(what);
+        if (handler == null) {
+            return null;
+        }
+        return createTask(handler, bundle);
+    }
+
+    /***
+     * Create a Task with the given handler.
+     *
+     * @param handler TaskHandler.
+     * @param bundle Bundle of extra information, NULL otherwise.
+     * @return New Task.
+     */
+    private Task createTask(final TaskHandler handler, final Bundle bundle) {
+        Task task = handler.createTask(this, bundle);
+        task.setHandler(handler);
+        return task;
+    }
+
+    /***
+     * Resubmit a failed Task after a backoff, if the RetryPolicy of its
+     * handler allows another attempt. The retry bypasses the ShardRouter, as
+     * the shard of its routing key is still held by the failed attempt.
+     *
+     * @param task Failed Task.
+     * @param error Exception thrown by the Task.
+     * @return TRUE if the Task will be retried.
+     */
+    private boolean retry(final Task task, final Throwable error) {
+        RetryPolicy policy = task.getHandler().getPolicy().getRetryPolicy();
+        if (policy == null || !policy.shouldRetry(task.getAttempt())) {
+            return false;
+        }
+        long backoff = policy.getBackoff(task.getAttempt(), mRandom);
+        Task retry = createTask(task.getHandler(), task.getBundle());
+        retry.setEnqueueTime(task.getEnqueueTime());
+        if (task.getDeadline() > 0) {
+            /** The retry gets the same time to start, after its backoff. **/
+            retry.setDeadline(SystemClock.uptimeMillis() + backoff
+                    + task.getDeadline() - task.getEnqueueTime());
+        }
+        retry.setMaxRunTime(task.getMaxRunTime());
+        retry.setPayloadSize(task.getPayloadSize());
+        retry.setRoutingKey(task.getRoutingKey());
+        retry.setBundle(task.getBundle());
+        retry.setAttempt(task.getAttempt() + 1);
+        retry.setId(task.getId());
+        mEvents.append(task.getId(), task.getType(),
+                TaskEventLog.Stage.RETRYING);
+        AsyncLog.w(MyApplication.LOG_TAG, "WorkerThread.retry() Task[{}] "
+                + "failed on attempt[{}], retrying in [{}ms]: {}", task,
+                task.getAttempt(), backoff, error);
+        synchronized (mWorkQueue) {
+            mRunning.set(mRunning.indexOf(task), retry);
+        }
+        mSchedulers.get(retry.getExecutionClass()).submit(retry, backoff);
+        return true;
+    }
+
+    /***
+     * Give a new Task its identifier and log it as QUEUED.
+     *
+     * @param task New Task.
+     */
+    private void logQueued(final Task task) {
+        task.setId(mEvents.newTaskId());
+        mEvents.append(task.getId(), task.getType(),
+                TaskEventLog.Stage.QUEUED);
+    }
+
+    /***
+     * Returns the final Stage of a Task that will not be retried.
+     *
+     * @param task Finished Task.
+     * @param error Exception the Task finished with, or NULL.
+     * @return Final Stage.
+     */
+    private static TaskEventLog.Stage getStage(final Task task,
+            final Throwable error) {
+        if (error == null) {
+            return TaskEventLog.Stage.COMPLETED;
+        } else if (!(error instanceof TimeoutException)) {
+            return TaskEventLog.Stage.FAILED;
+        } else if (task.getStartTime() == 0) {
+            return TaskEventLog.Stage.DROPPED;
+        } else {
+            return TaskEventLog.Stage.TIMED_OUT;
+        }
+    }
+
+    /***
+     * Record a finished Task in the TaskHistory.
+     *
+     * @param task Finished Task.
+     * @param error Exception the Task finished with, or NULL.
+     */
+    private void recordHistory(final Task task, final Throwable error) {
+        TaskHistory.Outcome outcome;
+        if (error == null) {
+            outcome = TaskHistory.Outcome.COMPLETED;
+        } else if (!(error instanceof TimeoutException)) {
+            outcome = TaskHistory.Outcome.FAILED;
+        } else if (task.getStartTime() == 0) {
+            outcome = TaskHistory.Outcome.DROPPED;
+        } else {
+            outcome = TaskHistory.Outcome.TIMED_OUT;
+        }
+        mHistory.record(task.getType(), outcome, task.getEnqueueTime(),
+                task.getStartTime(), SystemClock.uptimeMillis(),
+                task.getPayloadSize());
+    }
+
+    /***
+     * Returns the encoded size of a message Bundle.
+     *
+     * @param bundle Bundle, or NULL.
+     * @return Size in bytes, or 0 if the Bundle cannot be encoded.
+     */
+    private static int getPayloadSize(final Bundle bundle) {
+        try {
+            return BundleCodec.sizeOf(bundle);
+        } catch (InvalidParameterException e) {
+            return 0;
+        }
+    }
+
+    /***
+     * Tell the UI that a Task failed, missed its deadline or overran.
+     *
+     * @param task Failed Task.
+     * @param error Reason for the failure.
+     */
+    private void postFailure(final Task task, final Throwable error) {
+        postFailure(task.getType(), error);
+    }
+
+    /***
+     * Tell the UI that a message of the given Type failed.
+     *
+     * @param type Message Type.
+     * @param error Reason for the failure.
+     */
+    private void postFailure(final Type type, final Throwable error) {
+        Log.w(MyApplication.LOG_TAG, "WorkerThread.postFailure() "
+                + error.getMessage());
+        Bundle bundle = new Bundle();
+        bundle.putString("TEXT", "Task [" + type + "] failed: "
+                + error.getMessage());
+        mUiQueue.postToUi(Type.TASK_FAILED, bundle, false);
+    }
+
+    /***
+     * [Optional] Example task which sends the current state of the queue to the
+     * UI.
+     */
+    private void showQueue() {
+        StringBuffer stringBuffer = new StringBuffer();
+        List<Task> waiting = mRouter.getWaiting();
+        synchronized (mWorkQueue) {
+            for (Task task : mRunning) {
+                stringBuffer.append(waiting.contains(task) ? "Waiting type["
+                        : "Running type[");
+                stringBuffer.append(task.getType());
+                if (task.getRoutingKey() != null) {
+                    stringBuffer.append("] key[");
+                    stringBuffer.append(task.getRoutingKey());
+                }
+                if (task.getAttempt() > 1) {
+                    stringBuffer.append("] attempt[");
+                    stringBuffer.append(task.getAttempt());
+                }
+                stringBuffer.append("]\n");
+            }
+            for (Message message : mWorkQueue) {
+                stringBuffer.append("Message type[");
+                stringBuffer.append(Type.getType(message.what));
+                stringBuffer.append("]\n");
+            }
+        }
+        if (mDeadLetters.size() > 0) {
+            stringBuffer.append("Dead letters[");
+            stringBuffer.append(mDeadLetters.size());
+            stringBuffer.append("]\n");
+        }
+        for (String key : mRouter.getHotKeys()) {
+            stringBuffer.append("Hot key[");
+            stringBuffer.append(key);
+            stringBuffer.append("]\n");
         }
+        mCache.set(Keys.STATE_QUEUE, stringBuffer.toString());
     }
 }
@@ -28,6 +28,7 @@ import android.widget.Button;
 import android.widget.TextView;
 
 import com.zedray.framework.R;
+import com.zedray.framework.utils.Keys;
 import com.zedray.framework.utils.Type;
 
 /***
@@ -38,8 +39,6 @@ public class AllTasks extends BaseActivity {
 
     /** [Optional] ID of the Menu item for killing the current process. **/
     private static final int MENU_KILL_PROCESS = 1;
-    /** UI TextViews. **/
-    private TextView mTextViewX, mTextViewY, mTextViewQueue;
 
     @Override
     public final void onCreate(final Bundle savedInstanceState) {
@@ -49,12 +48,13 @@ public class AllTasks extends BaseActivity {
         
         final Context context = this;
 
-        mTextViewX = (TextView) findViewById(
-                R.id.main_TextView_StatusShortTask);
-        mTextViewY = (TextView) findViewById(
-                R.id.main_TextView_StatusLongTask);
-        mTextViewQueue = (TextView) findViewById(
-                R.id.main_TextView_StatusQueue);
+        /** Short task and queue state are shown from one Snapshot. **/
+        observeTexts(new TextView[] {
+                (TextView) findViewById(R.id.main_TextView_StatusShortTask),
+                (TextView) findViewById(R.id.main_TextView_StatusQueue)},
+                Keys.STATE_SHORT_TASK, Keys.STATE_QUEUE);
+        observeProgress(Type.DO_LONG_TASK, (TextView) findViewById(
+                R.id.main_TextView_StatusLongTask));
 
         ((Button) findViewById(R.id.main_Button_DoShortTask))
             .setOnClickListener(new OnClickListener() {
@@ -62,7 +62,7 @@ public class AllTasks extends BaseActivity {
             public void onClick(final View view) {
                 Bundle outBundle = new Bundle();
                 outBundle.putString("TEXT", AllTasks.class.getSimpleName());
-                getServiceQueue().postToService(Type.DO_SHORT_TASK, outBundle);
+                postToService(Type.DO_SHORT_TASK, outBundle);
             }
         });
 
@@ -70,7 +70,7 @@ public class AllTasks extends BaseActivity {
                 new OnClickListener() {
             @Override
             public void onClick(final View view) {
-                getServiceQueue().postToService(Type.DO_LONG_TASK, null);
+                postToService(Type.DO_LONG_TASK, null);
             }
         });
 
@@ -78,12 +78,6 @@ public class AllTasks extends BaseActivity {
         setButton(R.id.main_Button_Go2, LongTasks.class, context);
     }
 
-    @Override
-    protected final void onResume() {
-        updateAll();
-        super.onResume();
-    }
-
     /***
      * [Optional] Sets the UI buttons to point to the next Activity.
      *
@@ -103,64 +97,6 @@ public class AllTasks extends BaseActivity {
         button.setText(targetClass.getSimpleName());
     }
 
-    /***
-     * Update all UI elements - called onCreate() and onResume().
-     */
-    private void updateAll() {
-        updateTextViewX();
-        updateTextViewY();
-        updateTextViewQueue();
-    }
-
-    /***
-     * Update the given TextView with information from the Application Cache.
-     */
-    private void updateTextViewX() {
-        mTextViewX.setText(getCache().getStateShortTask());
-    }
-
-    /***
-     * Update the given TextView with information from the Application Cache.
-     */
-    private void updateTextViewY() {
-        mTextViewY.setText(getCache().getStateLongTask());
-    }
-
-    /***
-     * Update the given TextView with information from the Application Cache.
-     */
-    private void updateTextViewQueue() {
-        mTextViewQueue.setText(getCache().getQueue());
-    }
-
-    /***
-     * Override the post method to receive incoming messages from the Service.
-     *
-     * @param type Message type.
-     * @param bundle Optional Bundle of extra information, NULL otherwise.
-     */
-    @Override
-    public final void post(final Type type, final Bundle bundle) {
-        switch (type) {
-            case UPDATE_SHORT_TASK:
-                updateTextViewX();
-                break;
-
-            case UPDATE_LONG_TASK:
-                updateTextViewY();
-                break;
-
-            case UPDATE_QUEUE:
-                updateTextViewQueue();
-                break;
-
-            default:
-                /** Let the BaseActivity handle other message types. */
-                super.post(type, bundle);
-                break;
-        }
-    }
-
     /***
      * [Optional] Create the menu items.
      *
@@ -17,6 +17,11 @@
 package com.zedray.framework.ui;
 
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -24,10 +29,17 @@ import android.app.Dialog;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
+import android.widget.TextView;
 
+import com.zedray.framework.application.Admission;
 import com.zedray.framework.application.Cache;
+import com.zedray.framework.application.CacheKey;
+import com.zedray.framework.application.CacheObserver;
 import com.zedray.framework.application.MyApplication;
+import com.zedray.framework.application.Progress;
+import com.zedray.framework.application.ProgressPublisher;
 import com.zedray.framework.application.ServiceQueue;
 import com.zedray.framework.application.UiQueue;
 import com.zedray.framework.utils.Type;
@@ -39,9 +51,21 @@ import com.zedray.framework.utils.Type;
  * involves overriding the post() method, but calling super() if your activity
  * does not implement the given message. The same goes with onCreateDialog(),
  * onResume() and onPause() which can also be overridden in your Activity.
+ * State held in the Cache, or published as task Progress, is displayed by
+ * calling observe() or observeProgress() in onCreate(), so the Activity
+ * receives the latest value whenever it is on screen.
+ *
+ * TextViews bound with observeText() or observeProgress() are not updated
+ * directly. New text is held until the next frame, at most once every
+ * FRAME_INTERVAL, and only set on views whose text differs from the last
+ * value rendered, so a burst of updates costs one setText() and one layout
+ * pass per view per frame.
  */
 public class BaseActivity extends Activity {
 
+    /** Minimum time between two frames of bound view updates. **/
+    private static final long FRAME_INTERVAL = 16;
+
     /** Pointer to the ServiceQueue. **/
     private ServiceQueue mServiceQueue;
     /** Pointer to the Application Cache. **/
@@ -53,6 +77,44 @@ public class BaseActivity extends Activity {
      * used in the onCreateDialog() method.
      */
     private Bundle mDialogBundle;
+    /** Observations registered with observe() and observeProgress(). **/
+    private final List<Observation> mObservations =
+        new ArrayList<Observation>();
+    /** TRUE while the Activity is between onResume() and onPause(). **/
+    private boolean mResumed = false;
+    /** Text waiting for the next frame, for each bound TextView. **/
+    private final Map<TextView, CharSequence> mPendingText =
+        new LinkedHashMap<TextView, CharSequence>();
+    /** Text last set on each bound TextView. **/
+    private final Map<TextView, CharSequence> mRenderedText =
+        new HashMap<TextView, CharSequence>();
+    /** TRUE while a frame is posted to the Handler. **/
+    private boolean mFrameScheduled = false;
+    /** Uptime of the last frame. **/
+    private long mLastFrame = 0;
+    /***
+     * Apply pending text to the bound TextViews whose text has changed.
+     */
+    private final Runnable mFrame = new Runnable() {
+        @Override
+        public void run() {
+            mFrameScheduled = false;
+            mLastFrame = SystemClock.uptimeMillis();
+            for (Map.Entry<TextView, CharSequence> entry
+                    : mPendingText.entrySet()) {
+                TextView textView = entry.getKey();
+                CharSequence text = entry.getValue();
+                CharSequence rendered = mRenderedText.get(textView);
+                if (mRenderedText.containsKey(textView) && (text == null
+                        ? rendered == null : text.equals(rendered))) {
+                    continue;
+                }
+                mRenderedText.put(textView, text);
+                textView.setText(text);
+            }
+            mPendingText.clear();
+        }
+    };
 
     /***
      * Create the BaseActivity and cache Application objects: ServiceQueue,
@@ -75,18 +137,298 @@ public class BaseActivity extends Activity {
     @Override
     protected void onResume() {
         mUiQueue.subscribe(mHandler);
+        mResumed = true;
+        for (Observation observation : mObservations) {
+            observation.start();
+        }
         super.onResume();
     }
 
     /***
-     * Unsubscribe the Activity from the UiQueue.
+     * Unsubscribe the Activity from the UiQueue, and save the framework state
+     * in case the process is killed while in the background.
      */
     @Override
     protected void onPause() {
         mUiQueue.unsubscribe(mHandler);
+        mResumed = false;
+        for (Observation observation : mObservations) {
+            observation.stop();
+        }
+        /** Observations deliver the current values again in onResume(). **/
+        mHandler.removeCallbacks(mFrame);
+        mFrameScheduled = false;
+        mPendingText.clear();
+        ((MyApplication) getApplication()).saveSnapshot();
         super.onPause();
     }
 
+    /***
+     * Observe a Cache key while the Activity is on screen. The observer
+     * receives the current value in onResume(), then every change until
+     * onPause().
+     *
+     * @param <T> Type of the value.
+     * @param key Key to observe.
+     * @param observer Observer to notify on the UI thread.
+     */
+    protected final <T> void observe(final CacheKey<T> key,
+            final CacheObserver<T> observer) {
+        addObservation(new CacheObservation<T>(key, observer));
+    }
+
+    /***
+     * Show the value of a Cache key in a TextView while the Activity is on
+     * screen.
+     *
+     * @param key Key to observe.
+     * @param textView TextView to update.
+     */
+    protected final void observeText(final CacheKey<String> key,
+            final TextView textView) {
+        observe(key, new CacheObserver<String>() {
+            @Override
+            public void onChanged(final CacheKey<String> changedKey,
+                    final String value) {
+                bindText(textView, value);
+            }
+        });
+    }
+
+    /***
+     * Show the values of several Cache keys in TextViews while the Activity
+     * is on screen. Whenever any of the keys changes, every view is updated
+     * from one Cache Snapshot, so the views never show a mix of versions.
+     *
+     * @param textViews TextView for each key, in the same order.
+     * @param keys Keys to observe.
+     */
+    protected final void observeTexts(final TextView[] textViews,
+            final CacheKey<?>... keys) {
+        if (textViews.length != keys.length) {
+            throw new InvalidParameterException("BaseActivity.observeTexts() "
+                    + "Expected [" + keys.length + "] TextViews, not["
+                    + textViews.length + "]");
+        }
+        addObservation(new SnapshotObservation(textViews, keys));
+    }
+
+    /***
+     * Show the latest Progress of a Type of task in a TextView while the
+     * Activity is on screen. One value is requested at a time, so a burst of
+     * progress is never queued on the UI thread.
+     *
+     * @param type Task Type.
+     * @param textView TextView to update.
+     */
+    protected final void observeProgress(final Type type,
+            final TextView textView) {
+        addObservation(new ProgressObservation(type, textView));
+    }
+
+    /***
+     * Show text in a TextView on the next frame. Called on the UI thread;
+     * text equal to what the view already shows is ignored.
+     *
+     * @param textView TextView to update.
+     * @param text New text.
+     */
+    private void bindText(final TextView textView, final CharSequence text) {
+        mPendingText.put(textView, text);
+        if (!mFrameScheduled) {
+            mFrameScheduled = true;
+            mHandler.postDelayed(mFrame, Math.max(0, mLastFrame
+                    + FRAME_INTERVAL - SystemClock.uptimeMillis()));
+        }
+    }
+
+    /***
+     * Keep an observation and start it if the Activity is on screen.
+     *
+     * @param observation New observation.
+     */
+    private void addObservation(final Observation observation) {
+        mObservations.add(observation);
+        if (mResumed) {
+            observation.start();
+        }
+    }
+
+    /***
+     * Something the Activity observes while it is on screen.
+     */
+    private interface Observation {
+
+        /***
+         * Start observing, called from onResume().
+         */
+        void start();
+
+        /***
+         * Stop observing, called from onPause().
+         */
+        void stop();
+    }
+
+    /***
+     * Pairs a CacheKey with the observer registered for it.
+     *
+     * @param <T> Type of the value.
+     */
+    private final class CacheObservation<T> implements Observation {
+        /** Observed key. **/
+        private final CacheKey<T> mKey;
+        /** Observer to notify. **/
+        private final CacheObserver<T> mObserver;
+
+        /***
+         * Constructor.
+         *
+         * @param key Observed key.
+         * @param observer Observer to notify.
+         */
+        private CacheObservation(final CacheKey<T> key,
+                final CacheObserver<T> observer) {
+            mKey = key;
+            mObserver = observer;
+        }
+
+        @Override
+        public void start() {
+            mCache.observe(mKey, mObserver);
+        }
+
+        @Override
+        public void stop() {
+            mCache.removeObserver(mKey, mObserver);
+        }
+    }
+
+    /***
+     * Observes several Cache keys, showing all of them from one Snapshot
+     * whenever any of them changes.
+     */
+    private final class SnapshotObservation implements Observation {
+        /** TextView for each key. **/
+        private final TextView[] mTextViews;
+        /** Observed keys. **/
+        private final CacheKey<?>[] mKeys;
+        /** Observation of each key, refreshing all the views. **/
+        private final List<Observation> mKeyObservations =
+            new ArrayList<Observation>();
+
+        /***
+         * Constructor.
+         *
+         * @param textViews TextView for each key.
+         * @param keys Observed keys.
+         */
+        private SnapshotObservation(final TextView[] textViews,
+                final CacheKey<?>[] keys) {
+            mTextViews = textViews.clone();
+            mKeys = keys.clone();
+            for (CacheKey<?> key : mKeys) {
+                mKeyObservations.add(newKeyObservation(key));
+            }
+        }
+
+        /***
+         * Create the observation of one key.
+         *
+         * @param <T> Type of the value.
+         * @param key Observed key.
+         * @return Observation refreshing all the views.
+         */
+        private <T> Observation newKeyObservation(final CacheKey<T> key) {
+            return new CacheObservation<T>(key, new CacheObserver<T>() {
+                @Override
+                public void onChanged(final CacheKey<T> changedKey,
+                        final T value) {
+                    refresh();
+                }
+            });
+        }
+
+        /***
+         * Show every key from one Snapshot.
+         */
+        private void refresh() {
+            Cache.Snapshot snapshot = mCache.snapshot(mKeys);
+            for (int i = 0; i < mKeys.length; i++) {
+                Object value = snapshot.get(mKeys[i]);
+                bindText(mTextViews[i], value == null ? null
+                        : value.toString());
+            }
+        }
+
+        @Override
+        public void start() {
+            for (Observation observation : mKeyObservations) {
+                observation.start();
+            }
+        }
+
+        @Override
+        public void stop() {
+            for (Observation observation : mKeyObservations) {
+                observation.stop();
+            }
+        }
+    }
+
+    /***
+     * Subscription to the Progress of a Type of task, shown in a TextView.
+     */
+    private final class ProgressObservation implements Observation,
+            ProgressPublisher.Subscriber<Progress> {
+        /** Task Type. **/
+        private final Type mType;
+        /** TextView to update. **/
+        private final TextView mTextView;
+        /** Active subscription, or NULL when stopped. **/
+        private ProgressPublisher.Subscription mSubscription;
+
+        /***
+         * Constructor.
+         *
+         * @param type Task Type.
+         * @param textView TextView to update.
+         */
+        private ProgressObservation(final Type type,
+                final TextView textView) {
+            mType = type;
+            mTextView = textView;
+        }
+
+        @Override
+        public void start() {
+            mUiQueue.getProgress(mType).subscribe(this, mHandler, 0);
+        }
+
+        @Override
+        public void stop() {
+            if (mSubscription != null) {
+                mSubscription.cancel();
+                mSubscription = null;
+            }
+        }
+
+        @Override
+        public void onSubscribe(
+                final ProgressPublisher.Subscription subscription) {
+            mSubscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(final Progress progress) {
+            bindText(mTextView, progress.getText());
+            if (mSubscription != null) {
+                mSubscription.request(1);
+            }
+        }
+    }
+
     /***
      * Handler which is subscribed to the UiQueue whenever the Activity is on
      * screen.
@@ -132,6 +474,7 @@ public class BaseActivity extends Activity {
     public void post(final Type type, final Bundle bundle) {
         switch (type) {
         case SHOW_DIALOG:
+        case TASK_FAILED:
             mDialogBundle = bundle;
             showDialog(Type.DIALOG_STATUS.ordinal());
             break;
@@ -170,6 +513,26 @@ public class BaseActivity extends Activity {
         }
     }
 
+    /***
+     * Post a message to the Service, showing the status dialog if the
+     * ServiceQueue rejects it.
+     *
+     * @param type Message Type.
+     * @param bundle Optional Bundle of extra information, NULL otherwise.
+     * @return ACCEPTED, or the reason the message was rejected.
+     */
+    protected final Admission postToService(final Type type,
+            final Bundle bundle) {
+        Admission admission = mServiceQueue.postToService(type, bundle);
+        if (!admission.isAccepted()) {
+            Bundle dialogBundle = new Bundle();
+            dialogBundle.putString("TEXT", "Request for [" + type
+                    + "] was rejected [" + admission + "]");
+            post(Type.SHOW_DIALOG, dialogBundle);
+        }
+        return admission;
+    }
+
     /**
      * Return the Application ServiceQueue.
      *
@@ -23,6 +23,7 @@ import android.widget.Button;
 import android.widget.TextView;
 
 import com.zedray.framework.R;
+import com.zedray.framework.utils.Keys;
 import com.zedray.framework.utils.Type;
 
 /***
@@ -31,79 +32,23 @@ import com.zedray.framework.utils.Type;
  */
 public class LongTasks extends BaseActivity {
 
-    /** UI TextViews. **/
-    private TextView mTextView, mTextViewQueue;
-
     @Override
     public final void onCreate(final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.single);
         setTitle(LongTasks.class.getSimpleName());
 
-        mTextView = (TextView) findViewById(
-                R.id.main_TextView_StatusTask);
-        mTextViewQueue = (TextView) findViewById(
-                R.id.main_TextView_StatusQueue);
+        observeProgress(Type.DO_LONG_TASK, (TextView) findViewById(
+                R.id.main_TextView_StatusTask));
+        observeText(Keys.STATE_QUEUE, (TextView) findViewById(
+                R.id.main_TextView_StatusQueue));
 
         ((Button) findViewById(R.id.main_Button_DoTask)).setOnClickListener(
                 new OnClickListener() {
             @Override
             public void onClick(final View view) {
-                getServiceQueue().postToService(Type.DO_LONG_TASK, null);
+                postToService(Type.DO_LONG_TASK, null);
             }
         });
     }
-
-    @Override
-    protected final void onResume() {
-        updateAll();
-        super.onResume();
-    }
-
-    /***
-     * Update all UI elements - called onCreate() and onResume().
-     */
-    private void updateAll() {
-        updateTextView();
-        updateTextViewQueue();
-    }
-
-    /***
-     * Update the given TextView with information from the Application Cache.
-     */
-    private void updateTextView() {
-        mTextView.setText(getCache().getStateLongTask());
-    }
-
-
-    /***
-     * Update the given TextView with information from the Application Cache.
-     */
-    private void updateTextViewQueue() {
-        mTextViewQueue.setText(getCache().getQueue());
-    }
-
-    /***
-     * Override the post method to receive incoming messages from the Service.
-     *
-     * @param type Message type.
-     * @param bundle Optional Bundle of extra information, NULL otherwise.
-     */
-    @Override
-    public final void post(final Type type, final Bundle bundle) {
-        switch (type) {
-            case UPDATE_LONG_TASK:
-                updateTextView();
-                break;
-
-            case UPDATE_QUEUE:
-                updateTextViewQueue();
-                break;
-
-            default:
-                /** Let the BaseActivity handle other message types. */
-                super.post(type, bundle);
-                break;
-        }
-    }
 }
@@ -23,6 +23,7 @@ import android.widget.Button;
 import android.widget.TextView;
 
 import com.zedray.framework.R;
+import com.zedray.framework.utils.Keys;
 import com.zedray.framework.utils.Type;
 
 /***
@@ -31,19 +32,16 @@ import com.zedray.framework.utils.Type;
  */
 public class ShortTasks extends BaseActivity {
 
-    /** UI TextViews. **/
-    private TextView mTextView, mTextViewQueue;
-
     @Override
     public final void onCreate(final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.single);
         setTitle(ShortTasks.class.getSimpleName());
 
-        mTextView = (TextView) findViewById(
-                R.id.main_TextView_StatusTask);
-        mTextViewQueue = (TextView) findViewById(
-                R.id.main_TextView_StatusQueue);
+        observeText(Keys.STATE_SHORT_TASK, (TextView) findViewById(
+                R.id.main_TextView_StatusTask));
+        observeText(Keys.STATE_QUEUE, (TextView) findViewById(
+                R.id.main_TextView_StatusQueue));
 
         ((Button) findViewById(R.id.main_Button_DoTask)).setOnClickListener(
                 new OnClickListener() {
@@ -51,60 +49,8 @@ public class ShortTasks extends BaseActivity {
             public void onClick(final View view) {
                 Bundle outBundle = new Bundle();
                 outBundle.putString("TEXT", ShortTasks.class.getSimpleName());
-                getServiceQueue().postToService(Type.DO_SHORT_TASK, outBundle);
+                postToService(Type.DO_SHORT_TASK, outBundle);
             }
         });
     }
-
-    @Override
-    protected final void onResume() {
-        updateAll();
-        super.onResume();
-    }
-
-    /***
-     * Update all UI elements - called onCreate() and onResume().
-     */
-    private void updateAll() {
-        updateTextView();
-        updateTextViewQueue();
-    }
-
-    /***
-     * Update the given TextView with information from the Application Cache.
-     */
-    private void updateTextView() {
-        mTextView.setText(getCache().getStateShortTask());
-    }
-
-    /***
-     * Update the given TextView with information from the Application Cache.
-     */
-    private void updateTextViewQueue() {
-        mTextViewQueue.setText(getCache().getQueue());
-    }
-
-    /***
-     * Override the post method to receive incoming messages from the Service.
-     *
-     * @param type Message type.
-     * @param bundle Optional Bundle of extra information, NULL otherwise.
-     */
-    @Override
-    public final void post(final Type type, final Bundle bundle) {
-        switch (type) {
-            case UPDATE_SHORT_TASK:
-                updateTextView();
-                break;
-
-            case UPDATE_QUEUE:
-                updateTextViewQueue();
-                break;
-
-            default:
-                /** Let the BaseActivity handle other message types. */
-                super.post(type, bundle);
-                break;
-        }
-    }
 }
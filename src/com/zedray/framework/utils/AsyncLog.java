@@ -0,0 +1,380 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zedray.framework.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/***
+ * Asynchronous logging for hot paths. A call below the current level returns
+ * at once, without formatting anything. Otherwise the format and its
+ * arguments are claimed into a slot of a bounded, lock free ring, and a
+ * background thread formats and writes them to android.util.Log. A caller
+ * never blocks or takes a lock; when the ring is full the entry is dropped
+ * and counted.
+ *
+ * Formats use "{}" for each argument. Arguments are formatted later on the
+ * writer thread, so must not be changed after the call (pass Message fields,
+ * not the recycled Message). Calls below MIN_LEVEL can be removed at compile
+ * time by testing AsyncLog.MIN_LEVEL first.
+ */
+public final class AsyncLog {
+    /** Lowest level compiled in, e.g. Log.DEBUG for debug builds. **/
+    public static final int MIN_LEVEL = Log.INFO;
+    /** Number of slots in the ring, a power of two. **/
+    private static final int CAPACITY = 1024;
+    /** Mask from sequence to slot. **/
+    private static final int MASK = CAPACITY - 1;
+
+    /***
+     * Slot of the ring, written by one producer and then read by the writer.
+     */
+    private static final class Entry {
+        /** Log level. **/
+        private int mLevel;
+        /** Log tag. **/
+        private String mTag;
+        /** Message format. **/
+        private String mFormat;
+        /** Number of arguments. **/
+        private int mArgCount;
+        /** First argument. **/
+        private Object mArg1;
+        /** Second argument. **/
+        private Object mArg2;
+        /** Third argument. **/
+        private Object mArg3;
+        /** Fourth argument. **/
+        private Object mArg4;
+    }
+
+    /** Current level, at or above MIN_LEVEL. **/
+    private static volatile int sLevel = MIN_LEVEL;
+    /** Ring of entries. **/
+    private static final Entry[] RING = new Entry[CAPACITY];
+    /***
+     * Sequence of each slot: equal to the claiming sequence when free, one
+     * more once published, and CAPACITY more once read.
+     */
+    private static final AtomicLongArray SEQUENCES =
+        new AtomicLongArray(CAPACITY);
+    /** Next sequence to claim. **/
+    private static final AtomicLong TAIL = new AtomicLong();
+    /** Next sequence to read, only used by the writer. **/
+    private static long sHead = 0;
+    /** Number of entries dropped because the ring was full. **/
+    private static final AtomicInteger DROPPED = new AtomicInteger();
+    /** TRUE while the writer is parked on an empty ring. **/
+    private static volatile boolean sWriterIdle = false;
+    /** Background writer. **/
+    private static final Thread WRITER;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            RING[i] = new Entry();
+            SEQUENCES.set(i, i);
+        }
+        WRITER = new Thread("AsyncLog") {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+        WRITER.setDaemon(true);
+        WRITER.start();
+    }
+
+    /***
+     * Private constructor to prevent instantiation.
+     */
+    private AsyncLog() {
+        // Do nothing.
+    }
+
+    /***
+     * Set the lowest level that is logged.
+     *
+     * @param level android.util.Log level, raised to MIN_LEVEL if lower.
+     */
+    public static void setLevel(final int level) {
+        sLevel = Math.max(level, MIN_LEVEL);
+    }
+
+    /***
+     * Returns TRUE if messages at a level are logged, so callers can skip
+     * computing expensive arguments.
+     *
+     * @param level android.util.Log level.
+     * @return TRUE if enabled.
+     */
+    public static boolean isLoggable(final int level) {
+        return level >= sLevel;
+    }
+
+    /***
+     * Returns the number of entries dropped because the ring was full.
+     *
+     * @return Dropped entries.
+     */
+    public static int getDropped() {
+        return DROPPED.get();
+    }
+
+    /***
+     * Log at DEBUG level.
+     *
+     * @param tag Log tag.
+     * @param format Message format, with a "{}" for the argument.
+     * @param arg Argument.
+     */
+    public static void d(final String tag, final String format,
+            final Object arg) {
+        log(Log.DEBUG, tag, format, 1, arg, null, null, null);
+    }
+
+    /***
+     * Log at INFO level.
+     *
+     * @param tag Log tag.
+     * @param message Message.
+     */
+    public static void i(final String tag, final String message) {
+        log(Log.INFO, tag, message, 0, null, null, null, null);
+    }
+
+    /***
+     * Log at INFO level.
+     *
+     * @param tag Log tag.
+     * @param format Message format, with a "{}" for the argument.
+     * @param arg Argument.
+     */
+    public static void i(final String tag, final String format,
+            final Object arg) {
+        log(Log.INFO, tag, format, 1, arg, null, null, null);
+    }
+
+    /***
+     * Log at INFO level.
+     *
+     * @param tag Log tag.
+     * @param format Message format, with a "{}" for each argument.
+     * @param arg1 First argument.
+     * @param arg2 Second argument.
+     */
+    public static void i(final String tag, final String format,
+            final Object arg1, final Object arg2) {
+        log(Log.INFO, tag, format, 2, arg1, arg2, null, null);
+    }
+
+    /***
+     * Log at WARN level.
+     *
+     * @param tag Log tag.
+     * @param message Message.
+     */
+    public static void w(final String tag, final String message) {
+        log(Log.WARN, tag, message, 0, null, null, null, null);
+    }
+
+    /***
+     * Log at WARN level.
+     *
+     * @param tag Log tag.
+     * @param format Message format, with a "{}" for the argument.
+     * @param arg Argument.
+     */
+    public static void w(final String tag, final String format,
+            final Object arg) {
+        log(Log.WARN, tag, format, 1, arg, null, null, null);
+    }
+
+    /***
+     * Log at WARN level.
+     *
+     * @param tag Log tag.
+     * @param format Message format, with a "{}" for each argument.
+     * @param arg1 First argument.
+     * @param arg2 Second argument.
+     */
+    public static void w(final String tag, final String format,
+            final Object arg1, final Object arg2) {
+        log(Log.WARN, tag, format, 2, arg1, arg2, null, null);
+    }
+
+    /***
+     * Log at WARN level.
+     *
+     * @param tag Log tag.
+     * @param format Message format, with a "{}" for each argument.
+     * @param arg1 First argument.
+     * @param arg2 Second argument.
+     * @param arg3 Third argument.
+     */
+    public static void w(final String tag, final String format,
+            final Object arg1, final Object arg2, final Object arg3) {
+        log(Log.WARN, tag, format, 3, arg1, arg2, arg3, null);
+    }
+
+    /***
+     * Log at WARN level.
+     *
+     * @param tag Log tag.
+     * @param format Message format, with a "{}" for each argument.
+     * @param arg1 First argument.
+     * @param arg2 Second argument.
+     * @param arg3 Third argument.
+     * @param arg4 Fourth argument.
+     */
+    public static void w(final String tag, final String format,
+            final Object arg1, final Object arg2, final Object arg3,
+            final Object arg4) {
+        log(Log.WARN, tag, format, 4, arg1, arg2, arg3, arg4);
+    }
+
+    /***
+     * Claim a slot, fill it and publish it to the writer, unless the level is
+     * disabled or the ring is full.
+     *
+     * @param level android.util.Log level.
+     * @param tag Log tag.
+     * @param format Message format.
+     * @param argCount Number of arguments.
+     * @param arg1 First argument, or NULL.
+     * @param arg2 Second argument, or NULL.
+     * @param arg3 Third argument, or NULL.
+     * @param arg4 Fourth argument, or NULL.
+     */
+    private static void log(final int level, final String tag,
+            final String format, final int argCount, final Object arg1,
+            final Object arg2, final Object arg3, final Object arg4) {
+        if (level < sLevel) {
+            return;
+        }
+        long sequence;
+        while (true) {
+            sequence = TAIL.get();
+            long available = SEQUENCES.get((int) sequence & MASK);
+            if (available < sequence) {
+                /** Slot still holds an unread entry: the ring is full. **/
+                DROPPED.incrementAndGet();
+                return;
+            }
+            if (available == sequence
+                    && TAIL.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+        Entry entry = RING[(int) sequence & MASK];
+        entry.mLevel = level;
+        entry.mTag = tag;
+        entry.mFormat = format;
+        entry.mArgCount = argCount;
+        entry.mArg1 = arg1;
+        entry.mArg2 = arg2;
+        entry.mArg3 = arg3;
+        entry.mArg4 = arg4;
+        SEQUENCES.set((int) sequence & MASK, sequence + 1);
+        if (sWriterIdle) {
+            sWriterIdle = false;
+            LockSupport.unpark(WRITER);
+        }
+    }
+
+    /***
+     * Writer loop, formatting and writing published entries in order.
+     */
+    private static void drain() {
+        int reportedDrops = 0;
+        while (true) {
+            int index = (int) sHead & MASK;
+            if (SEQUENCES.get(index) != sHead + 1) {
+                int dropped = DROPPED.get();
+                if (dropped != reportedDrops) {
+                    Log.w("AsyncLog", "Dropped [" + (dropped - reportedDrops)
+                            + "] log entries, ring is full");
+                    reportedDrops = dropped;
+                }
+                /**
+                 * A producer publishes its slot before reading the flag, and
+                 * the writer sets the flag before checking the slot again,
+                 * so one of them always sees the other and the writer can
+                 * park without a timeout.
+                 */
+                sWriterIdle = true;
+                if (SEQUENCES.get(index) != sHead + 1) {
+                    LockSupport.park();
+                }
+                sWriterIdle = false;
+                continue;
+            }
+            Entry entry = RING[index];
+            int level = entry.mLevel;
+            String tag = entry.mTag;
+            String message = format(entry.mFormat, entry.mArgCount,
+                    entry.mArg1, entry.mArg2, entry.mArg3, entry.mArg4);
+            entry.mTag = null;
+            entry.mFormat = null;
+            entry.mArg1 = null;
+            entry.mArg2 = null;
+            entry.mArg3 = null;
+            entry.mArg4 = null;
+            SEQUENCES.set(index, sHead + CAPACITY);
+            sHead++;
+            Log.println(level, tag, message);
+        }
+    }
+
+    /***
+     * Replace each "{}" in a format with the next argument.
+     *
+     * @param format Message format.
+     * @param argCount Number of arguments.
+     * @param arg1 First argument.
+     * @param arg2 Second argument.
+     * @param arg3 Third argument.
+     * @param arg4 Fourth argument.
+     * @return Formatted message.
+     */
+    private static String format(final String format, final int argCount,
+            final Object arg1, final Object arg2, final Object arg3,
+            final Object arg4) {
+        if (argCount == 0) {
+            return format;
+        }
+        StringBuilder builder = new StringBuilder(format.length() + 32);
+        Object[] args = {arg1, arg2, arg3, arg4};
+        int start = 0;
+        for (int i = 0; i < argCount; i++) {
+            Object arg = args[i];
+            int placeholder = format.indexOf("{}", start);
+            if (placeholder < 0) {
+                break;
+            }
+            builder.append(format, start, placeholder);
+            builder.append(arg);
+            start = placeholder + 2;
+        }
+        builder.append(format, start, format.length());
+        return builder.toString();
+    }
+}
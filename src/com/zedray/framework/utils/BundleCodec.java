@@ -0,0 +1,247 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.InvalidParameterException;
+
+import android.os.Bundle;
+
+/***
+ * Utility for writing a Bundle to a compact binary form and reading it back,
+ * without going through a Parcel. Supports the value types used by the
+ * framework: String, int, long, boolean, double, String[], int[], byte[] and
+ * nested Bundles.
+ */
+public final class BundleCodec {
+
+    /** Value tag for NULL. **/
+    private static final byte NULL = 0;
+    /** Value tag for a String. **/
+    private static final byte STRING = 1;
+    /** Value tag for an Integer. **/
+    private static final byte INT = 2;
+    /** Value tag for a Long. **/
+    private static final byte LONG = 3;
+    /** Value tag for a Boolean. **/
+    private static final byte BOOLEAN = 4;
+    /** Value tag for a Double. **/
+    private static final byte DOUBLE = 5;
+    /** Value tag for a String[]. **/
+    private static final byte STRING_ARRAY = 6;
+    /** Value tag for an int[]. **/
+    private static final byte INT_ARRAY = 7;
+    /** Value tag for a byte[]. **/
+    private static final byte BYTE_ARRAY = 8;
+    /** Value tag for a nested Bundle. **/
+    private static final byte BUNDLE = 9;
+
+    /***
+     * Private constructor to prevent instantiation.
+     */
+    private BundleCodec() {
+        // Do nothing.
+    }
+
+    /***
+     * Write a Bundle.
+     *
+     * @param out Destination.
+     * @param bundle Bundle to write, or NULL.
+     * @throws IOException If the destination cannot be written.
+     */
+    public static void write(final DataOutput out, final Bundle bundle)
+            throws IOException {
+        if (bundle == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bundle.size());
+        for (String key : bundle.keySet()) {
+            out.writeUTF(key);
+            writeValue(out, key, bundle.get(key));
+        }
+    }
+
+    /***
+     * Returns the number of bytes write() would produce for a Bundle.
+     *
+     * @param bundle Bundle, or NULL.
+     * @return Encoded size in bytes.
+     */
+    public static int sizeOf(final Bundle bundle) {
+        final int[] size = new int[1];
+        try {
+            write(new DataOutputStream(new OutputStream() {
+                @Override
+                public void write(final int b) {
+                    size[0]++;
+                }
+
+                @Override
+                public void write(final byte[] b, final int off,
+                        final int len) {
+                    size[0] += len;
+                }
+            }), bundle);
+        } catch (IOException e) {
+            /** Counting never fails. **/
+            throw new IllegalStateException(e);
+        }
+        return size[0];
+    }
+
+    /***
+     * Read a Bundle written by write().
+     *
+     * @param in Source.
+     * @return Bundle, or NULL.
+     * @throws IOException If the source cannot be read or is corrupt.
+     */
+    public static Bundle read(final DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        Bundle bundle = new Bundle();
+        for (int i = 0; i < size; i++) {
+            readValue(in, in.readUTF(), bundle);
+        }
+        return bundle;
+    }
+
+    /***
+     * Write a single value.
+     *
+     * @param out Destination.
+     * @param key Value key, used for error reporting.
+     * @param value Value.
+     * @throws IOException If the destination cannot be written.
+     */
+    private static void writeValue(final DataOutput out, final String key,
+            final Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            out.writeUTF((String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof String[]) {
+            String[] strings = (String[]) value;
+            out.writeByte(STRING_ARRAY);
+            out.writeInt(strings.length);
+            for (String string : strings) {
+                out.writeBoolean(string != null);
+                if (string != null) {
+                    out.writeUTF(string);
+                }
+            }
+        } else if (value instanceof int[]) {
+            int[] ints = (int[]) value;
+            out.writeByte(INT_ARRAY);
+            out.writeInt(ints.length);
+            for (int i : ints) {
+                out.writeInt(i);
+            }
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(BYTE_ARRAY);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (value instanceof Bundle) {
+            out.writeByte(BUNDLE);
+            write(out, (Bundle) value);
+        } else {
+            throw new InvalidParameterException("BundleCodec.writeValue() "
+                    + "Unsupported type[" + value.getClass() + "] for key["
+                    + key + "]");
+        }
+    }
+
+    /***
+     * Read a single value into a Bundle.
+     *
+     * @param in Source.
+     * @param key Value key.
+     * @param bundle Bundle to add the value to.
+     * @throws IOException If the source cannot be read or is corrupt.
+     */
+    private static void readValue(final DataInput in, final String key,
+            final Bundle bundle) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+        case NULL:
+            bundle.putString(key, null);
+            break;
+        case STRING:
+            bundle.putString(key, in.readUTF());
+            break;
+        case INT:
+            bundle.putInt(key, in.readInt());
+            break;
+        case LONG:
+            bundle.putLong(key, in.readLong());
+            break;
+        case BOOLEAN:
+            bundle.putBoolean(key, in.readBoolean());
+            break;
+        case DOUBLE:
+            bundle.putDouble(key, in.readDouble());
+            break;
+        case STRING_ARRAY:
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = in.readBoolean() ? in.readUTF() : null;
+            }
+            bundle.putStringArray(key, strings);
+            break;
+        case INT_ARRAY:
+            int[] ints = new int[in.readInt()];
+            for (int i = 0; i < ints.length; i++) {
+                ints[i] = in.readInt();
+            }
+            bundle.putIntArray(key, ints);
+            break;
+        case BYTE_ARRAY:
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            bundle.putByteArray(key, bytes);
+            break;
+        case BUNDLE:
+            bundle.putBundle(key, read(in));
+            break;
+        default:
+            throw new IOException("BundleCodec.readValue() Unknown tag["
+                    + tag + "] for key[" + key + "]");
+        }
+    }
+}
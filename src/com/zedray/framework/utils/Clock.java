@@ -0,0 +1,41 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.utils;
+
+import android.os.SystemClock;
+
+/***
+ * Source of uptime for components that need to run against a virtual clock,
+ * such as the AdmissionGate when driven by the LoadGenerator.
+ */
+public interface Clock {
+
+    /** Clock backed by SystemClock.uptimeMillis(). **/
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+    };
+
+    /***
+     * Returns the current uptime.
+     *
+     * @return Uptime in milliseconds.
+     */
+    long uptimeMillis();
+}
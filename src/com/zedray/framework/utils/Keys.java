@@ -0,0 +1,44 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.utils;
+
+import com.zedray.framework.application.CacheKey;
+
+/***
+ * Defines all the Cache keys used in the framework.
+ */
+public final class Keys {
+
+    /** [Optional] State of the short task. **/
+    public static final CacheKey<String> STATE_SHORT_TASK =
+        CacheKey.newString("STATE_SHORT_TASK", null, true);
+
+    /** [Optional] State of the WorkerThread Queue. **/
+    public static final CacheKey<String> STATE_QUEUE =
+        CacheKey.newString("STATE_QUEUE", null, true);
+
+    /** [Optional] Execution state of a running Long task. **/
+    public static final CacheKey<Integer> STATE_PROCESS =
+        CacheKey.newInt("STATE_PROCESS", -1, true);
+
+    /***
+     * Private constructor to prevent instantiation.
+     */
+    private Keys() {
+        // Do nothing.
+    }
+}
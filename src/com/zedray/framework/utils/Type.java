@@ -17,29 +17,71 @@
 package com.zedray.framework.utils;
 
 /***
- * Defines all the message types used in the framework.
+ * Defines all the message types used in the framework. Message codes are
+ * ordinals, which only live as long as the process. Anything written to disk
+ * uses the stable code of each Type instead, which must never be changed or
+ * reused when Types are added, removed or reordered.
  */
 public enum Type {
 
     /***
      * UI to Service messages.
      */
-    DO_SHORT_TASK, DO_LONG_TASK,
+    DO_SHORT_TASK(1), DO_LONG_TASK(2),
 
     /***
      * Service to UI messages.
      */
-    UPDATE_SHORT_TASK, UPDATE_LONG_TASK, UPDATE_QUEUE, SHOW_DIALOG,
+    SHOW_DIALOG(3), TASK_FAILED(4),
 
     /***
      * UI Dialogs.
      */
-    DIALOG_STATUS,
+    DIALOG_STATUS(5),
 
     /***
      * Do not handle this message.
      */
-    UNKNOWN;
+    UNKNOWN(0);
+
+    /** Cached values(), as each call to values() copies the array. **/
+    private static final Type[] VALUES = values();
+
+    /** Stable code written to disk. **/
+    private final int mCode;
+
+    /***
+     * Constructor.
+     *
+     * @param code Stable code written to disk.
+     */
+    private Type(final int code) {
+        mCode = code;
+    }
+
+    /***
+     * Returns the stable code of the Type, for writing to disk.
+     *
+     * @return Stable code.
+     */
+    public int getCode() {
+        return mCode;
+    }
+
+    /***
+     * Get the Type from a stable code read from disk.
+     *
+     * @param code Stable code.
+     * @return Relevant Type or UNKNOWN if the code is not known.
+     */
+    public static Type fromCode(final int code) {
+        for (Type type : VALUES) {
+            if (type.mCode == code) {
+                return type;
+            }
+        }
+        return UNKNOWN;
+    }
 
     /***
      * Get the Type from a given Integer value.
@@ -51,7 +93,7 @@ public enum Type {
         if (input < 0 || input > UNKNOWN.ordinal()) {
             return UNKNOWN;
         } else {
-            return Type.values()[input];
+            return VALUES[input];
         }
     }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010 Mark Brady
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zedray.framework.utils;
+
+import java.security.InvalidParameterException;
+import java.util.PriorityQueue;
+
+/***
+ * Deterministic Clock which only moves forward when scheduled events are run.
+ * Events due at the same time run in the order they were scheduled, so a
+ * simulation driven from a single thread always produces the same result.
+ */
+public class VirtualClock implements Clock {
+    /** Pending events, ordered by due time and then by sequence. **/
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<Event>();
+    /** Current virtual uptime. **/
+    private long mNow = 0;
+    /** Sequence number of the next scheduled event. **/
+    private long mSequence = 0;
+
+    @Override
+    public final long uptimeMillis() {
+        return mNow;
+    }
+
+    /***
+     * Schedule an event after a delay.
+     *
+     * @param delay Delay in milliseconds, negative values are treated as 0.
+     * @param runnable Event to run.
+     */
+    public final void schedule(final long delay, final Runnable runnable) {
+        scheduleAt(mNow + Math.max(0, delay), runnable);
+    }
+
+    /***
+     * Schedule an event at an absolute virtual uptime. Times in the past are
+     * treated as now.
+     *
+     * @param time Virtual uptime in milliseconds.
+     * @param runnable Event to run.
+     */
+    public final void scheduleAt(final long time, final Runnable runnable) {
+        if (runnable == null) {
+            throw new InvalidParameterException("VirtualClock.scheduleAt() "
+                    + "Runnable cannot be NULL");
+        }
+        mEvents.add(new Event(Math.max(mNow, time), mSequence++, runnable));
+    }
+
+    /***
+     * Run all events due up to and including the given time, then move the
+     * clock to that time.
+     *
+     * @param time Virtual uptime in milliseconds.
+     */
+    public final void runUntil(final long time) {
+        while (!mEvents.isEmpty() && mEvents.peek().mTime <= time) {
+            runNext();
+        }
+        mNow = Math.max(mNow, time);
+    }
+
+    /***
+     * Run events until none are left, including any events they schedule.
+     */
+    public final void runAll() {
+        while (!mEvents.isEmpty()) {
+            runNext();
+        }
+    }
+
+    /***
+     * Returns TRUE if there are no pending events.
+     *
+     * @return TRUE if idle.
+     */
+    public final boolean isIdle() {
+        return mEvents.isEmpty();
+    }
+
+    /***
+     * Advance the clock to the next event and run it.
+     */
+    private void runNext() {
+        Event event = mEvents.poll();
+        mNow = event.mTime;
+        event.mRunnable.run();
+    }
+
+    /***
+     * Scheduled event.
+     */
+    private static final class Event implements Comparable<Event> {
+        /** Due time. **/
+        private final long mTime;
+        /** Order in which the event was scheduled. **/
+        private final long mSequence;
+        /** Event to run. **/
+        private final Runnable mRunnable;
+
+        /***
+         * Constructor.
+         *
+         * @param time Due time.
+         * @param sequence Order in which the event was scheduled.
+         * @param runnable Event to run.
+         */
+        private Event(final long time, final long sequence,
+                final Runnable runnable) {
+            mTime = time;
+            mSequence = sequence;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public int compareTo(final Event other) {
+            if (mTime != other.mTime) {
+                return mTime < other.mTime ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1
+                    : (mSequence > other.mSequence ? 1 : 0);
+        }
+    }
+}